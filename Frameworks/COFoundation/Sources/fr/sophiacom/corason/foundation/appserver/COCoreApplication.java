@@ -2,9 +2,16 @@ package fr.sophiacom.corason.foundation.appserver;
 
 import org.apache.log4j.Logger;
 
+import com.webobjects.appserver.WORequest;
+import com.webobjects.appserver.WOResponse;
+import com.webobjects.appserver.WOSession;
 import com.webobjects.eocontrol.EOEventCenter;
 
 import er.extensions.appserver.ERXApplication;
+import fr.sophiacom.corason.foundation.eo.COCheckDeleteIndex;
+import fr.sophiacom.corason.foundation.eo.COReferenceCounter;
+import fr.sophiacom.corason.foundation.eocontrol.COFetchMemo;
+import fr.sophiacom.corason.foundation.eocontrol.COPrefetchHints;
 
 /**
  * Application subclass that inherits from Project Wonder class. 
@@ -26,7 +33,8 @@ public class COCoreApplication extends ERXApplication
 	}
 	
     /**
-     * Just log that the instance has finished its initialization.  
+     * Log that the instance has finished its initialization, build the index of COCheckDelete (see COCheckDeleteIndex),
+     * seed the reference counts (see COReferenceCounter) and start the heap watchdog (see COHeapWatchdog).
      *
      */
     @Override
@@ -34,6 +42,46 @@ public class COCoreApplication extends ERXApplication
     {
         log.info("method: didFinishLaunching: ENTER");
         super.didFinishLaunching();
+        COPrefetchHints.startIfEnabled();
+        COCheckDeleteIndex.currentIndex();
+        COReferenceCounter.startIfEnabled();
+        COHeapWatchdog.startIfEnabled();
         log.info("method: didFinishLaunching: DONE");
     }
+
+    /**
+     * Overridden to refuse the new sessions when the heap watchdog says the heap is nearly full. WebObjects then handles
+     * the request as a session creation error.
+     *
+     * @see COHeapWatchdog
+     */
+    @Override
+    public WOSession createSessionForRequest(final WORequest request)
+    {
+        if (COHeapWatchdog.shouldRefuseSessions())
+        {
+            COHeapWatchdog.getInstance().sessionRefused();
+            log.warn("method: createSessionForRequest: session refused, the heap is nearly full");
+            return null;
+        }
+        return super.createSessionForRequest(request);
+    }
+
+    /**
+     * Overridden to create the fetch memo of the request and to drop it at the end of the request.
+     *
+     * @see COFetchMemo
+     */
+    @Override
+    public WOResponse dispatchRequest(final WORequest request)
+    {
+        COFetchMemo.beginRequest();
+        try
+        {
+            return super.dispatchRequest(request);
+        } finally
+        {
+            COFetchMemo.endRequest();
+        }
+    }
 }
@@ -14,6 +14,7 @@ import com.webobjects.foundation.NSArray;
 import er.extensions.appserver.ERXDirectAction;
 import er.extensions.eof.ERXEC;
 import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.eocontrol.COEditingContextTracker;
 
 /**
  * DirectAction subclass that inherits from Project Wonder class. Offer useful DA.<p>
@@ -24,6 +25,8 @@ import er.extensions.foundation.ERXProperties;
 
 public class COCoreDirectAction extends ERXDirectAction
 {
+	public static final String PASSWORD_KEY = "fr.sophiacom.corason.foundation.appserver.COCoreDirectAction.password";
+
 	public COCoreDirectAction(final WORequest request)
 	{
 		super(request);
@@ -75,6 +78,43 @@ public class COCoreDirectAction extends ERXDirectAction
 		return getResponseForInstanceRunning(status);
 	}
 
+	/**
+	 * This DA returns a text report of the editing contexts that are still alive after the threshold with their creation
+	 * stack. The COEditingContextTracker must be enabled. The DA is protected by a password (parameter <code>pw</code>)
+	 * set with the property:<br>
+	 * <code>fr.sophiacom.corason.foundation.appserver.COCoreDirectAction.password=secret</code><br>
+	 * The parameter <code>age</code> (in seconds) can be used to change the threshold, an invalid value is ignored.
+	 *
+	 * @return a text report
+	 * @see COEditingContextTracker
+	 */
+	public WOActionResults editingContextsReportAction()
+	{
+		WOResponse response = new WOResponse();
+		if (!canPerformActionWithPasswordKey(PASSWORD_KEY))
+		{
+			response.setStatus(WOResponse.HTTP_STATUS_FORBIDDEN);
+			return response;
+		}
+		String age = request().stringFormValueForKey("age");
+		String report = null;
+		if (age != null)
+		{
+			try
+			{
+				report = COEditingContextTracker.report(Long.parseLong(age) * 1000L);
+			} catch (NumberFormatException e)
+			{
+				log.warn("method: editingContextsReportAction: invalid age: " + age + ", the default threshold is used");
+			}
+		}
+		if (report == null)
+			report = COEditingContextTracker.report();
+		response.setHeader("text/plain", "Content-Type");
+		response.appendContentString(report);
+		return response;
+	}
+
 	/**
 	 * Returns a very simple page based on the status.<p>
 	 * This method can be overridden to return something else.
@@ -0,0 +1,307 @@
+package fr.sophiacom.corason.foundation.appserver;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEditingContext;
+
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.eocontrol.COEditingContext;
+import fr.sophiacom.corason.foundation.eocontrol.COEditingContextTracker;
+import fr.sophiacom.corason.foundation.util.COCacheRegistry;
+import fr.sophiacom.corason.foundation.util.COJMXUtilities;
+
+/**
+ * Watchdog started by COCoreApplication that sheds memory when the heap is nearly full, before the instance thrashes in
+ * GC. It sets usage thresholds on the heap memory pools (MemoryPoolMXBean, the usage after a GC when the pool supports
+ * it) and also checks the heap periodically. The usage is a percentage of the maximum size of the pool.<p>
+ * The actions are run in this order, each one from its own threshold:
+ * <ol>
+ * <li>HIGH: the caches registered in COCacheRegistry are cleared</li>
+ * <li>VERY_HIGH: the background (manual locking) editing contexts with more registered objects than the limit are reset
+ * when their thread releases the lock and if they have no changes. The editing contexts are found by
+ * COEditingContextTracker so it must be enabled.</li>
+ * <li>CRITICAL: the new sessions are refused until the usage falls below the VERY_HIGH threshold</li>
+ * </ol>
+ * An action is not run again before the action interval (s) while the heap stays at its level. The levels and the
+ * actions are logged and exposed with JMX (<code>fr.sophiacom.corason:type=HeapWatchdog</code>).<p>
+ * The watchdog is disabled by default. The properties are:<br>
+ * <code>fr.sophiacom.corason.foundation.appserver.COHeapWatchdog.enabled=true</code><br>
+ * <code>fr.sophiacom.corason.foundation.appserver.COHeapWatchdog.cacheThreshold=80</code><br>
+ * <code>fr.sophiacom.corason.foundation.appserver.COHeapWatchdog.editingContextThreshold=85</code><br>
+ * <code>fr.sophiacom.corason.foundation.appserver.COHeapWatchdog.sessionThreshold=90</code><br>
+ * <code>fr.sophiacom.corason.foundation.appserver.COHeapWatchdog.editingContextSizeLimit=10000</code><br>
+ * <code>fr.sophiacom.corason.foundation.appserver.COHeapWatchdog.checkInterval=10</code><br>
+ * <code>fr.sophiacom.corason.foundation.appserver.COHeapWatchdog.actionInterval=60</code>
+ *
+ * @see COCoreApplication#createSessionForRequest(com.webobjects.appserver.WORequest)
+ */
+public class COHeapWatchdog implements COHeapWatchdogMBean
+{
+	public enum HeapLevel
+	{
+		NORMAL,
+		HIGH,
+		VERY_HIGH,
+		CRITICAL;
+	}
+
+	private static final Logger log = Logger.getLogger(COHeapWatchdog.class);
+	private static final String PREFIX = "fr.sophiacom.corason.foundation.appserver.COHeapWatchdog.";
+	private static final boolean enabled = ERXProperties.booleanForKeyWithDefault(PREFIX + "enabled", false);
+	private static volatile COHeapWatchdog watchdog = null;
+
+	private final int _cacheThreshold = ERXProperties.intForKeyWithDefault(PREFIX + "cacheThreshold", 80);
+	private final int _editingContextThreshold = ERXProperties.intForKeyWithDefault(PREFIX + "editingContextThreshold", 85);
+	private final int _sessionThreshold = ERXProperties.intForKeyWithDefault(PREFIX + "sessionThreshold", 90);
+	private final int _editingContextSizeLimit = ERXProperties.intForKeyWithDefault(PREFIX + "editingContextSizeLimit", 10000);
+	private final long _checkInterval = ERXProperties.longForKeyWithDefault(PREFIX + "checkInterval", 10L) * 1000L;
+	private final long _actionInterval = ERXProperties.longForKeyWithDefault(PREFIX + "actionInterval", 60L) * 1000L;
+	private final List<MemoryPoolMXBean> _pools = new ArrayList<MemoryPoolMXBean>();
+	private final AtomicLong _checkCount = new AtomicLong();
+	private final AtomicLong _cacheClearCount = new AtomicLong();
+	private final AtomicLong _editingContextResetRequestCount = new AtomicLong();
+	private final AtomicLong _refusedSessionCount = new AtomicLong();
+	private volatile HeapLevel _heapLevel = HeapLevel.NORMAL;
+	private volatile int _heapUsagePercent;
+	private volatile boolean _refusingSessions;
+	private long _lastCacheClearTime;
+	private long _lastEditingContextResetTime;
+	private Timer _timer;
+
+	/**
+	 * @return <code>true</code> if the watchdog is enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Returns the unique instance. The MBean is registered when the instance is created.
+	 *
+	 * @return the unique instance
+	 */
+	public static COHeapWatchdog getInstance()
+	{
+		if (watchdog == null)
+		{
+			synchronized (COHeapWatchdog.class)
+			{
+				if (watchdog == null)
+				{
+					COHeapWatchdog aWatchdog = new COHeapWatchdog();
+					COJMXUtilities.registerMBean(aWatchdog, "HeapWatchdog");
+					watchdog = aWatchdog;
+				}
+			}
+		}
+		return watchdog;
+	}
+
+	/**
+	 * Starts the watchdog if it's enabled: sets the thresholds of the heap pools and starts the periodic check.
+	 *
+	 */
+	public static void startIfEnabled()
+	{
+		if (enabled)
+			getInstance().start();
+	}
+
+	/**
+	 * @return <code>true</code> if the new sessions must be refused
+	 */
+	public static boolean shouldRefuseSessions()
+	{
+		return watchdog != null && watchdog._refusingSessions;
+	}
+
+	private synchronized void start()
+	{
+		if (_timer != null)
+			return;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+		{
+			long max = pool.getUsage().getMax();
+			if (pool.getType() != MemoryType.HEAP || max <= 0)
+				continue;
+			long threshold = max * _cacheThreshold / 100;
+			if (pool.isCollectionUsageThresholdSupported())
+				pool.setCollectionUsageThreshold(threshold);
+			else if (pool.isUsageThresholdSupported())
+				pool.setUsageThreshold(threshold);
+			else
+				continue;
+			_pools.add(pool);
+			log.info("method: start: pool: " + pool.getName() + " threshold: " + threshold + " bytes");
+		}
+		((NotificationEmitter)ManagementFactory.getMemoryMXBean()).addNotificationListener(new NotificationListener()
+		{
+			public void handleNotification(final Notification notification, final Object handback)
+			{
+				if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())
+						|| MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(notification.getType()))
+					check();
+			}
+		}, null, null);
+		_timer = new Timer("COHeapWatchdog", true);
+		_timer.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					check();
+				} catch (RuntimeException e)
+				{
+					log.error("method: run: heap check failed", e);
+				}
+			}
+		}, _checkInterval, _checkInterval);
+	}
+
+	/**
+	 * Computes the heap level and runs the actions of the level.
+	 *
+	 */
+	public synchronized void check()
+	{
+		_checkCount.incrementAndGet();
+		int usagePercent = heapUsagePercent();
+		HeapLevel level = HeapLevel.NORMAL;
+		if (usagePercent >= _sessionThreshold)
+			level = HeapLevel.CRITICAL;
+		else if (usagePercent >= _editingContextThreshold)
+			level = HeapLevel.VERY_HIGH;
+		else if (usagePercent >= _cacheThreshold)
+			level = HeapLevel.HIGH;
+		_heapUsagePercent = usagePercent;
+		if (level != _heapLevel)
+		{
+			if (level == HeapLevel.NORMAL)
+				log.info("method: check: heap level: " + _heapLevel + " -> " + level + " usage: " + usagePercent + "%");
+			else
+				log.warn("method: check: heap level: " + _heapLevel + " -> " + level + " usage: " + usagePercent + "%");
+			_heapLevel = level;
+		}
+
+		long now = System.currentTimeMillis();
+		if (level.compareTo(HeapLevel.HIGH) >= 0 && now - _lastCacheClearTime >= _actionInterval)
+		{
+			_lastCacheClearTime = now;
+			int count = COCacheRegistry.clearAllCaches();
+			_cacheClearCount.incrementAndGet();
+			log.warn("method: check: caches cleared: " + count);
+		}
+		if (level.compareTo(HeapLevel.VERY_HIGH) >= 0 && now - _lastEditingContextResetTime >= _actionInterval)
+		{
+			_lastEditingContextResetTime = now;
+			requestResetOfLargeEditingContexts();
+		}
+		if (level == HeapLevel.CRITICAL && !_refusingSessions)
+		{
+			_refusingSessions = true;
+			log.error("method: check: the new sessions are refused, heap usage: " + usagePercent + "%");
+		}
+		else if (level.compareTo(HeapLevel.VERY_HIGH) < 0 && _refusingSessions)
+		{
+			_refusingSessions = false;
+			log.warn("method: check: the new sessions are accepted again, heap usage: " + usagePercent + "%");
+		}
+	}
+
+	/**
+	 * @return the highest usage of the monitored pools in percent of their maximum size
+	 */
+	private int heapUsagePercent()
+	{
+		int usagePercent = 0;
+		for (MemoryPoolMXBean pool : _pools)
+		{
+			MemoryUsage usage = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage() : pool.getUsage();
+			if (usage != null && usage.getMax() > 0)
+				usagePercent = Math.max(usagePercent, (int)(usage.getUsed() * 100 / usage.getMax()));
+		}
+		return usagePercent;
+	}
+
+	private void requestResetOfLargeEditingContexts()
+	{
+		if (!COEditingContextTracker.isEnabled())
+		{
+			log.warn("method: requestResetOfLargeEditingContexts: COEditingContextTracker is disabled, the editing contexts can't be found");
+			return;
+		}
+		int count = 0;
+		for (EOEditingContext ec : COEditingContextTracker.trackedEditingContexts())
+		{
+			if (ec instanceof COEditingContext && !((COEditingContext)ec).useAutoLock() && ((COEditingContext)ec).registeredObjectCount() > _editingContextSizeLimit)
+			{
+				((COEditingContext)ec).requestReset();
+				count++;
+			}
+		}
+		_editingContextResetRequestCount.addAndGet(count);
+		log.warn("method: requestResetOfLargeEditingContexts: editing contexts to reset: " + count);
+	}
+
+	/**
+	 * Records a session refused by the application.
+	 *
+	 */
+	public void sessionRefused()
+	{
+		_refusedSessionCount.incrementAndGet();
+	}
+
+	public String getHeapLevel()
+	{
+		return _heapLevel.name();
+	}
+
+	public int getHeapUsagePercent()
+	{
+		return _heapUsagePercent;
+	}
+
+	public long getCheckCount()
+	{
+		return _checkCount.get();
+	}
+
+	public long getCacheClearCount()
+	{
+		return _cacheClearCount.get();
+	}
+
+	public long getEditingContextResetRequestCount()
+	{
+		return _editingContextResetRequestCount.get();
+	}
+
+	public boolean isRefusingSessions()
+	{
+		return _refusingSessions;
+	}
+
+	public long getRefusedSessionCount()
+	{
+		return _refusedSessionCount.get();
+	}
+}
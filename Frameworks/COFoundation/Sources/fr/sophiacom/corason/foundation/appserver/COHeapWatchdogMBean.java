@@ -0,0 +1,25 @@
+package fr.sophiacom.corason.foundation.appserver;
+
+/**
+ * JMX interface of COHeapWatchdog.
+ *
+ * @see COHeapWatchdog
+ */
+public interface COHeapWatchdogMBean
+{
+	public String getHeapLevel();
+
+	public int getHeapUsagePercent();
+
+	public long getCheckCount();
+
+	public long getCacheClearCount();
+
+	public long getEditingContextResetRequestCount();
+
+	public boolean isRefusingSessions();
+
+	public long getRefusedSessionCount();
+
+	public void check();
+}
@@ -7,13 +7,16 @@ import org.apache.log4j.Logger;
 import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableDictionary;
 
+import fr.sophiacom.corason.foundation.util.COCacheRegistry;
+
 /**
  * This factory instantiates authentication strategy objects. It uses the pattern Flyweight because objects are instantiated
  * once and are reused during the life of the application.<p>
  * Each object must be identified by a unique key. The objects can be reused because they don't store external informations. All
  * informations needed by an authentication object is passed as parameters to the different methods.<br>
  * This class doesn't implement an interface because it's very simple so the only way to change the behavior is to create
- * a inherited class and derive the method <code>strategyForType(AuthenticationStrategyType type, Map<String, Object> userInfo)</code>.
+ * a inherited class and derive the method <code>strategyForType(AuthenticationStrategyType type, Map<String, Object> userInfo)</code>.<p>
+ * The strategy objects are registered as a cache in COCacheRegistry.
  *
  */
 public class COAuthenticationFactory {
@@ -22,6 +25,16 @@ public class COAuthenticationFactory {
     protected volatile static COAuthenticationFactory factory = null;
     private final NSMutableDictionary<String, COActionAuthenticates> _strategyObjects = new NSMutableDictionary<String, COActionAuthenticates>();
 
+    static {
+    	COCacheRegistry.registerCache("authenticationStrategies", new COCacheRegistry.Cache() {
+    		public void clearCache() {
+    			COAuthenticationFactory aFactory = factory;
+    			if (aFactory != null)
+    				aFactory.clearStrategies();
+    		}
+    	});
+    }
+
 	public enum AuthenticationStrategyType {
 		SIMPLE(new COSimpleAuthentication()),
 		BCRYPT(new COBCryptAuthentication()),
@@ -78,10 +91,23 @@ public class COAuthenticationFactory {
 	 * @return strategy object
 	 */
 	public COActionAuthenticates strategy(final String key, final AuthenticationStrategyType type, final NSDictionary<String, Object> userInfo) {
-		if (_strategyObjects.objectForKey(key) == null) {
-			_strategyObjects.setObjectForKey(strategyForType(type, userInfo), key);
+		synchronized (_strategyObjects) {
+			if (_strategyObjects.objectForKey(key) == null) {
+				_strategyObjects.setObjectForKey(strategyForType(type, userInfo), key);
+			}
+			return _strategyObjects.objectForKey(key);
+		}
+	}
+
+	/**
+	 * Forgets the strategy objects, they are created again when needed.
+	 *
+	 * @see COCacheRegistry
+	 */
+	public void clearStrategies() {
+		synchronized (_strategyObjects) {
+			_strategyObjects.removeAllObjects();
 		}
-		return _strategyObjects.objectForKey(key);
 	}
 
 	/**
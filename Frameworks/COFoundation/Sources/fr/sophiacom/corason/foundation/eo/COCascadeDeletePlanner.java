@@ -0,0 +1,515 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EOAdaptorContext;
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOJoin;
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOClassDescription;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.eocontrol.EOObjectStore;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSet;
+import com.webobjects.foundation.NSValidation.ValidationException;
+import com.webobjects.jdbcadaptor.JDBCContext;
+
+/**
+ * Deletes aggregates with set based SQL statements instead of faulting and deleting every owned object in an editing
+ * context. The plan is built from the delete rules of the class property relationships of the EOModel:
+ * <ul>
+ * <li>Cascade: the destination rows are deleted, their own relationships are planned the same way</li>
+ * <li>Nullify: the foreign key of the destination rows is set to NULL</li>
+ * <li>Deny: the delete is refused if a destination row exists</li>
+ * <li>No Action: nothing is done</li>
+ * </ul>
+ * The entities with <code>checkDelete</code> in their userInfo are checked with COCheckDelete at the set level (one
+ * statement per relationship of COCheckDeleteIndex), the rows deleted by the plan itself are not counted.<p>
+ * Everything runs in one database transaction: the checks, the UPDATE statements, then the DELETE statements from the
+ * leaves to the roots. The rows to delete are selected with key subqueries, so no object is fetched. Only the primary keys
+ * of the deleted and updated rows are read, to forget their snapshots and to tell the editing contexts (deleted objects)
+ * or to invalidate them (updated objects) after the commit.<p>
+ * The business logic of the objects (validateForDelete, mightDelete, ...) is not run, the planner is only for the
+ * aggregates fully described by the model. The model parts that can't be done with one statement per relationship raise
+ * an IllegalStateException when the plan is built, the caller must then delete the objects with the editing context:
+ * compound or multiple join keys, flattened relationships, inheritance, restricting qualifiers, cycles of owned
+ * relationships, cascade on a relationship whose foreign key is in the source row, relationships between models. The
+ * references of the deleted and nullified rows are counted in the transaction and removed from the counts of
+ * COReferenceCounter after the commit.
+ *
+ * @see COCheckDelete.DefaultImplementation
+ */
+public class COCascadeDeletePlanner
+{
+	private static final Logger log = Logger.getLogger(COCascadeDeletePlanner.class);
+
+	/**
+	 * Rows deleted by the plan: the roots or the destination of a cascade relationship.
+	 */
+	private static final class Node
+	{
+		private final EOEntity _entity;
+		private final String _table;
+		private final EOAttribute _primaryKeyAttribute;
+		private final String _primaryKeyColumn;
+		private final Node _parent;
+		/** qualified column of the node table joined to the parent */
+		private final String _column;
+		/** qualified column of the parent table joined to the node */
+		private final String _parentColumn;
+		private final String _path;
+
+		private Node(final EOEntity entity, final Node parent, final String column, final String parentColumn, final String path)
+		{
+			_entity = entity;
+			_table = entity.externalName();
+			_primaryKeyAttribute = entity.primaryKeyAttributes().objectAtIndex(0);
+			_primaryKeyColumn = _table + "." + _primaryKeyAttribute.columnName();
+			_parent = parent;
+			_column = column;
+			_parentColumn = parentColumn;
+			_path = path;
+		}
+
+		/**
+		 * @param rootCondition condition on the table of the root entity
+		 * @return condition on the table of the node that selects the rows to delete
+		 */
+		private String condition(final String rootCondition)
+		{
+			if (_parent == null)
+				return rootCondition;
+			return _column + " IN (SELECT " + _parentColumn + " FROM " + _parent._table + " WHERE " + _parent.condition(rootCondition) + ")";
+		}
+
+		@Override
+		public String toString()
+		{
+			return _path + " (" + _entity.name() + ")";
+		}
+	}
+
+	/**
+	 * Foreign key set to NULL in the rows of another table.
+	 */
+	private static final class Nullification
+	{
+		private final Node _node;
+		private final EOEntity _entity;
+		private final String _table;
+		private final String _column;
+		private final String _unqualifiedColumn;
+		private final String _sourceColumn;
+		private final String _path;
+
+		private Nullification(final Node node, final EOEntity entity, final EOAttribute attribute, final String sourceColumn, final String path)
+		{
+			_node = node;
+			_entity = entity;
+			_table = entity.externalName();
+			_unqualifiedColumn = attribute.columnName();
+			_column = _table + "." + _unqualifiedColumn;
+			_sourceColumn = sourceColumn;
+			_path = path;
+		}
+
+		private String condition(final String rootCondition)
+		{
+			return _column + " IN (SELECT " + _sourceColumn + " FROM " + _node._table + " WHERE " + _node.condition(rootCondition) + ")";
+		}
+	}
+
+	/**
+	 * Rows that forbid the delete (Deny rule or COCheckDelete).
+	 */
+	private static final class Denial
+	{
+		private final Node _node;
+		private final String _table;
+		/** qualified column that references the node, or foreign key of the node if <code>_table</code> is <code>null</code> */
+		private final String _column;
+		private final String _sourceColumn;
+		private final NSArray<Node> _exclusions;
+		private final String _message;
+
+		private Denial(final Node node, final String table, final String column, final String sourceColumn, final NSArray<Node> exclusions, final String message)
+		{
+			_node = node;
+			_table = table;
+			_column = column;
+			_sourceColumn = sourceColumn;
+			_exclusions = exclusions;
+			_message = message;
+		}
+
+		private String sql(final String rootCondition)
+		{
+			if (_table == null)
+				return "SELECT 1 FROM " + _node._table + " WHERE " + _node.condition(rootCondition) + " AND " + _column + " IS NOT NULL";
+			StringBuilder sql = new StringBuilder("SELECT 1 FROM ").append(_table).append(" WHERE ").append(_column);
+			sql.append(" IN (SELECT ").append(_sourceColumn).append(" FROM ").append(_node._table).append(" WHERE ").append(_node.condition(rootCondition)).append(')');
+			for (Node exclusion : _exclusions)
+			{
+				// NOT (column IN (...)) is unknown when the column is NULL, such a row is not deleted by the plan.
+				if (exclusion._column == null)
+					sql.append(" AND NOT (").append(exclusion.condition(rootCondition)).append(')');
+				else
+					sql.append(" AND (").append(exclusion._column).append(" IS NULL OR NOT (").append(exclusion.condition(rootCondition)).append("))");
+			}
+			return sql.toString();
+		}
+	}
+
+	/**
+	 * Immutable plan of the delete of objects of an entity.
+	 */
+	public static final class Plan
+	{
+		private final NSArray<Node> _nodes;
+		private final NSArray<Nullification> _nullifications;
+		private final NSArray<Denial> _denials;
+
+		private Plan(final NSArray<Node> nodes, final NSArray<Nullification> nullifications, final NSArray<Denial> denials)
+		{
+			_nodes = nodes;
+			_nullifications = nullifications;
+			_denials = denials;
+		}
+
+		/**
+		 * @return name of the entity of the roots
+		 */
+		public String entityName()
+		{
+			return _nodes.objectAtIndex(0)._entity.name();
+		}
+
+		/**
+		 * @return number of DELETE statements per chunk of roots
+		 */
+		public int deleteStatementCount()
+		{
+			return _nodes.count();
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder description = new StringBuilder("delete: ").append(_nodes);
+			if (_nullifications.count() > 0)
+			{
+				description.append(" nullify:");
+				for (Nullification nullification : _nullifications)
+					description.append(' ').append(nullification._path);
+			}
+			return description.append(" checks: ").append(_denials.count()).toString();
+		}
+	}
+
+	/**
+	 * Builds the plan of the delete of objects of the entity.
+	 *
+	 * @param entity entity of the roots
+	 * @return the plan
+	 * @exception IllegalStateException if the model can't be deleted with set based statements
+	 */
+	public static Plan planForEntity(final EOEntity entity)
+	{
+		NSMutableArray<Node> nodes = new NSMutableArray<Node>();
+		NSMutableArray<Nullification> nullifications = new NSMutableArray<Nullification>();
+		NSMutableArray<Denial> denials = new NSMutableArray<Denial>();
+		checkEntity(entity, entity.name());
+		addNode(new Node(entity, null, null, null, entity.name()), nodes, nullifications, denials);
+
+		// The COCheckDelete checks need all the nodes to ignore the references from the deleted rows.
+		COCheckDeleteIndex index = COCheckDeleteIndex.currentIndex();
+		for (Node node : nodes)
+		{
+			COCheckDeleteIndex.EntityIndex entityIndex = index.entityIndex(node._entity.name());
+			if (!entityIndex.checkDelete)
+				continue;
+			for (int i = 0; i < entityIndex.relationships.length; i++)
+			{
+				if (!entityIndex.simple[i])
+					throw new IllegalStateException("The relationship " + entityIndex.referencingEntityNames[i] + "." + entityIndex.relationships[i].name()
+							+ " can't be checked with a set based statement.");
+				NSMutableArray<Node> exclusions = new NSMutableArray<Node>();
+				for (Node exclusion : nodes)
+				{
+					if (exclusion._entity.name().equals(entityIndex.referencingEntityNames[i]))
+						exclusions.addObject(exclusion);
+				}
+				denials.addObject(new Denial(node, entityIndex.referencingTables[i], entityIndex.referencingColumns[i], node._primaryKeyColumn, exclusions.immutableClone(),
+						COCheckDelete.DefaultImplementation.ERROR_DEPENDANCES + entityIndex.referencingEntityNames[i]));
+			}
+		}
+		Plan plan = new Plan(nodes.immutableClone(), nullifications.immutableClone(), denials.immutableClone());
+		if (log.isDebugEnabled())
+			log.debug("method: planForEntity: plan: " + plan);
+		return plan;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void addNode(final Node node, final NSMutableArray<Node> nodes, final NSMutableArray<Nullification> nullifications, final NSMutableArray<Denial> denials)
+	{
+		nodes.addObject(node);
+		EOEntity entity = node._entity;
+		NSArray<Object> classProperties = entity.classProperties();
+		for (EORelationship relationship : (NSArray<EORelationship>)entity.relationships())
+		{
+			int deleteRule = relationship.deleteRule();
+			if (deleteRule == EOClassDescription.DeleteRuleNoAction || !classProperties.containsObject(relationship))
+				continue;
+			String path = node._path + "." + relationship.name();
+			if (relationship.isFlattened() || relationship.joins().count() != 1)
+				throw new IllegalStateException("The relationship " + path + " must have one join and must not be flattened.");
+			EOJoin join = relationship.joins().objectAtIndex(0);
+			EOEntity destinationEntity = relationship.destinationEntity();
+			if (destinationEntity.model() != entity.model())
+				throw new IllegalStateException("The relationship " + path + " must be in the model of its entity.");
+			String sourceColumn = node._table + "." + join.sourceAttribute().columnName();
+			// The foreign key is in the source row when the join points to the destination primary key only.
+			boolean sourceHoldsKey = destinationEntity.primaryKeyAttributes().containsObject(join.destinationAttribute())
+					&& !entity.primaryKeyAttributes().containsObject(join.sourceAttribute());
+
+			if (deleteRule == EOClassDescription.DeleteRuleCascade)
+			{
+				if (sourceHoldsKey)
+					throw new IllegalStateException("The cascade relationship " + path + " has its foreign key in the source row.");
+				checkEntity(destinationEntity, path);
+				for (Node ancestor = node; ancestor != null; ancestor = ancestor._parent)
+				{
+					if (ancestor._entity == destinationEntity)
+						throw new IllegalStateException("The cascade relationships are a cycle: " + path);
+				}
+				String column = destinationEntity.externalName() + "." + join.destinationAttribute().columnName();
+				addNode(new Node(destinationEntity, node, column, sourceColumn, path), nodes, nullifications, denials);
+			}
+			else if (deleteRule == EOClassDescription.DeleteRuleNullify)
+			{
+				// The foreign key of the source row is deleted with the row.
+				if (sourceHoldsKey)
+					continue;
+				EOAttribute attribute = join.destinationAttribute();
+				if (destinationEntity.primaryKeyAttributes().containsObject(attribute) || !attribute.allowsNull())
+					throw new IllegalStateException("The relationship " + path + " can't be nullified.");
+				checkEntity(destinationEntity, path);
+				nullifications.addObject(new Nullification(node, destinationEntity, attribute, sourceColumn, path));
+			}
+			else if (deleteRule == EOClassDescription.DeleteRuleDeny)
+			{
+				String message = "Unable to delete, the relationship " + path + " is not empty";
+				if (sourceHoldsKey)
+					denials.addObject(new Denial(node, null, sourceColumn, null, NSArray.<Node>emptyArray(), message));
+				else
+				{
+					checkEntity(destinationEntity, path);
+					String column = destinationEntity.externalName() + "." + join.destinationAttribute().columnName();
+					denials.addObject(new Denial(node, destinationEntity.externalName(), column, sourceColumn, NSArray.<Node>emptyArray(), message));
+				}
+			}
+		}
+	}
+
+	private static void checkEntity(final EOEntity entity, final String path)
+	{
+		if (entity.externalName() == null || entity.isReadOnly())
+			throw new IllegalStateException("The entity " + entity.name() + " of " + path + " must have a table and must not be read only.");
+		if (entity.primaryKeyAttributes().count() != 1)
+			throw new IllegalStateException("The entity " + entity.name() + " of " + path + " must have a single primary key.");
+		if (entity.parentEntity() != null || entity.subEntities().count() > 0 || entity.restrictingQualifier() != null)
+			throw new IllegalStateException("The entity " + entity.name() + " of " + path + " must not use inheritance or a restricting qualifier.");
+	}
+
+	/**
+	 * Deletes the objects and everything they own in the database, in one transaction. The objects must be saved objects of
+	 * the same entity. The editing contexts forget the deleted objects, the nullified objects are invalidated.
+	 *
+	 * @param eos objects of the same entity
+	 * @return number of rows deleted
+	 * @exception IllegalStateException if the model can't be deleted with set based statements or if a transaction is open
+	 * @exception ValidationException if a Deny rule or COCheckDelete refuses the delete, nothing is deleted
+	 */
+	public static int deleteObjects(final NSArray<? extends EOEnterpriseObject> eos)
+	{
+		if (eos == null || eos.count() == 0)
+			return 0;
+		EOEditingContext ec = eos.objectAtIndex(0).editingContext();
+		String entityName = eos.objectAtIndex(0).entityName();
+		EOEntity entity = EOUtilities.entityNamed(ec, entityName);
+		Plan plan = planForEntity(entity);
+		NSMutableArray<Object> primaryKeys = new NSMutableArray<Object>(eos.count());
+		for (EOEnterpriseObject eo : eos)
+		{
+			EOGlobalID gid = ec.globalIDForObject(eo);
+			if (!entityName.equals(eo.entityName()) || eo.editingContext() != ec || !(gid instanceof EOKeyGlobalID) || gid.isTemporary())
+				throw new IllegalArgumentException("The objects must be saved objects of the entity " + entityName + " in the same editing context: " + eo);
+			primaryKeys.addObject(((EOKeyGlobalID)gid).keyValues()[0]);
+		}
+
+		long startTime = System.currentTimeMillis();
+		NSMutableArray<EOGlobalID> deletedGIDs = new NSMutableArray<EOGlobalID>();
+		NSMutableArray<EOGlobalID> updatedGIDs = new NSMutableArray<EOGlobalID>();
+		int rowCount = 0;
+		COReferenceCounter.RemovedReferences removedReferences = COReferenceCounter.isEnabled() ? COReferenceCounter.newRemovedReferences() : null;
+		EODatabaseContext databaseContext = EOUtilities.databaseContextForModelNamed(ec, entity.model().name());
+		databaseContext.lock();
+		try
+		{
+			EOAdaptorChannel channel = databaseContext.availableChannel().adaptorChannel();
+			if (!channel.isOpen())
+				channel.openChannel();
+			EOAdaptorContext adaptorContext = channel.adaptorContext();
+			if (adaptorContext.hasOpenTransaction())
+				throw new IllegalStateException("The cascade delete needs its own transaction.");
+			EOSQLExpression expression = adaptorContext.adaptor().expressionFactory().expressionForEntity(entity);
+			Node root = plan._nodes.objectAtIndex(0);
+			adaptorContext.beginTransaction();
+			boolean succeeded = false;
+			try
+			{
+				Connection connection = ((JDBCContext)adaptorContext).connection();
+				for (int start = 0; start < primaryKeys.count(); start += COCheckDelete.DefaultImplementation.inListSize)
+				{
+					int end = Math.min(start + COCheckDelete.DefaultImplementation.inListSize, primaryKeys.count());
+					StringBuilder rootCondition = new StringBuilder(root._primaryKeyColumn).append(" IN (");
+					for (int i = start; i < end; i++)
+					{
+						if (i > start)
+							rootCondition.append(", ");
+						rootCondition.append(expression.formatValueForAttribute(primaryKeys.objectAtIndex(i), root._primaryKeyAttribute));
+					}
+					rootCondition.append(')');
+					rowCount += deleteChunk(plan, rootCondition.toString(), channel, connection, deletedGIDs, updatedGIDs, removedReferences);
+				}
+				adaptorContext.commitTransaction();
+				succeeded = true;
+			} finally
+			{
+				if (!succeeded)
+					adaptorContext.rollbackTransaction();
+			}
+			databaseContext.database().forgetSnapshotsForGlobalIDs(deletedGIDs);
+		} catch (SQLException e)
+		{
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		} finally
+		{
+			databaseContext.unlock();
+		}
+		if (removedReferences != null)
+			removedReferences.apply();
+
+		// The nullified rows deleted by a cascade must not be faulted again.
+		NSSet<EOGlobalID> deletedGIDSet = new NSSet<EOGlobalID>(deletedGIDs);
+		NSMutableArray<EOGlobalID> invalidatedGIDs = new NSMutableArray<EOGlobalID>(updatedGIDs.count());
+		for (EOGlobalID gid : updatedGIDs)
+		{
+			if (!deletedGIDSet.containsObject(gid))
+				invalidatedGIDs.addObject(gid);
+		}
+		if (deletedGIDs.count() > 0)
+			NSNotificationCenter.defaultCenter().postNotification(EOObjectStore.ObjectsChangedInStoreNotification, databaseContext,
+					new NSDictionary<String, Object>(deletedGIDs.immutableClone(), EOObjectStore.DeletedKey));
+		if (invalidatedGIDs.count() > 0)
+			ec.rootObjectStore().invalidateObjectsWithGlobalIDs(invalidatedGIDs);
+		if (log.isDebugEnabled())
+			log.debug("method: deleteObjects: entityName: " + entityName + " roots: " + eos.count() + " rows deleted: " + rowCount
+					+ " rows updated: " + invalidatedGIDs.count() + " time: " + (System.currentTimeMillis() - startTime) + " ms");
+		return rowCount;
+	}
+
+	private static int deleteChunk(final Plan plan, final String rootCondition, final EOAdaptorChannel channel, final Connection connection,
+			final NSMutableArray<EOGlobalID> deletedGIDs, final NSMutableArray<EOGlobalID> updatedGIDs, final COReferenceCounter.RemovedReferences removedReferences)
+			throws SQLException
+	{
+		Statement statement = connection.createStatement();
+		try
+		{
+			for (Denial denial : plan._denials)
+			{
+				String sql = denial.sql(rootCondition);
+				if (log.isDebugEnabled())
+					log.debug("method: deleteChunk: check: " + sql);
+				ResultSet resultSet = statement.executeQuery(sql);
+				try
+				{
+					if (resultSet.next())
+						throw new ValidationException(denial._message);
+				} finally
+				{
+					resultSet.close();
+				}
+			}
+
+			// The keys are read before any change, the subqueries of the conditions use the rows of the parents.
+			for (Nullification nullification : plan._nullifications)
+			{
+				EOAttribute primaryKeyAttribute = nullification._entity.primaryKeyAttributes().objectAtIndex(0);
+				String keySQL = "SELECT " + nullification._table + "." + primaryKeyAttribute.columnName() + " FROM " + nullification._table
+						+ " WHERE " + nullification.condition(rootCondition);
+				addGlobalIDs(channel, nullification._entity, primaryKeyAttribute, keySQL, updatedGIDs);
+			}
+			for (Node node : plan._nodes)
+				addGlobalIDs(channel, node._entity, node._primaryKeyAttribute,
+						"SELECT " + node._primaryKeyColumn + " FROM " + node._table + " WHERE " + node.condition(rootCondition), deletedGIDs);
+
+			for (Nullification nullification : plan._nullifications)
+			{
+				String sql = "UPDATE " + nullification._table + " SET " + nullification._unqualifiedColumn + " = NULL WHERE " + nullification.condition(rootCondition);
+				if (log.isDebugEnabled())
+					log.debug("method: deleteChunk: update: " + sql);
+				if (removedReferences != null)
+					COReferenceCounter.rowsWillNullify(statement, nullification._entity, nullification._column, nullification.condition(rootCondition), removedReferences);
+				statement.executeUpdate(sql);
+			}
+			int rowCount = 0;
+			for (int i = plan._nodes.count() - 1; i >= 0; i--)
+			{
+				Node node = plan._nodes.objectAtIndex(i);
+				String sql = "DELETE FROM " + node._table + " WHERE " + node.condition(rootCondition);
+				if (log.isDebugEnabled())
+					log.debug("method: deleteChunk: delete: " + sql);
+				// Counted after the nullifications, a nullified row deleted by a cascade doesn't reference anything anymore.
+				if (removedReferences != null)
+					COReferenceCounter.rowsWillDelete(statement, node._entity, node.condition(rootCondition), removedReferences);
+				rowCount += statement.executeUpdate(sql);
+			}
+			return rowCount;
+		} finally
+		{
+			statement.close();
+		}
+	}
+
+	/**
+	 * Reads the primary keys with the adaptor channel so they have the type of the global ids of the editing contexts.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void addGlobalIDs(final EOAdaptorChannel channel, final EOEntity entity, final EOAttribute primaryKeyAttribute, final String sql,
+			final NSMutableArray<EOGlobalID> gids)
+	{
+		channel.evaluateExpression(channel.adaptorContext().adaptor().expressionFactory().expressionForString(sql));
+		channel.setAttributesToFetch(new NSArray<EOAttribute>(primaryKeyAttribute));
+		NSDictionary<String, Object> row;
+		while ((row = channel.fetchRow()) != null)
+			gids.addObject(entity.globalIDForRow(row));
+	}
+}
@@ -1,14 +1,18 @@
 package fr.sophiacom.corason.foundation.eo;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.log4j.Logger;
 
-import com.webobjects.eoaccess.EOEntity;
-import com.webobjects.eoaccess.EOModel;
-import com.webobjects.eoaccess.EOModelGroup;
-import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOEnterpriseObject;
 import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOKeyGlobalID;
 import com.webobjects.eocontrol.EOKeyValueQualifier;
 import com.webobjects.eocontrol.EOQualifier;
 import com.webobjects.foundation.NSArray;
@@ -18,6 +22,8 @@ import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSValidation;
 import com.webobjects.foundation.NSValidation.ValidationException;
 
+import er.extensions.foundation.ERXProperties;
+
 /**
  * COCheckDelete defines a way for an enterprise object to check if it can be removed or not even if the relationships are not
  * declared in the EOModel. That's often the case for "parameters" entities where inverse to many relationships are not in the EOModel
@@ -60,104 +66,301 @@ public interface COCheckDelete
 	public class DefaultImplementation {
 		public static final Object CHECK_DELETE = "checkDelete";
 		public static final String ERROR_DEPENDANCES = "Unable to delete, there is a connection with the entity ";
+		private static final String RESULT_KEY = "R0";
 
 		private static final Logger log = Logger.getLogger(COStampedEnterpriseObject.class);
-		private static NSDictionary<String, NSArray<EORelationship>> checkDeleteDic;
+		static final int inListSize = ERXProperties.intForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COCheckDelete.inListSize", 1000);
+		private static final ConcurrentMap<Class<?>, Boolean> defaultCheckDeleteClasses = new ConcurrentHashMap<Class<?>, Boolean>();
 
 		/**
-		 * Return list of entities.
+		 * Check if the eo can be removed.<p>
+		 * If not, a NSValidation.ValidationException is raised.<br>
+		 * The relationships to check come from COCheckDeleteIndex.<p>
+		 * All the simple relationships (one join to the primary key, no restricting qualifier, same model) are checked with one
+		 * SQL statement (see COCheckDeleteIndex), the other ones with a fetch per relationship. The exception names the first
+		 * entity that references the eo, in the order of the relationships. If the entity trusts its reference counts (see
+		 * COReferenceCounter), the simple relationships are checked in memory without SQL.
 		 *
-		 * @return array of EOntities
+		 * @param eo to check
+		 * @exception NSValidation.ValidationException
 		 */
-		private static NSArray<EOEntity> entitiesList()
+		public static void checkDelete(final EOEnterpriseObject eo) throws NSValidation.ValidationException
 		{
-			NSMutableArray<EOEntity> entitiesArray = new NSMutableArray<EOEntity>();
-			EOModelGroup modelGroup = EOModelGroup.defaultGroup();
+			if (eo == null)
+				throw new IllegalStateException("The enterprise object to check can't be null.");
+
+			COCheckDeleteIndex.EntityIndex entityIndex = COCheckDeleteIndex.currentIndex().entityIndex(eo.entityName());
+			if (entityIndex.relationships.length == 0)
+				return;
+			EOEditingContext ec = eo.editingContext();
+			EOGlobalID gid = ec.globalIDForObject(eo);
+			// A new object can't be referenced by the rows of the database.
+			if (gid == null || gid.isTemporary())
+				return;
 
-			NSArray<EOModel> models = modelGroup.models();
-			for (EOModel model : models)
+			COReferenceCounter.TrackedEntity trackedEntity = COReferenceCounter.trackedEntity(entityIndex);
+			Object primaryKeyValue = ((EOKeyGlobalID)gid).keyValues()[0];
+			NSDictionary<String, Object> sqlResults = NSDictionary.EmptyDictionary;
+			if (entityIndex.simpleCount > 0 && trackedEntity == null)
 			{
-				entitiesArray.addObjectsFromArray(model.entities());
+				String sql = existenceSQL(ec, entityIndex, primaryKeyValue);
+				@SuppressWarnings("unchecked")
+				NSArray<NSDictionary<String, Object>> rows = EOUtilities.rawRowsForSQL(ec, entityIndex.modelName, sql, entityIndex.existenceResultKeys);
+				if (rows.count() > 0)
+					sqlResults = rows.objectAtIndex(0);
 			}
-			if (log.isDebugEnabled())
-				log.debug("method: entitiesList: entitiesArray.size" + entitiesArray.size());
-			return entitiesArray.immutableClone();
+
+			for (int i = 0; i < entityIndex.relationships.length; i++)
+			{
+				boolean referenced;
+				if (entityIndex.simple[i] && trackedEntity != null)
+					referenced = trackedEntity.referenceCount(i, normalizedValue(primaryKeyValue)) > 0;
+				else if (entityIndex.simple[i])
+				{
+					Object value = sqlResults.objectForKey(entityIndex.resultKeys[i]);
+					referenced = value instanceof Number && ((Number)value).intValue() != 0;
+				}
+				else
+					referenced = isReferencedByFetch(eo, entityIndex, i);
+				if (referenced)
+					throw new ValidationException(ERROR_DEPENDANCES + entityIndex.referencingEntityNames[i]);
+			}
+		}
+
+		/**
+		 * Checks a set of objects of the same entity in a few queries and returns the objects that can't be deleted. No
+		 * exception is raised.<p>
+		 * The simple relationships (see COCheckDeleteIndex) are checked with <code>SELECT DISTINCT FK FROM T WHERE FK IN (...)</code>
+		 * statements, the IN lists are cut to the maximum size supported by the database (1000 by default):<br>
+		 * <code>fr.sophiacom.corason.foundation.eo.COCheckDelete.inListSize=1000</code><br>
+		 * The other relationships are checked with a fetch per object that is not already rejected. The new objects are
+		 * never rejected. If the entity trusts its reference counts (see COReferenceCounter), the simple relationships are
+		 * checked in memory without SQL.
+		 *
+		 * @param eos objects of the same entity
+		 * @return the objects referenced by other rows, in the order of <code>eos</code>
+		 * @exception IllegalArgumentException if the objects are not of the same entity
+		 */
+		public static NSArray<EOEnterpriseObject> checkDeleteObjects(final NSArray<? extends EOEnterpriseObject> eos)
+		{
+			NSDictionary<EOGlobalID, String> referencingEntities = referencingEntityNames(eos);
+			NSMutableArray<EOEnterpriseObject> rejectedObjects = new NSMutableArray<EOEnterpriseObject>();
+			for (EOEnterpriseObject eo : eos)
+			{
+				if (referencingEntities.objectForKey(eo.editingContext().globalIDForObject(eo)) != null)
+					rejectedObjects.addObject(eo);
+			}
+			return rejectedObjects.immutableClone();
+		}
+
+		/**
+		 * Checks a set of objects of the same entity and returns the validation exception of the objects that can't be deleted.
+		 *
+		 * @param eos objects of the same entity
+		 * @return the exceptions with the same message as checkDelete(eo), in the order of <code>eos</code>
+		 * @see #checkDeleteObjects(NSArray)
+		 */
+		public static NSArray<ValidationException> checkDeleteExceptions(final NSArray<? extends EOEnterpriseObject> eos)
+		{
+			NSDictionary<EOGlobalID, String> referencingEntities = referencingEntityNames(eos);
+			NSMutableArray<ValidationException> exceptions = new NSMutableArray<ValidationException>();
+			for (EOEnterpriseObject eo : eos)
+			{
+				String referencingEntityName = referencingEntities.objectForKey(eo.editingContext().globalIDForObject(eo));
+				if (referencingEntityName != null)
+					exceptions.addObject(new ValidationException(ERROR_DEPENDANCES + referencingEntityName, eo, null));
+			}
+			return exceptions.immutableClone();
 		}
 
 		/**
-		 * Create a dictionary where the keys are the entity names and the objects, an array of to one relationships
-		 * with no inverse relationships.<p>
-		 * This dictionary contains the relationships where the destination entity is the key of the dictionary.
+		 * Returns for each object referenced by other rows the name of the first entity that references it, in the order of
+		 * the relationships.
 		 *
-		 * @return NSDictionary
+		 * @param eos objects of the same entity
+		 * @return dictionary where the keys are the global ids of the rejected objects
 		 */
-		private static NSDictionary<String, NSArray<EORelationship>> buildRelationshipDictionary(){
-			NSMutableDictionary<String, NSArray<EORelationship>> dictionary = new NSMutableDictionary<String, NSArray<EORelationship>>();
-			NSArray<EOEntity> entities = entitiesList();
+		private static NSDictionary<EOGlobalID, String> referencingEntityNames(final NSArray<? extends EOEnterpriseObject> eos)
+		{
+			NSMutableDictionary<EOGlobalID, String> referencingEntities = new NSMutableDictionary<EOGlobalID, String>();
+			if (eos == null || eos.count() == 0)
+				return referencingEntities;
+			String entityName = eos.objectAtIndex(0).entityName();
+			COCheckDeleteIndex.EntityIndex entityIndex = COCheckDeleteIndex.currentIndex().entityIndex(entityName);
+			if (entityIndex.relationships.length == 0)
+				return referencingEntities;
+			EOEditingContext ec = eos.objectAtIndex(0).editingContext();
+
+			// The persistent objects by normalized primary key.
+			NSMutableDictionary<Object, EOEnterpriseObject> objectsByKey = new NSMutableDictionary<Object, EOEnterpriseObject>();
+			for (EOEnterpriseObject eo : eos)
+			{
+				if (!entityName.equals(eo.entityName()))
+					throw new IllegalArgumentException("The objects must be of the same entity: " + entityName + " " + eo.entityName());
+				EOGlobalID gid = eo.editingContext().globalIDForObject(eo);
+				if (gid != null && !gid.isTemporary())
+					objectsByKey.setObjectForKey(eo, normalizedKey(((EOKeyGlobalID)gid).keyValues()));
+			}
+			if (objectsByKey.count() == 0)
+				return referencingEntities;
 
-			for (EOEntity entity : entities)
+			COReferenceCounter.TrackedEntity trackedEntity = COReferenceCounter.trackedEntity(entityIndex);
+			for (int i = 0; i < entityIndex.relationships.length; i++)
 			{
-				NSArray<EORelationship> relationships = entity.relationships();
-				for (EORelationship relationship : relationships)
+				if (entityIndex.simple[i] && trackedEntity != null)
 				{
-					if((!relationship.isToMany()) && (relationship.inverseRelationship()==null))
+					for (Object key : objectsByKey.allKeys())
 					{
-						if(dictionary.objectForKey(relationship.destinationEntity().name())==null)
-						{
-							dictionary.setObjectForKey(new NSMutableArray<EORelationship>(relationship), relationship.destinationEntity().name());
-						} else
+						if (trackedEntity.referenceCount(i, key) > 0)
 						{
-							NSArray<EORelationship> array = dictionary.objectForKey(relationship.destinationEntity().name());
-							((NSMutableArray<EORelationship>)array).addObject(relationship);
+							EOGlobalID gid = ec.globalIDForObject(objectsByKey.objectForKey(key));
+							if (referencingEntities.objectForKey(gid) == null)
+								referencingEntities.setObjectForKey(entityIndex.referencingEntityNames[i], gid);
 						}
 					}
 				}
-
+				else if (entityIndex.simple[i])
+				{
+					for (Object key : referencedKeys(ec, entityIndex, i, objectsByKey))
+					{
+						EOEnterpriseObject eo = objectsByKey.objectForKey(key);
+						EOGlobalID gid = eo == null ? null : ec.globalIDForObject(eo);
+						if (gid != null && referencingEntities.objectForKey(gid) == null)
+							referencingEntities.setObjectForKey(entityIndex.referencingEntityNames[i], gid);
+					}
+				}
+				else
+				{
+					for (EOEnterpriseObject eo : objectsByKey.allValues())
+					{
+						EOGlobalID gid = ec.globalIDForObject(eo);
+						if (referencingEntities.objectForKey(gid) == null && isReferencedByFetch(eo, entityIndex, i))
+							referencingEntities.setObjectForKey(entityIndex.referencingEntityNames[i], gid);
+					}
+				}
 			}
 			if (log.isDebugEnabled())
-				log.debug("method: buildRelationshipDictionary: dictionary: " + dictionary);
-			return dictionary.immutableClone();
+				log.debug("method: referencingEntityNames: entityName: " + entityName + " objects: " + eos.count() + " rejected: " + referencingEntities.count());
+			return referencingEntities;
 		}
 
 		/**
-		 * Check if the eo can be removed.<p>
-		 * If not, a NSValidation.ValidationException is raised.<br>
-		 * The first time, the EOModels are analyzed and the checkDeleteDic dictionary is created.
+		 * Returns the normalized keys of the objects referenced by the relationship, with chunked IN lists.
 		 *
-		 * @param eo to check
-		 * @exception NSValidation.ValidationException
+		 * @param ec editing context used to run the SQL
+		 * @param entityIndex index of the entity of the objects
+		 * @param relationshipIndex index of a simple relationship
+		 * @param objectsByKey objects to check by normalized primary key
+		 * @return normalized keys
 		 */
-		public static void checkDelete(final EOEnterpriseObject eo) throws NSValidation.ValidationException
+		private static NSArray<Object> referencedKeys(final EOEditingContext ec, final COCheckDeleteIndex.EntityIndex entityIndex, final int relationshipIndex,
+				final NSDictionary<Object, EOEnterpriseObject> objectsByKey)
 		{
-			if (eo == null)
-				throw new IllegalStateException("The enterprise object to check can't be null.");
+			String columnName = entityIndex.referencingColumns[relationshipIndex];
+			EOSQLExpression expression = sqlExpression(ec, entityIndex);
+			NSArray<String> resultKeys = new NSArray<String>(RESULT_KEY);
+
+			NSMutableArray<Object> referencedKeys = new NSMutableArray<Object>();
+			NSArray<EOEnterpriseObject> objects = objectsByKey.allValues();
+			for (int start = 0; start < objects.count(); start += inListSize)
+			{
+				int end = Math.min(start + inListSize, objects.count());
+				StringBuilder sql = new StringBuilder("SELECT DISTINCT ").append(columnName).append(" AS ").append(RESULT_KEY);
+				sql.append(" FROM ").append(entityIndex.referencingTables[relationshipIndex]).append(" WHERE ").append(columnName).append(" IN (");
+				for (int i = start; i < end; i++)
+				{
+					EOKeyGlobalID gid = (EOKeyGlobalID)ec.globalIDForObject(objects.objectAtIndex(i));
+					if (i > start)
+						sql.append(", ");
+					sql.append(expression.formatValueForAttribute(gid.keyValues()[0], entityIndex.primaryKeyAttribute));
+				}
+				sql.append(')');
+				@SuppressWarnings("unchecked")
+				NSArray<NSDictionary<String, Object>> rows = EOUtilities.rawRowsForSQL(ec, entityIndex.modelName, sql.toString(), resultKeys);
+				for (NSDictionary<String, Object> row : rows)
+					referencedKeys.addObject(normalizedValue(row.objectForKey(RESULT_KEY)));
+			}
+			return referencedKeys;
+		}
 
-			if (checkDeleteDic == null)
-				checkDeleteDic = buildRelationshipDictionary();
-			// checkDeleteDic is not null!
-			String entityName = eo.entityName();
-			NSArray<EORelationship> relationships = checkDeleteDic.objectForKey(entityName);
+		/**
+		 * Returns a key that is equal for the same values read from the global id or from the database (an Integer and a
+		 * BigDecimal with the same integer value give the same key).
+		 *
+		 * @param keyValues values of the primary key
+		 * @return key
+		 */
+		private static Object normalizedKey(final Object[] keyValues)
+		{
+			if (keyValues.length == 1)
+				return normalizedValue(keyValues[0]);
+			NSMutableArray<Object> key = new NSMutableArray<Object>(keyValues.length);
+			for (Object value : keyValues)
+				key.addObject(normalizedValue(value));
+			return key;
+		}
 
-			for (EORelationship relationship : relationships)
+		static Object normalizedValue(final Object value)
+		{
+			if (value instanceof Number)
 			{
-				EOQualifier qual = new EOKeyValueQualifier(relationship.name(),EOKeyValueQualifier.QualifierOperatorEqual,eo);
-				EOFetchSpecification fetchSpec = new EOFetchSpecification(relationship.entity().name(),qual,null);
-				fetchSpec.setFetchLimit(1);
-				fetchSpec.setFetchesRawRows(true);
-				fetchSpec.setRawRowKeyPaths(relationship.entity().primaryKeyAttributeNames());
-				@SuppressWarnings("rawtypes") // we don't care about the type, we just check array size
-				NSArray results = eo.editingContext().objectsWithFetchSpecification(fetchSpec);
-				if (log.isDebugEnabled())
-					log.debug("method: checkDelete: relationships: " + relationships);
-
-				if((results != null) && (results.count()>0))
-					throw new ValidationException(ERROR_DEPENDANCES + relationship.entity().name());
+				Number number = (Number)value;
+				if (number.doubleValue() == number.longValue())
+					return Long.valueOf(number.longValue());
+				return number.toString();
 			}
+			return value;
+		}
+
+		/**
+		 * Fetches one row of the relationship entity that references the eo.
+		 *
+		 * @param eo object to check
+		 * @param entityIndex index of the entity of the eo
+		 * @param relationshipIndex index of the to one relationship to the eo
+		 * @return <code>true</code> if a row references the eo
+		 */
+		private static boolean isReferencedByFetch(final EOEnterpriseObject eo, final COCheckDeleteIndex.EntityIndex entityIndex, final int relationshipIndex)
+		{
+			EOQualifier qual = new EOKeyValueQualifier(entityIndex.relationships[relationshipIndex].name(),EOKeyValueQualifier.QualifierOperatorEqual,eo);
+			EOFetchSpecification fetchSpec = new EOFetchSpecification(entityIndex.referencingEntityNames[relationshipIndex],qual,null);
+			fetchSpec.setFetchLimit(1);
+			fetchSpec.setFetchesRawRows(true);
+			fetchSpec.setRawRowKeyPaths(entityIndex.rawRowKeyPaths[relationshipIndex]);
+			@SuppressWarnings("rawtypes") // we don't care about the type, we just check array size
+			NSArray results = eo.editingContext().objectsWithFetchSpecification(fetchSpec);
+			return (results != null) && (results.count()>0);
+		}
+
+		/**
+		 * Returns the statement that tells, in one round trip, which simple relationships reference the row (see
+		 * COCheckDeleteIndex).
+		 *
+		 * @param ec editing context used to find the adaptor
+		 * @param entityIndex index of the entity of the eo to check
+		 * @param primaryKeyValue primary key of the eo
+		 * @return SQL statement
+		 */
+		private static String existenceSQL(final EOEditingContext ec, final COCheckDeleteIndex.EntityIndex entityIndex, final Object primaryKeyValue)
+		{
+			String formattedValue = sqlExpression(ec, entityIndex).formatValueForAttribute(primaryKeyValue, entityIndex.primaryKeyAttribute);
+			String[] fragments = entityIndex.existenceSQLFragments;
+			StringBuilder sql = new StringBuilder(fragments[0]);
+			for (int i = 1; i < fragments.length; i++)
+				sql.append(formattedValue).append(fragments[i]);
+			if (log.isDebugEnabled())
+				log.debug("method: existenceSQL: sql: " + sql);
+			return sql.toString();
+		}
+
+		private static EOSQLExpression sqlExpression(final EOEditingContext ec, final COCheckDeleteIndex.EntityIndex entityIndex)
+		{
+			return EOUtilities.databaseContextForModelNamed(ec, entityIndex.modelName).adaptorContext().adaptor().expressionFactory().expressionForEntity(entityIndex.primaryKeyAttribute.entity());
 		}
 
 		/**
 		 * Return <code>true</code> if the eo can be deleted.<p>
-		 * This method analyzes the EOEntity userInfo to find the key "checkDelete".<br>
+		 * The flag comes from the EOEntity userInfo key "checkDelete" (see COCheckDeleteIndex).<br>
 		 * Return <code>false</code> if the key is missing or if FALSE has been set. Otherwise return <code>true</code>
 		 *
 		 * @param eo object to check
@@ -165,10 +368,37 @@ public interface COCheckDelete
 		 */
 		public static boolean hasToCheckDelete(final EOEnterpriseObject eo)
 		{
-			EOEntity entity = EOModelGroup.defaultGroup().entityForObject(eo);
-			String value = (String)entity.userInfo().objectForKey(CHECK_DELETE);
-			return value == null ? false : Boolean.valueOf(value).booleanValue();
+			return COCheckDeleteIndex.currentIndex().hasToCheckDelete(eo.entityName());
+		}
+
+		/**
+		 * Returns <code>true</code> if the class of the object keeps the checkDelete method of COStampedEnterpriseObject, its
+		 * objects can then be checked with the batch API (checkDeleteExceptions). The result is cached by class.
+		 *
+		 * @param eo
+		 * @return <code>true</code> if the object is checked by this default implementation
+		 */
+		public static boolean usesDefaultCheckDelete(final EOEnterpriseObject eo)
+		{
+			Class<?> eoClass = eo.getClass();
+			Boolean usesDefaultCheckDelete = defaultCheckDeleteClasses.get(eoClass);
+			if (usesDefaultCheckDelete == null)
+			{
+				usesDefaultCheckDelete = Boolean.FALSE;
+				if (COStampedEnterpriseObject.class.isAssignableFrom(eoClass))
+				{
+					try
+					{
+						Method checkDelete = eoClass.getMethod("checkDelete");
+						usesDefaultCheckDelete = Boolean.valueOf(checkDelete.getDeclaringClass() == COStampedEnterpriseObject.class);
+					} catch (NoSuchMethodException e)
+					{
+						log.error("method: usesDefaultCheckDelete: class: " + eoClass.getName(), e);
+					}
+				}
+				defaultCheckDeleteClasses.put(eoClass, usesDefaultCheckDelete);
+			}
+			return usesDefaultCheckDelete.booleanValue();
 		}
 	}
 }
-
@@ -0,0 +1,311 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOModel;
+import com.webobjects.eoaccess.EOModelGroup;
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+/**
+ * Immutable index used by COCheckDelete.DefaultImplementation. For each entity of the default model group, it gives the
+ * <code>checkDelete</code> flag of the entity userInfo and the to one relationships with no inverse relationship that
+ * point to the entity, with everything needed to check them (raw row key paths, table and column names).<p>
+ * The index is built the first time it's used (COCoreApplication builds it at startup) and built again after a model is
+ * added to or invalidated in the model group. The lookups don't allocate anything and don't need any lock.
+ *
+ * @see COCheckDelete.DefaultImplementation
+ */
+public final class COCheckDeleteIndex
+{
+	private static final Logger log = Logger.getLogger(COCheckDeleteIndex.class);
+	private static final EntityIndex EMPTY_ENTITY_INDEX = new EntityIndex();
+	private static volatile COCheckDeleteIndex currentIndex = null;
+	private static final Observer observer = new Observer();
+
+	static
+	{
+		NSSelector<Void> selector = new NSSelector<Void>("modelGroupDidChange", new Class[] {NSNotification.class});
+		NSNotificationCenter.defaultCenter().addObserver(observer, selector, EOModelGroup.ModelAddedNotification, null);
+		NSNotificationCenter.defaultCenter().addObserver(observer, selector, EOModelGroup.ModelInvalidatedNotification, null);
+	}
+
+	/**
+	 * Drops the index when the model group changes, it will be built again the next time it's used.
+	 */
+	public static class Observer
+	{
+		public void modelGroupDidChange(final NSNotification notification)
+		{
+			if (log.isDebugEnabled())
+				log.debug("method: modelGroupDidChange: " + notification.name());
+			// Waits for a build in progress so it can't publish an index of the old model group.
+			synchronized (COCheckDeleteIndex.class)
+			{
+				currentIndex = null;
+			}
+		}
+	}
+
+	private final Map<String, EntityIndex> _entityIndexes;
+
+	/**
+	 * What COCheckDelete needs to know about an entity. The arrays are indexed by relationship.
+	 */
+	static final class EntityIndex
+	{
+		/** <code>null</code> for the entities without index */
+		final String entityName;
+		final boolean checkDelete;
+		/** <code>true</code> if the references to the entity are counted in memory (see COReferenceCounter), only with a single primary key */
+		final boolean referenceCounted;
+		/** <code>true</code> if the counts replace the SQL of COCheckDelete, the referencing rows are only written by this application */
+		final boolean referenceCountTrusted;
+		final EORelationship[] relationships;
+		final String[] referencingEntityNames;
+		final NSArray<String>[] rawRowKeyPaths;
+		/** <code>true</code> if the relationship can be checked with SQL: one join to the single primary key, no restricting qualifier, same model */
+		final boolean[] simple;
+		final int simpleCount;
+		/** table of the referencing entity for the simple relationships */
+		final String[] referencingTables;
+		/** qualified foreign key column for the simple relationships */
+		final String[] referencingColumns;
+		/** column of the relationship in the result of the existence SQL, <code>null</code> if the relationship is not simple */
+		final String[] resultKeys;
+		/** the existence SQL of the simple relationships is <code>fragments[0] + value + fragments[1] + ... + value + fragments[n]</code> */
+		final String[] existenceSQLFragments;
+		final NSArray<String> existenceResultKeys;
+		final String modelName;
+		final String tableName;
+		final EOAttribute primaryKeyAttribute;
+		final String primaryKeyColumn;
+
+		@SuppressWarnings("unchecked")
+		private EntityIndex()
+		{
+			entityName = null;
+			checkDelete = false;
+			referenceCounted = false;
+			referenceCountTrusted = false;
+			relationships = new EORelationship[0];
+			referencingEntityNames = new String[0];
+			rawRowKeyPaths = new NSArray[0];
+			simple = new boolean[0];
+			simpleCount = 0;
+			referencingTables = new String[0];
+			referencingColumns = new String[0];
+			resultKeys = new String[0];
+			existenceSQLFragments = new String[0];
+			existenceResultKeys = NSArray.emptyArray();
+			modelName = null;
+			tableName = null;
+			primaryKeyAttribute = null;
+			primaryKeyColumn = null;
+		}
+
+		@SuppressWarnings("unchecked")
+		private EntityIndex(final EOEntity entity, final NSArray<EORelationship> inboundRelationships)
+		{
+			entityName = entity.name();
+			modelName = entity.model().name();
+			tableName = entity.externalName();
+			NSArray<EOAttribute> primaryKeyAttributes = entity.primaryKeyAttributes();
+			primaryKeyAttribute = primaryKeyAttributes.count() == 1 ? primaryKeyAttributes.objectAtIndex(0) : null;
+			NSDictionary<String, Object> userInfo = entity.userInfo();
+			Object value = userInfo == null ? null : userInfo.objectForKey(COCheckDelete.DefaultImplementation.CHECK_DELETE);
+			checkDelete = value == null ? false : Boolean.valueOf(value.toString()).booleanValue();
+			value = userInfo == null ? null : userInfo.objectForKey(COReferenceCounter.REFERENCE_COUNT);
+			// The counts are keyed by a single primary key value.
+			referenceCounted = value != null && primaryKeyAttribute != null && Boolean.valueOf(value.toString()).booleanValue();
+			value = userInfo == null ? null : userInfo.objectForKey(COReferenceCounter.REFERENCE_COUNT_TRUSTED);
+			referenceCountTrusted = referenceCounted && value != null && Boolean.valueOf(value.toString()).booleanValue();
+			primaryKeyColumn = primaryKeyAttribute == null ? null : tableName + "." + primaryKeyAttribute.columnName();
+
+			int count = inboundRelationships.count();
+			relationships = new EORelationship[count];
+			referencingEntityNames = new String[count];
+			rawRowKeyPaths = new NSArray[count];
+			simple = new boolean[count];
+			referencingTables = new String[count];
+			referencingColumns = new String[count];
+			resultKeys = new String[count];
+			NSMutableArray<String> aResultKeys = new NSMutableArray<String>();
+			int aSimpleCount = 0;
+			for (int i = 0; i < count; i++)
+			{
+				EORelationship relationship = inboundRelationships.objectAtIndex(i);
+				EOEntity sourceEntity = relationship.entity();
+				relationships[i] = relationship;
+				referencingEntityNames[i] = sourceEntity.name();
+				rawRowKeyPaths[i] = sourceEntity.primaryKeyAttributeNames().immutableClone();
+				simple[i] = primaryKeyAttribute != null && tableName != null && !relationship.isFlattened() && relationship.joins().count() == 1
+						&& relationship.joins().objectAtIndex(0).destinationAttribute() == primaryKeyAttribute
+						&& sourceEntity.restrictingQualifier() == null
+						&& sourceEntity.model() == entity.model()
+						&& sourceEntity.externalName() != null;
+				if (simple[i])
+				{
+					referencingTables[i] = sourceEntity.externalName();
+					referencingColumns[i] = referencingTables[i] + "." + relationship.joins().objectAtIndex(0).sourceAttribute().columnName();
+					resultKeys[i] = "R" + aSimpleCount;
+					aResultKeys.addObject(resultKeys[i]);
+					aSimpleCount++;
+				}
+			}
+			simpleCount = aSimpleCount;
+			existenceResultKeys = aResultKeys.immutableClone();
+			existenceSQLFragments = existenceSQLFragments();
+		}
+
+		/**
+		 * Cuts <code>SELECT CASE WHEN EXISTS (SELECT 1 FROM T1 WHERE T1.FK = ?) THEN 1 ELSE 0 END AS R0, ... FROM T WHERE T.ID = ?</code>
+		 * around the values.
+		 *
+		 * @return fragments of the existence SQL
+		 */
+		private String[] existenceSQLFragments()
+		{
+			if (simpleCount == 0)
+				return new String[0];
+			String[] fragments = new String[simpleCount + 2];
+			StringBuilder sql = new StringBuilder("SELECT ");
+			int fragment = 0;
+			for (int i = 0; i < relationships.length; i++)
+			{
+				if (!simple[i])
+					continue;
+				if (fragment > 0)
+					sql.append(") THEN 1 ELSE 0 END AS R").append(fragment - 1).append(", ");
+				sql.append("CASE WHEN EXISTS (SELECT 1 FROM ").append(referencingTables[i]).append(" WHERE ").append(referencingColumns[i]).append(" = ");
+				fragments[fragment++] = sql.toString();
+				sql.setLength(0);
+			}
+			sql.append(") THEN 1 ELSE 0 END AS R").append(simpleCount - 1);
+			sql.append(" FROM ").append(tableName).append(" WHERE ").append(primaryKeyColumn).append(" = ");
+			fragments[fragment++] = sql.toString();
+			fragments[fragment] = "";
+			return fragments;
+		}
+
+	}
+
+	private COCheckDeleteIndex(final Map<String, EntityIndex> entityIndexes)
+	{
+		_entityIndexes = Collections.unmodifiableMap(entityIndexes);
+	}
+
+	/**
+	 * Returns the index of the default model group, it's built if needed.
+	 *
+	 * @return the current index
+	 */
+	public static COCheckDeleteIndex currentIndex()
+	{
+		COCheckDeleteIndex index = currentIndex;
+		if (index == null)
+		{
+			synchronized (COCheckDeleteIndex.class)
+			{
+				index = currentIndex;
+				if (index == null)
+				{
+					index = build(EOModelGroup.defaultGroup());
+					currentIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Walks all the entities of the model group once.
+	 *
+	 * @param modelGroup
+	 * @return new index
+	 */
+	private static COCheckDeleteIndex build(final EOModelGroup modelGroup)
+	{
+		long startTime = System.currentTimeMillis();
+		Map<String, NSMutableArray<EORelationship>> inboundRelationships = new HashMap<String, NSMutableArray<EORelationship>>();
+		NSMutableArray<EOEntity> entities = new NSMutableArray<EOEntity>();
+		for (EOModel model : modelGroup.models())
+		{
+			for (EOEntity entity : model.entities())
+			{
+				entities.addObject(entity);
+				for (EORelationship relationship : entity.relationships())
+				{
+					if (!relationship.isToMany() && relationship.inverseRelationship() == null)
+					{
+						String destinationName = relationship.destinationEntity().name();
+						NSMutableArray<EORelationship> relationships = inboundRelationships.get(destinationName);
+						if (relationships == null)
+						{
+							relationships = new NSMutableArray<EORelationship>();
+							inboundRelationships.put(destinationName, relationships);
+						}
+						relationships.addObject(relationship);
+					}
+				}
+			}
+		}
+		Map<String, EntityIndex> entityIndexes = new HashMap<String, EntityIndex>(entities.count() * 2);
+		for (EOEntity entity : entities)
+		{
+			NSArray<EORelationship> relationships = inboundRelationships.get(entity.name());
+			entityIndexes.put(entity.name(), new EntityIndex(entity, relationships == null ? NSArray.<EORelationship>emptyArray() : relationships));
+		}
+		if (log.isDebugEnabled())
+			log.debug("method: build: entities: " + entities.count() + " time: " + (System.currentTimeMillis() - startTime) + " ms");
+		return new COCheckDeleteIndex(entityIndexes);
+	}
+
+	/**
+	 * @param entityName
+	 * @return the index of the entity (an empty one if the entity is unknown)
+	 */
+	EntityIndex entityIndex(final String entityName)
+	{
+		EntityIndex entityIndex = _entityIndexes.get(entityName);
+		return entityIndex == null ? EMPTY_ENTITY_INDEX : entityIndex;
+	}
+
+	/**
+	 * @return names of the indexed entities
+	 */
+	Set<String> entityNames()
+	{
+		return _entityIndexes.keySet();
+	}
+
+	/**
+	 * @param entityName
+	 * @return <code>true</code> if the userInfo of the entity sets <code>checkDelete</code> to true
+	 */
+	public boolean hasToCheckDelete(final String entityName)
+	{
+		return entityIndex(entityName).checkDelete;
+	}
+
+	/**
+	 * @param entityName
+	 * @return number of to one relationships to check before deleting an object of the entity
+	 */
+	public int inboundRelationshipCount(final String entityName)
+	{
+		return entityIndex(entityName).relationships.length;
+	}
+}
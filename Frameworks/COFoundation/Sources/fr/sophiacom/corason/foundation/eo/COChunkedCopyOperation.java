@@ -0,0 +1,413 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSTimestamp;
+
+import er.corebusinesslogic.ERCStampedEnterpriseObject;
+import er.extensions.eof.ERXBatchFetchUtilities;
+import er.extensions.eof.ERXEOGlobalIDUtilities;
+import er.extensions.eof.ERXGenericRecord;
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.eo.COCopyable.COCopyMode;
+import fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory;
+
+/**
+ * Copy of a very large graph of COCopyable objects in bounded memory. The source objects are read in their own editing
+ * context and the copies are created in a destination editing context (both from
+ * COEditingContextFactory.newManualLockingEditingContext()), the destination is saved and reset every
+ * <code>chunkSize</code> copies and the source is reset between the batches of objects. Only a map from the global id of
+ * each source object to the global id of its copy is kept for the whole copy:<br>
+ * <code>fr.sophiacom.corason.foundation.eo.COChunkedCopyOperation.chunkSize=1000</code><p>
+ * The copies get their primary key when they are created (ERXGenericRecord.permanentGlobalID()) so a copy saved in a
+ * previous chunk is referenced by a fault. To never update a saved copy, an object is copied after the targets of its to
+ * one relationships whose foreign key is in its row, these relationships are set on creation. The other relationships
+ * are set from the other side when possible (the to one inverse relationship of the copied destination), otherwise on
+ * the copy of the source, which is then fetched again if its chunk is already saved.<p>
+ * The copy follows the copy policies of the copy context (COCopyPolicy) and the copyable relationships of COCopyPlan,
+ * like COCopyable.Utility.deepCopy and shallowCopy. A source with the REFERENCE mode is its own copy. The objects with their own copy or duplicate method can't be copied this way, they raise an
+ * IllegalStateException, like a cycle of to one relationships that hold a foreign key. The copy is not atomic: the chunks
+ * already saved stay in the database if an exception is raised. The memory still grows with the largest to many
+ * relationship of a single object, its destination objects are read at once.
+ *
+ * @see COCopyOperation
+ */
+public class COChunkedCopyOperation
+{
+	private static final Logger log = Logger.getLogger(COChunkedCopyOperation.class);
+	private static final int defaultChunkSize = ERXProperties.intForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COChunkedCopyOperation.chunkSize", 1000);
+
+	private final String _copyContext;
+	private final Map<EOGlobalID, EOGlobalID> _destinationGlobalIDs = new HashMap<EOGlobalID, EOGlobalID>();
+	/** source objects copied with the DEEP mode */
+	private final Set<EOGlobalID> _deepSourceGlobalIDs = new HashSet<EOGlobalID>();
+	/** copies of the current chunk by destination global id, they are not registered with it before the save */
+	private final Map<EOGlobalID, EOEnterpriseObject> _chunkObjects = new HashMap<EOGlobalID, EOEnterpriseObject>();
+	/** source objects whose relationships are still to copy */
+	private final Deque<EOGlobalID> _tasks = new ArrayDeque<EOGlobalID>();
+	private int _chunkSize = defaultChunkSize;
+	private EOEditingContext _sourceEditingContext;
+	private EOEditingContext _destinationEditingContext;
+	private int _copiedObjectCount;
+	private int _chunkCount;
+
+	/**
+	 * @param copyContext a context that can be passed to all objects involved by the copy process
+	 */
+	public COChunkedCopyOperation(final String copyContext)
+	{
+		_copyContext = copyContext;
+	}
+
+	public void setChunkSize(final int chunkSize)
+	{
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("The chunk size must be positive.");
+		_chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return the context of the copy
+	 */
+	public String copyContext()
+	{
+		return _copyContext;
+	}
+
+	/**
+	 * @return number of copies saved
+	 */
+	public int copiedObjectCount()
+	{
+		return _copiedObjectCount;
+	}
+
+	/**
+	 * @return number of saves of the destination editing context
+	 */
+	public int chunkCount()
+	{
+		return _chunkCount;
+	}
+
+	/**
+	 * @param sourceGlobalID global id of a source object
+	 * @return global id of its copy, <code>null</code> if it has not been copied
+	 */
+	public EOGlobalID destinationGlobalIDForSourceGlobalID(final EOGlobalID sourceGlobalID)
+	{
+		return _destinationGlobalIDs.get(sourceGlobalID);
+	}
+
+	/**
+	 * Copies the object and the objects it reaches, the copies are saved.
+	 *
+	 * @param source saved object
+	 * @return global id of the copy of the source, use faultForGlobalID to get it in an editing context
+	 */
+	public EOGlobalID copy(final EOEnterpriseObject source)
+	{
+		return copyObjects(new NSArray<EOEnterpriseObject>(source)).objectAtIndex(0);
+	}
+
+	/**
+	 * Copies the objects and the objects they reach, the copies are saved.
+	 *
+	 * @param sources saved objects
+	 * @return global ids of the copies in the order of <code>sources</code>
+	 */
+	public NSArray<EOGlobalID> copyObjects(final NSArray<? extends EOEnterpriseObject> sources)
+	{
+		NSMutableArray<EOGlobalID> sourceGlobalIDs = new NSMutableArray<EOGlobalID>(sources.count());
+		for (EOEnterpriseObject source : sources)
+		{
+			EOGlobalID gid = source.editingContext().globalIDForObject(source);
+			if (gid == null || gid.isTemporary())
+				throw new IllegalArgumentException("The objects to copy must be saved: " + source);
+			sourceGlobalIDs.addObject(gid);
+		}
+
+		long startTime = System.currentTimeMillis();
+		_sourceEditingContext = COEditingContextFactory.newManualLockingEditingContext();
+		_destinationEditingContext = COEditingContextFactory.newManualLockingEditingContext();
+		_sourceEditingContext.lock();
+		_destinationEditingContext.lock();
+		try
+		{
+			NSMutableArray<EOGlobalID> destinationGlobalIDs = new NSMutableArray<EOGlobalID>(sources.count());
+			for (EOGlobalID gid : sourceGlobalIDs)
+			{
+				EOEnterpriseObject source = _sourceEditingContext.faultForGlobalID(gid, _sourceEditingContext);
+				COCopyMode mode = COCopyPolicy.policyForObject(source, _copyContext).mode;
+				destinationGlobalIDs.addObject(COCopyMode.REFERENCE.equals(mode) ? gid : ensureCopy(source, COCopyMode.DEEP.equals(mode)));
+				runTasks();
+			}
+			saveChunk();
+			if (log.isDebugEnabled())
+				log.debug("method: copyObjects: sources: " + sources.count() + " copies: " + _copiedObjectCount + " chunks: " + _chunkCount
+						+ " time: " + (System.currentTimeMillis() - startTime) + " ms");
+			return destinationGlobalIDs.immutableClone();
+		} finally
+		{
+			_chunkObjects.clear();
+			_destinationEditingContext.unlock();
+			_sourceEditingContext.unlock();
+			_destinationEditingContext.dispose();
+			_sourceEditingContext.dispose();
+			_destinationEditingContext = null;
+			_sourceEditingContext = null;
+		}
+	}
+
+	/**
+	 * Copies the relationships of the queued source objects, by batches of <code>chunkSize</code> objects fetched at once.
+	 */
+	private void runTasks()
+	{
+		while (!_tasks.isEmpty())
+		{
+			NSMutableArray<EOGlobalID> gids = new NSMutableArray<EOGlobalID>(Math.min(_chunkSize, _tasks.size()));
+			while (!_tasks.isEmpty() && gids.count() < _chunkSize)
+				gids.addObject(_tasks.pollFirst());
+			// The source objects of the previous batch are released.
+			_sourceEditingContext.reset();
+			@SuppressWarnings("unchecked")
+			NSArray<EOEnterpriseObject> sources = ERXEOGlobalIDUtilities.fetchObjectsWithGlobalIDs(_sourceEditingContext, gids);
+			prefetchRelationships(sources);
+			for (EOEnterpriseObject source : sources)
+				copyRelationships(source);
+		}
+	}
+
+	private void prefetchRelationships(final NSArray<EOEnterpriseObject> sources)
+	{
+		Map<String, NSMutableArray<EOEnterpriseObject>> objectsByEntity = new LinkedHashMap<String, NSMutableArray<EOEnterpriseObject>>();
+		for (EOEnterpriseObject eo : sources)
+		{
+			NSMutableArray<EOEnterpriseObject> objects = objectsByEntity.get(eo.entityName());
+			if (objects == null)
+			{
+				objects = new NSMutableArray<EOEnterpriseObject>();
+				objectsByEntity.put(eo.entityName(), objects);
+			}
+			objects.addObject(eo);
+		}
+		for (NSMutableArray<EOEnterpriseObject> objects : objectsByEntity.values())
+		{
+			COCopyPlan plan = COCopyPlan.planForObject(objects.objectAtIndex(0));
+			if (plan.relationships.length > 0)
+				ERXBatchFetchUtilities.batchFetch(objects, new NSArray<String>(plan.relationshipNames), true);
+		}
+	}
+
+	/**
+	 * Returns the global id of the copy of the source, the source and the missing targets of its foreign key
+	 * relationships are copied first if needed. An explicit stack is used instead of the recursion.
+	 */
+	private EOGlobalID ensureCopy(final EOEnterpriseObject source, final boolean deep)
+	{
+		EOGlobalID sourceGlobalID = _sourceEditingContext.globalIDForObject(source);
+		EOGlobalID destinationGlobalID = _destinationGlobalIDs.get(sourceGlobalID);
+		if (destinationGlobalID != null)
+			return destinationGlobalID;
+
+		Deque<EOEnterpriseObject> stack = new ArrayDeque<EOEnterpriseObject>();
+		Deque<Boolean> deepStack = new ArrayDeque<Boolean>();
+		Set<EOGlobalID> pendingGlobalIDs = new HashSet<EOGlobalID>();
+		stack.push(source);
+		deepStack.push(Boolean.valueOf(deep));
+		pendingGlobalIDs.add(sourceGlobalID);
+		while (!stack.isEmpty())
+		{
+			EOEnterpriseObject eo = stack.peek();
+			boolean eoDeep = deepStack.peek().booleanValue();
+			COCopyPlan plan = COCopyPlan.planForObject(eo);
+			COCopyPolicy policy = plan.policy(_copyContext);
+			EOEnterpriseObject dependency = null;
+			COCopyMode dependencyMode = null;
+			for (int r = 0; r < plan.relationships.length && dependency == null; r++)
+			{
+				if (!plan.foreignKeyInSource[r])
+					continue;
+				Object target = eo.valueForKey(plan.relationshipNames[r]);
+				if (!(target instanceof COCopyable) || _destinationGlobalIDs.containsKey(_sourceEditingContext.globalIDForObject((EOEnterpriseObject)target)))
+					continue;
+				COCopyMode mode = destinationMode(policy, r, eoDeep, (EOEnterpriseObject)target);
+				if (COCopyMode.SHALLOW.equals(mode) || COCopyMode.DEEP.equals(mode))
+				{
+					dependency = (EOEnterpriseObject)target;
+					dependencyMode = mode;
+				}
+			}
+			if (dependency == null)
+			{
+				stack.pop();
+				createCopy(eo, deepStack.pop().booleanValue());
+			}
+			else if (pendingGlobalIDs.add(_sourceEditingContext.globalIDForObject(dependency)))
+			{
+				stack.push(dependency);
+				deepStack.push(Boolean.valueOf(COCopyMode.DEEP.equals(dependencyMode)));
+			}
+			else
+				throw new IllegalStateException("The to one relationships of " + eo.entityName() + " with a foreign key form a cycle through " + dependency.entityName());
+		}
+		return _destinationGlobalIDs.get(sourceGlobalID);
+	}
+
+	/**
+	 * @return how the target of the relationship is copied, see COCopyPolicy.destinationMode
+	 */
+	private COCopyMode destinationMode(final COCopyPolicy policy, final int relationshipIndex, final boolean deep, final EOEnterpriseObject target)
+	{
+		COCopyMode mode = policy.relationshipMode(relationshipIndex, deep);
+		if (!COCopyMode.DEEP.equals(mode))
+			return mode;
+		return target instanceof COCopyable ? COCopyPolicy.policyForObject(target, _copyContext).mode : COCopyMode.REFERENCE;
+	}
+
+	/**
+	 * Same as COCopyable.Utility.newInstance and copyAttributes in the destination editing context, the foreign key
+	 * relationships are set and the other ones are queued.
+	 */
+	private void createCopy(final EOEnterpriseObject source, final boolean deep)
+	{
+		if (!COCopyOperation.usesDefaultDuplicate(source))
+			throw new IllegalStateException("The objects of " + source.getClass().getName() + " have their own copy and can't be copied in chunks.");
+		EOEnterpriseObject copy = EOUtilities.createAndInsertInstance(_destinationEditingContext, source.entityName());
+		// The objects created by awakeFromInsertion are in the destination editing context.
+		COCopyable.Utility.cleanRelationships(copy, copy);
+		COCopyable.Utility.copyAttributes(source, copy);
+		NSTimestamp now = new NSTimestamp();
+		copy.takeValueForKey(now, ERCStampedEnterpriseObject.Keys.CREATED);
+		copy.takeValueForKey(now, ERCStampedEnterpriseObject.Keys.LAST_MODIFIED);
+
+		boolean hasOtherRelationships = false;
+		COCopyPlan plan = COCopyPlan.planForObject(source);
+		COCopyPolicy policy = plan.policy(_copyContext);
+		for (int r = 0; r < plan.relationships.length; r++)
+		{
+			if (!plan.foreignKeyInSource[r])
+			{
+				hasOtherRelationships = true;
+				continue;
+			}
+			EOEnterpriseObject target = (EOEnterpriseObject)source.valueForKey(plan.relationshipNames[r]);
+			if (target == null || COCopyMode.SKIP.equals(policy.relationshipMode(r, deep)))
+				continue;
+			// The target is copied (see ensureCopy) or referenced.
+			EOGlobalID targetGlobalID = _sourceEditingContext.globalIDForObject(target);
+			EOGlobalID targetCopyGlobalID = _destinationGlobalIDs.get(targetGlobalID);
+			copy.takeStoredValueForKey(destinationObject(targetCopyGlobalID != null ? targetCopyGlobalID : targetGlobalID), plan.relationshipNames[r]);
+		}
+
+		EOGlobalID sourceGlobalID = _sourceEditingContext.globalIDForObject(source);
+		EOGlobalID destinationGlobalID = ((ERXGenericRecord)copy).permanentGlobalID();
+		_destinationGlobalIDs.put(sourceGlobalID, destinationGlobalID);
+		if (deep)
+			_deepSourceGlobalIDs.add(sourceGlobalID);
+		_chunkObjects.put(destinationGlobalID, copy);
+		if (hasOtherRelationships)
+			_tasks.addLast(sourceGlobalID);
+		if (_chunkObjects.size() >= _chunkSize)
+			saveChunk();
+	}
+
+	/**
+	 * Same as COCopyable.Utility.deepCopyRelationship and shallowCopyRelatedObjects for the relationships that are not
+	 * set by createCopy.
+	 */
+	private void copyRelationships(final EOEnterpriseObject source)
+	{
+		EOGlobalID sourceGlobalID = _sourceEditingContext.globalIDForObject(source);
+		EOGlobalID copyGlobalID = _destinationGlobalIDs.get(sourceGlobalID);
+		boolean deep = _deepSourceGlobalIDs.contains(sourceGlobalID);
+		COCopyPlan plan = COCopyPlan.planForObject(source);
+		COCopyPolicy policy = plan.policy(_copyContext);
+		for (int r = 0; r < plan.relationships.length; r++)
+		{
+			if (plan.foreignKeyInSource[r] || COCopyMode.SKIP.equals(policy.relationshipMode(r, deep)))
+				continue;
+			String relationshipName = plan.relationshipNames[r];
+			NSArray<EOEnterpriseObject> targets;
+			if (plan.toMany[r])
+			{
+				@SuppressWarnings("unchecked")
+				NSArray<EOEnterpriseObject> relatedObjects = (NSArray<EOEnterpriseObject>)source.valueForKey(relationshipName);
+				targets = relatedObjects.immutableClone();
+			}
+			else
+			{
+				EOEnterpriseObject target = (EOEnterpriseObject)source.valueForKey(relationshipName);
+				targets = target == null ? NSArray.<EOEnterpriseObject>emptyArray() : new NSArray<EOEnterpriseObject>(target);
+			}
+			EORelationship inverseRelationship = plan.relationships[r].inverseRelationship();
+			for (EOEnterpriseObject target : targets)
+			{
+				EOGlobalID targetGlobalID = _sourceEditingContext.globalIDForObject(target);
+				EOGlobalID targetCopyGlobalID;
+				COCopyMode mode = destinationMode(policy, r, deep, target);
+				if (COCopyMode.SHALLOW.equals(mode) || COCopyMode.DEEP.equals(mode))
+				{
+					boolean targetDeep = COCopyMode.DEEP.equals(mode);
+					targetCopyGlobalID = ensureCopy(target, targetDeep);
+					// The copy of the target has set its foreign key to the copy of the source.
+					if (inverseRelationship != null && setsForeignKey(target, inverseRelationship.name(), targetDeep))
+						continue;
+				}
+				else
+				{
+					targetCopyGlobalID = plan.toMany[r] ? null : _destinationGlobalIDs.get(targetGlobalID);
+					if (targetCopyGlobalID == null)
+						targetCopyGlobalID = targetGlobalID;
+				}
+				destinationObject(copyGlobalID).addObjectToBothSidesOfRelationshipWithKey(destinationObject(targetCopyGlobalID), relationshipName);
+			}
+		}
+	}
+
+	private boolean setsForeignKey(final EOEnterpriseObject eo, final String relationshipName, final boolean deep)
+	{
+		COCopyPlan plan = COCopyPlan.planForObject(eo);
+		int index = plan.indexOfRelationship(relationshipName);
+		return index >= 0 && plan.foreignKeyInSource[index] && !COCopyMode.SKIP.equals(plan.policy(_copyContext).relationshipMode(index, deep));
+	}
+
+	/**
+	 * @return the copy of the current chunk or a fault in the destination editing context
+	 */
+	private EOEnterpriseObject destinationObject(final EOGlobalID gid)
+	{
+		EOEnterpriseObject eo = _chunkObjects.get(gid);
+		return eo != null ? eo : _destinationEditingContext.faultForGlobalID(gid, _destinationEditingContext);
+	}
+
+	private void saveChunk()
+	{
+		if (_destinationEditingContext.hasChanges())
+		{
+			_destinationEditingContext.saveChanges();
+			_chunkCount++;
+		}
+		_copiedObjectCount += _chunkObjects.size();
+		_chunkObjects.clear();
+		_destinationEditingContext.reset();
+		if (log.isDebugEnabled())
+			log.debug("method: saveChunk: chunk: " + _chunkCount + " copies: " + _copiedObjectCount + " pending: " + _tasks.size());
+	}
+}
@@ -0,0 +1,252 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOJoin;
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.eo.COCopyable.COCopyMode;
+
+/**
+ * Dry run of a copy: estimates the number of objects a copy would create, per entity, with COUNT statements instead of
+ * faulting the objects. The walk follows the relationships of COCopyable.DefaultImplementation.duplicate with the copy
+ * policies of the copy context (see COCopyPolicy): the copyable relationships of COCopyPlan (the
+ * <code>isAttributeCopyable</code> userInfo key), the owned ones for the SHALLOW copy mode and all of them for the DEEP
+ * mode, unless a rule sets the mode of the relationship; the relationships copied by reference or skipped and the
+ * objects copied by reference create nothing. The rows of each
+ * relationship are selected with key subqueries from the rows of the previous level, up to a maximum depth:<br>
+ * <code>fr.sophiacom.corason.foundation.eo.COCopyEstimator.maxDepth=10</code><p>
+ * The estimate is an upper bound when it's complete: an object reached by several paths is counted once per path while
+ * the copy creates it once. It's not complete when a part of the graph can't be counted with one statement per
+ * relationship (flattened relationships, compound joins, entities without a table or in another model) or when the
+ * maximum depth is reached with rows left. The objects with a custom duplicate method are counted as if they used the
+ * default one.
+ *
+ * @see COCopyable.DefaultImplementation#estimateCopy(NSArray, String)
+ */
+public class COCopyEstimator
+{
+	private static final Logger log = Logger.getLogger(COCopyEstimator.class);
+	private static final int maxDepth = ERXProperties.intForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COCopyEstimator.maxDepth", 10);
+	private static final NSArray<String> COUNT_RESULT_KEYS = new NSArray<String>("R0");
+
+	/**
+	 * Number of objects a copy would create.
+	 */
+	public static final class Estimate
+	{
+		private final NSDictionary<String, Integer> _objectCountByEntity;
+		private final int _objectCount;
+		private final boolean _complete;
+
+		private Estimate(final NSDictionary<String, Integer> objectCountByEntity, final int objectCount, final boolean complete)
+		{
+			_objectCountByEntity = objectCountByEntity;
+			_objectCount = objectCount;
+			_complete = complete;
+		}
+
+		/**
+		 * @return number of objects by entity name
+		 */
+		public NSDictionary<String, Integer> objectCountByEntity()
+		{
+			return _objectCountByEntity;
+		}
+
+		/**
+		 * @return total number of objects
+		 */
+		public int objectCount()
+		{
+			return _objectCount;
+		}
+
+		/**
+		 * @return <code>false</code> if a part of the graph has not been counted
+		 */
+		public boolean isComplete()
+		{
+			return _complete;
+		}
+
+		/**
+		 * @param limit maximum number of objects, see COCopyOperation.setMaxObjectCount
+		 * @return <code>true</code> if the copy would create more objects than the limit
+		 */
+		public boolean exceeds(final int limit)
+		{
+			return _objectCount > limit;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "objects: " + _objectCount + (_complete ? "" : " (incomplete)") + " " + _objectCountByEntity;
+		}
+	}
+
+	private final EOEditingContext _ec;
+	private final String _copyContext;
+	private final NSMutableDictionary<String, Integer> _objectCountByEntity = new NSMutableDictionary<String, Integer>();
+	private int _objectCount;
+	private boolean _complete = true;
+
+	private COCopyEstimator(final EOEditingContext ec, final String copyContext)
+	{
+		_ec = ec;
+		_copyContext = copyContext;
+	}
+
+	/**
+	 * Estimates the copy of the objects, they must be saved and in the same editing context.
+	 *
+	 * @param sources the objects the copy starts from
+	 * @param copyContext the copy context, can be <code>null</code>
+	 * @return the estimate
+	 */
+	public static Estimate estimate(final NSArray<? extends EOEnterpriseObject> sources, final String copyContext)
+	{
+		if (sources == null || sources.count() == 0)
+			return new Estimate(NSDictionary.<String, Integer>emptyDictionary(), 0, true);
+		long startTime = System.currentTimeMillis();
+		EOEditingContext ec = sources.objectAtIndex(0).editingContext();
+		Map<String, NSMutableArray<Object>> primaryKeysByEntity = new LinkedHashMap<String, NSMutableArray<Object>>();
+		for (EOEnterpriseObject eo : sources)
+		{
+			EOGlobalID gid = ec.globalIDForObject(eo);
+			if (eo.editingContext() != ec || !(gid instanceof EOKeyGlobalID) || gid.isTemporary() || ((EOKeyGlobalID)gid).keyValues().length != 1)
+				throw new IllegalArgumentException("The objects must be saved objects with a single primary key in the same editing context: " + eo);
+			NSMutableArray<Object> primaryKeys = primaryKeysByEntity.get(eo.entityName());
+			if (primaryKeys == null)
+			{
+				primaryKeys = new NSMutableArray<Object>();
+				primaryKeysByEntity.put(eo.entityName(), primaryKeys);
+			}
+			primaryKeys.addObject(((EOKeyGlobalID)gid).keyValues()[0]);
+		}
+
+		COCopyEstimator estimator = new COCopyEstimator(ec, copyContext);
+		for (Map.Entry<String, NSMutableArray<Object>> entry : primaryKeysByEntity.entrySet())
+		{
+			EOEntity entity = EOUtilities.entityNamed(ec, entry.getKey());
+			COCopyMode mode = COCopyPlan.planForEntity(entity).policy(copyContext).mode;
+			// The objects copied by reference are their own copy.
+			if (COCopyMode.REFERENCE.equals(mode))
+				continue;
+			NSMutableArray<Object> primaryKeys = entry.getValue();
+			estimator.add(entity, primaryKeys.count());
+			if (entity.externalName() == null)
+			{
+				estimator._complete = false;
+				continue;
+			}
+			EOAttribute primaryKeyAttribute = entity.primaryKeyAttributes().objectAtIndex(0);
+			EOSQLExpression expression = EOUtilities.databaseContextForModelNamed(ec, entity.model().name()).adaptorContext().adaptor().expressionFactory()
+					.expressionForEntity(entity);
+			for (int start = 0; start < primaryKeys.count(); start += COCheckDelete.DefaultImplementation.inListSize)
+			{
+				int end = Math.min(start + COCheckDelete.DefaultImplementation.inListSize, primaryKeys.count());
+				StringBuilder condition = new StringBuilder(entity.externalName()).append('.').append(primaryKeyAttribute.columnName()).append(" IN (");
+				for (int i = start; i < end; i++)
+				{
+					if (i > start)
+						condition.append(", ");
+					condition.append(expression.formatValueForAttribute(primaryKeys.objectAtIndex(i), primaryKeyAttribute));
+				}
+				condition.append(')');
+				estimator.walk(entity, COCopyMode.DEEP.equals(mode), condition.toString(), null, 1, entity.name());
+			}
+		}
+		Estimate estimate = new Estimate(estimator._objectCountByEntity.immutableClone(), estimator._objectCount, estimator._complete);
+		if (log.isDebugEnabled())
+			log.debug("method: estimate: sources: " + sources.count() + " estimate: " + estimate + " time: " + (System.currentTimeMillis() - startTime) + " ms");
+		return estimate;
+	}
+
+	/**
+	 * Counts the rows of the relationships followed by the copy from the rows of the entity selected by the condition.
+	 */
+	private void walk(final EOEntity entity, final boolean deep, final String condition, final EORelationship incomingRelationship, final int depth, final String path)
+	{
+		COCopyPlan plan = COCopyPlan.planForEntity(entity);
+		COCopyPolicy policy = plan.policy(_copyContext);
+		for (int r = 0; r < plan.relationships.length; r++)
+		{
+			EORelationship relationship = plan.relationships[r];
+			COCopyMode mode = policy.relationshipMode(r, deep);
+			if (COCopyMode.DEEP.equals(mode))
+				mode = COCopyPlan.planForEntity(relationship.destinationEntity()).policy(_copyContext).mode;
+			if (!COCopyMode.SHALLOW.equals(mode) && !COCopyMode.DEEP.equals(mode))
+				continue;
+			// The inverse of the relationship followed to the entity leads to objects already counted.
+			if (incomingRelationship != null && isInverse(relationship, incomingRelationship))
+				continue;
+			String relationshipPath = path + "." + relationship.name();
+			EOEntity destinationEntity = relationship.destinationEntity();
+			if (relationship.isFlattened() || relationship.joins().count() != 1 || destinationEntity.externalName() == null
+					|| destinationEntity.model() != entity.model())
+			{
+				if (log.isDebugEnabled())
+					log.debug("method: walk: not counted: " + relationshipPath);
+				_complete = false;
+				continue;
+			}
+			EOJoin join = relationship.joins().objectAtIndex(0);
+			String destinationCondition = destinationEntity.externalName() + "." + join.destinationAttribute().columnName() + " IN (SELECT "
+					+ entity.externalName() + "." + join.sourceAttribute().columnName() + " FROM " + entity.externalName() + " WHERE " + condition + ")";
+			int count = count(destinationEntity, destinationCondition);
+			if (log.isDebugEnabled())
+				log.debug("method: walk: " + relationshipPath + ": " + count);
+			if (count == 0)
+				continue;
+			add(destinationEntity, count);
+			if (depth < maxDepth)
+				walk(destinationEntity, COCopyMode.DEEP.equals(mode), destinationCondition, relationship, depth + 1, relationshipPath);
+			else
+				_complete = false;
+		}
+	}
+
+	private int count(final EOEntity entity, final String condition)
+	{
+		String sql = "SELECT COUNT(*) AS R0 FROM " + entity.externalName() + " WHERE " + condition;
+		@SuppressWarnings("unchecked")
+		NSArray<NSDictionary<String, Object>> rows = EOUtilities.rawRowsForSQL(_ec, entity.model().name(), sql, COUNT_RESULT_KEYS);
+		Object count = rows.count() > 0 ? rows.objectAtIndex(0).objectForKey("R0") : null;
+		return count instanceof Number ? ((Number)count).intValue() : 0;
+	}
+
+	private void add(final EOEntity entity, final int count)
+	{
+		Integer entityCount = _objectCountByEntity.objectForKey(entity.name());
+		_objectCountByEntity.setObjectForKey(Integer.valueOf(entityCount == null ? count : entityCount.intValue() + count), entity.name());
+		_objectCount += count;
+	}
+
+	private static boolean isInverse(final EORelationship relationship, final EORelationship otherRelationship)
+	{
+		if (relationship.destinationEntity() != otherRelationship.entity() || relationship.isFlattened() || relationship.joins().count() != 1
+				|| otherRelationship.joins().count() != 1)
+			return false;
+		EOJoin join = relationship.joins().objectAtIndex(0);
+		EOJoin otherJoin = otherRelationship.joins().objectAtIndex(0);
+		return join.sourceAttribute() == otherJoin.destinationAttribute() && join.destinationAttribute() == otherJoin.sourceAttribute();
+	}
+}
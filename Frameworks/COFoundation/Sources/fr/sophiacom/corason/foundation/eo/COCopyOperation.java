@@ -0,0 +1,453 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
+import com.webobjects.foundation.NSTimestamp;
+
+import er.corebusinesslogic.ERCStampedEnterpriseObject;
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Copy of a graph of COCopyable objects with a work queue instead of the recursion of COCopyable.Utility, so long
+ * chains of objects don't overflow the stack. The result is the same graph as COCopyable.DefaultImplementation.copy:
+ * the objects that keep the duplicate method of COStampedEnterpriseObject are copied by the queue with the copy policies
+ * of the copy context (see COCopyPolicy), the other ones are copied by their own copy method. The cycles are handled with the
+ * <code>copiedObjects</code> dictionary as before.<p>
+ * The operation can be followed with a listener called every <code>progressInterval</code> objects and at the end, it
+ * can be cancelled from another thread with cancel() (a CancellationException is raised by the copying thread) and it
+ * stops with an IllegalStateException when more objects than the limit are copied:<br>
+ * <code>fr.sophiacom.corason.foundation.eo.COCopyOperation.maxObjectCount=100000</code><br>
+ * After a cancellation or an exception, the editing context contains the partial copy and must be reverted.<p>
+ * An operation is used once, by one thread.
+ *
+ * @see COCopyable.DefaultImplementation#copyObjects(NSArray, String)
+ */
+public class COCopyOperation
+{
+	private static final Logger log = Logger.getLogger(COCopyOperation.class);
+	private static final int defaultMaxObjectCount = ERXProperties.intForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COCopyOperation.maxObjectCount", 100000);
+	private static final ConcurrentMap<Class<?>, Boolean> defaultDuplicateClasses = new ConcurrentHashMap<Class<?>, Boolean>();
+
+	/**
+	 * Receives the progress of a copy.
+	 */
+	public interface ProgressListener
+	{
+		/**
+		 * Called by the copying thread every <code>progressInterval</code> copied objects and at the end of the copy.
+		 *
+		 * @param operation the copy in progress, see visitedObjectCount, visitedObjectCountByEntity, copiedObjectCount and
+		 *        copiedObjectCountByEntity
+		 */
+		public void copyDidProgress(COCopyOperation operation);
+	}
+
+	/**
+	 * Relationships of a source object to copy to its copy.
+	 */
+	private static final class Task
+	{
+		private final EOEnterpriseObject _source;
+		private final EOEnterpriseObject _copy;
+		private final boolean _deep;
+
+		private Task(final EOEnterpriseObject source, final EOEnterpriseObject copy, final boolean deep)
+		{
+			_source = source;
+			_copy = copy;
+			_deep = deep;
+		}
+	}
+
+	private final String _copyContext;
+	private final NSMutableDictionary<Object, EOEnterpriseObject> _copiedObjects;
+	private final Deque<Task> _tasks = new ArrayDeque<Task>();
+	private final NSMutableDictionary<String, Integer> _copiedObjectCountByEntity = new NSMutableDictionary<String, Integer>();
+	private final Set<EOEnterpriseObject> _visitedObjects = Collections.newSetFromMap(new IdentityHashMap<EOEnterpriseObject, Boolean>());
+	private final NSMutableDictionary<String, Integer> _visitedObjectCountByEntity = new NSMutableDictionary<String, Integer>();
+	private volatile boolean _cancelled;
+	private ProgressListener _progressListener;
+	private int _progressInterval = 100;
+	private int _maxObjectCount = defaultMaxObjectCount;
+	private int _visitedObjectCount;
+	private int _copiedObjectCount;
+
+	/**
+	 * @param copyContext a context that can be passed to all objects involved by the copy process
+	 */
+	public COCopyOperation(final String copyContext)
+	{
+		this(new NSMutableDictionary<Object, EOEnterpriseObject>(), copyContext);
+	}
+
+	/**
+	 * @param copiedObjects the copied objects keyed on the EOGlobalID of the object the copy was made from
+	 * @param copyContext a context that can be passed to all objects involved by the copy process
+	 */
+	public COCopyOperation(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects, final String copyContext)
+	{
+		_copiedObjects = copiedObjects;
+		_copyContext = copyContext;
+	}
+
+	public void setProgressListener(final ProgressListener progressListener)
+	{
+		_progressListener = progressListener;
+	}
+
+	public void setProgressInterval(final int progressInterval)
+	{
+		if (progressInterval <= 0)
+			throw new IllegalArgumentException("The progress interval must be positive.");
+		_progressInterval = progressInterval;
+	}
+
+	public void setMaxObjectCount(final int maxObjectCount)
+	{
+		_maxObjectCount = maxObjectCount;
+	}
+
+	/**
+	 * Asks the copy to stop, it can be called from any thread.
+	 *
+	 */
+	public void cancel()
+	{
+		_cancelled = true;
+	}
+
+	public boolean isCancelled()
+	{
+		return _cancelled;
+	}
+
+	/**
+	 * @return number of source objects reached by the copy (copied or copied by reference), an object reached by several
+	 *         paths is counted once
+	 */
+	public int visitedObjectCount()
+	{
+		return _visitedObjectCount;
+	}
+
+	/**
+	 * @return number of source objects reached by the copy by entity name, an object is counted once
+	 */
+	public NSDictionary<String, Integer> visitedObjectCountByEntity()
+	{
+		return _visitedObjectCountByEntity.immutableClone();
+	}
+
+	/**
+	 * @return number of new objects created by the copy
+	 */
+	public int copiedObjectCount()
+	{
+		return _copiedObjectCount;
+	}
+
+	/**
+	 * @return number of new objects by entity name
+	 */
+	public NSDictionary<String, Integer> copiedObjectCountByEntity()
+	{
+		return _copiedObjectCountByEntity.immutableClone();
+	}
+
+	/**
+	 * Copies the object and the objects it reaches.
+	 *
+	 * @param source the EOEnterpriseObject to copy, it must implement COCopyable
+	 * @return the copy
+	 * @exception CancellationException if the copy has been cancelled
+	 * @exception IllegalStateException if the maximum object count is reached
+	 */
+	public EOEnterpriseObject copy(final EOEnterpriseObject source)
+	{
+		EOEnterpriseObject copy = copyObject(source);
+		run();
+		return copy;
+	}
+
+	/**
+	 * Copies the objects and the objects they reach.
+	 *
+	 * @param sources the EOEnterpriseObjects to copy, they must implement COCopyable
+	 * @return the copies in the order of <code>sources</code>
+	 * @exception CancellationException if the copy has been cancelled
+	 * @exception IllegalStateException if the maximum object count is reached
+	 */
+	public NSArray<EOEnterpriseObject> copyObjects(final NSArray<? extends EOEnterpriseObject> sources)
+	{
+		NSMutableArray<EOEnterpriseObject> copies = new NSMutableArray<EOEnterpriseObject>(sources.count());
+		for (EOEnterpriseObject source : sources)
+		{
+			copies.addObject(copyObject(source));
+			run();
+		}
+		return copies.immutableClone();
+	}
+
+	private void run()
+	{
+		long startTime = System.currentTimeMillis();
+		Task task;
+		while ((task = _tasks.pollFirst()) != null)
+		{
+			checkCancelled();
+			copyRelatedObjects(task);
+		}
+		if (_progressListener != null)
+			_progressListener.copyDidProgress(this);
+		if (log.isDebugEnabled())
+			log.debug("method: run: visited: " + _visitedObjectCount + " copied: " + _copiedObjectCountByEntity + " time: " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	/**
+	 * Counts a source object the first time it's reached.
+	 */
+	private void visit(final EOEnterpriseObject source)
+	{
+		if (!_visitedObjects.add(source))
+			return;
+		_visitedObjectCount++;
+		Integer count = _visitedObjectCountByEntity.objectForKey(source.entityName());
+		_visitedObjectCountByEntity.setObjectForKey(Integer.valueOf(count == null ? 1 : count.intValue() + 1), source.entityName());
+	}
+
+	/**
+	 * Same as COCopyable.DefaultImplementation.copy: returns the existing copy or makes a new one.
+	 */
+	private EOEnterpriseObject copyObject(final EOEnterpriseObject source)
+	{
+		checkCancelled();
+		visit(source);
+		if (!usesDefaultDuplicate(source))
+			return ((COCopyable)source).copy(_copiedObjects, _copyContext);
+
+		EOGlobalID globalID = source.editingContext().globalIDForObject(source);
+		EOEnterpriseObject copy = _copiedObjects.objectForKey(globalID);
+		if (copy == null)
+		{
+			COCopyable.COCopyMode mode = COCopyPolicy.policyForObject(source, _copyContext).mode;
+			if (COCopyable.COCopyMode.REFERENCE.equals(mode))
+			{
+				_copiedObjects.setObjectForKey(source, globalID);
+				return source;
+			}
+			copy = newCopy(source, globalID, COCopyable.COCopyMode.DEEP.equals(mode));
+			// The new object is a real copy, the created and lastModified attributes are updated.
+			NSTimestamp now = new NSTimestamp();
+			copy.takeValueForKey(now, ERCStampedEnterpriseObject.Keys.CREATED);
+			copy.takeValueForKey(now, ERCStampedEnterpriseObject.Keys.LAST_MODIFIED);
+		}
+		return copy;
+	}
+
+	/**
+	 * Same as the first part of COCopyable.Utility.shallowCopy and deepCopy, the relationships are queued.
+	 */
+	private EOEnterpriseObject newCopy(final EOEnterpriseObject source, final EOGlobalID globalID, final boolean deep)
+	{
+		if (_copiedObjectCount >= _maxObjectCount)
+			throw new IllegalStateException("The copy has reached the maximum number of objects: " + _maxObjectCount);
+		EOEnterpriseObject copy = COCopyable.Utility.newInstance(source);
+		// Register this object right away to handle circular relationships
+		_copiedObjects.setObjectForKey(copy, globalID);
+		COCopyable.Utility.copyAttributes(source, copy);
+		_tasks.addLast(new Task(source, copy, deep));
+
+		_copiedObjectCount++;
+		Integer count = _copiedObjectCountByEntity.objectForKey(source.entityName());
+		_copiedObjectCountByEntity.setObjectForKey(Integer.valueOf(count == null ? 1 : count.intValue() + 1), source.entityName());
+		if (_progressListener != null && _copiedObjectCount % _progressInterval == 0)
+			_progressListener.copyDidProgress(this);
+		return copy;
+	}
+
+	/**
+	 * Same as COCopyable.Utility.deepCopyRelatedObjects or shallowCopyRelatedObjects, with the copy policies of the copy
+	 * context.
+	 */
+	private void copyRelatedObjects(final Task task)
+	{
+		COCopyPlan plan = COCopyPlan.planForObject(task._source);
+		COCopyPolicy policy = plan.policy(_copyContext);
+		if (task._deep)
+		{
+			for (int r = 0; r < plan.relationships.length; r++)
+				copyRelationship(task, plan, r, policy.relationshipMode(r, true));
+		}
+		else
+		{
+			// Same order as COCopyable.Utility.shallowCopyRelatedObjects: the to many relationships first.
+			for (int r = 0; r < plan.relationships.length; r++)
+			{
+				if (plan.toMany[r])
+					copyRelationship(task, plan, r, policy.relationshipMode(r, false));
+			}
+			for (int r = 0; r < plan.relationships.length; r++)
+			{
+				if (!plan.toMany[r])
+					copyRelationship(task, plan, r, policy.relationshipMode(r, false));
+			}
+		}
+	}
+
+	private void copyRelationship(final Task task, final COCopyPlan plan, final int relationshipIndex, final COCopyable.COCopyMode mode)
+	{
+		switch (mode)
+		{
+		case SKIP:
+			break;
+		case DEEP:
+			deepCopyRelationship(task, plan, relationshipIndex);
+			break;
+		default:
+			shallowCopyRelationship(task, plan, relationshipIndex, COCopyable.COCopyMode.SHALLOW.equals(mode));
+		}
+	}
+
+	/**
+	 * Same as COCopyable.Utility.deepCopyRelationship.
+	 */
+	private void deepCopyRelationship(final Task task, final COCopyPlan plan, final int relationshipIndex)
+	{
+		String relationshipName = plan.relationshipNames[relationshipIndex];
+		if (plan.toMany[relationshipIndex])
+		{
+			@SuppressWarnings("unchecked")
+			NSArray<EOEnterpriseObject> originalObjects = (NSArray<EOEnterpriseObject>)task._source.valueForKey(relationshipName);
+			COCopyable.Utility.RelationshipMembers destinationMembers = new COCopyable.Utility.RelationshipMembers(task._copy, relationshipName);
+			for (int i = 0, count = originalObjects.count(); i < count; i++)
+			{
+				EOEnterpriseObject originalCopy = copyObject(originalObjects.objectAtIndex(i));
+				if (!destinationMembers.contains(originalCopy))
+				{
+					task._copy.addObjectToBothSidesOfRelationshipWithKey(originalCopy, relationshipName);
+					destinationMembers.update();
+				}
+			}
+		}
+		else
+		{
+			EOEnterpriseObject original = (EOEnterpriseObject)task._source.valueForKey(relationshipName);
+			if (original != null)
+			{
+				EOEnterpriseObject originalCopy = copyObject(original);
+				// The queue can copy the inverse relationship first, it has then already set this one.
+				if (task._copy.valueForKey(relationshipName) != originalCopy)
+					task._copy.addObjectToBothSidesOfRelationshipWithKey(originalCopy, relationshipName);
+			}
+		}
+	}
+
+	/**
+	 * Same as the SHALLOW and REFERENCE modes of COCopyable.Utility.shallowCopyRelatedObjects: the objects are copied
+	 * again if <code>copy</code> is <code>true</code>, they are copied by reference otherwise.
+	 */
+	private void shallowCopyRelationship(final Task task, final COCopyPlan plan, final int relationshipIndex, final boolean copy)
+	{
+		String relationshipName = plan.relationshipNames[relationshipIndex];
+		if (plan.toMany[relationshipIndex])
+		{
+			@SuppressWarnings("unchecked")
+			NSArray<EOEnterpriseObject> originalObjects = (NSArray<EOEnterpriseObject>)task._source.valueForKey(relationshipName);
+			for (int i = 0, count = originalObjects.count(); i < count; i++)
+			{
+				EOEnterpriseObject originalRelated = originalObjects.objectAtIndex(i);
+				visit(originalRelated);
+				EOEnterpriseObject copyRelated = copy ? shallowCopy(originalRelated) : COCopyable.Utility.referenceCopy(originalRelated);
+				task._copy.addObjectToBothSidesOfRelationshipWithKey(copyRelated, relationshipName);
+			}
+		}
+		else
+		{
+			EOEnterpriseObject originalRelated = (EOEnterpriseObject)task._source.valueForKey(relationshipName);
+			if (originalRelated != null)
+			{
+				visit(originalRelated);
+				EOEnterpriseObject copyRelated;
+				if (copy)
+					copyRelated = shallowCopy(originalRelated);
+				else
+				{
+					copyRelated = _copiedObjects.objectForKey(COCopyable.Utility.globalIDForObject(originalRelated));
+					copyRelated = copyRelated != null ? copyRelated : COCopyable.Utility.referenceCopy(originalRelated);
+				}
+				task._copy.addObjectToBothSidesOfRelationshipWithKey(copyRelated, relationshipName);
+			}
+		}
+	}
+
+	private EOEnterpriseObject shallowCopy(final EOEnterpriseObject source)
+	{
+		checkCancelled();
+		if (!usesDefaultDuplicate(source))
+			return COCopyable.Utility.shallowCopy(_copiedObjects, source, _copyContext);
+		return newCopy(source, COCopyable.Utility.globalIDForObject(source), false);
+	}
+
+	private void checkCancelled()
+	{
+		if (_cancelled)
+			throw new CancellationException("The copy has been cancelled after " + _copiedObjectCount + " objects.");
+	}
+
+	/**
+	 * Returns <code>true</code> if the class of the object keeps the copy and duplicate methods of COStampedEnterpriseObject,
+	 * its objects can then be copied by the queue. The result is cached by class.
+	 *
+	 * @param eo
+	 * @return <code>true</code> if the copy can be done by the queue
+	 */
+	static boolean usesDefaultDuplicate(final EOEnterpriseObject eo)
+	{
+		return usesDefaultDuplicate(eo.getClass());
+	}
+
+	/**
+	 * @param eoClass class of enterprise objects
+	 * @return <code>true</code> if the objects of the class can be copied by the queue
+	 * @see #usesDefaultDuplicate(EOEnterpriseObject)
+	 */
+	static boolean usesDefaultDuplicate(final Class<?> eoClass)
+	{
+		Boolean usesDefaultDuplicate = defaultDuplicateClasses.get(eoClass);
+		if (usesDefaultDuplicate == null)
+		{
+			usesDefaultDuplicate = Boolean.FALSE;
+			if (COStampedEnterpriseObject.class.isAssignableFrom(eoClass))
+			{
+				try
+				{
+					Method duplicate = eoClass.getMethod("duplicate", NSMutableDictionary.class, String.class);
+					Method copy = eoClass.getMethod("copy", NSMutableDictionary.class, String.class);
+					usesDefaultDuplicate = Boolean.valueOf(duplicate.getDeclaringClass() == COStampedEnterpriseObject.class
+							&& copy.getDeclaringClass() == COStampedEnterpriseObject.class);
+				} catch (NoSuchMethodException e)
+				{
+					log.error("method: usesDefaultDuplicate: class: " + eoClass.getName(), e);
+				}
+			}
+			defaultDuplicateClasses.put(eoClass, usesDefaultDuplicate);
+		}
+		return usesDefaultDuplicate.booleanValue();
+	}
+}
@@ -0,0 +1,223 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOModelGroup;
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableSet;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.extensions.foundation.ERXValueUtilities;
+import fr.sophiacom.corason.foundation.util.COCacheRegistry;
+
+/**
+ * Immutable copy plan of an entity used by COCopyable.Utility: the EOModel metadata needed to copy an object (copyable
+ * attributes, exposed keys, copyable relationships with their ownership) read once instead of for every copied object.
+ * The plan also keeps the copy policies of the entity (see COCopyPolicy).<p>
+ * The plans are cached by entity name. The cache is registered in COCacheRegistry and cleared when a model is added to
+ * or invalidated in the model group.
+ *
+ * @see COCopyable.Utility
+ */
+public final class COCopyPlan
+{
+	private static final Logger log = Logger.getLogger(COCopyPlan.class);
+	private static final ConcurrentMap<String, COCopyPlan> plans = new ConcurrentHashMap<String, COCopyPlan>();
+	private static final Observer observer = new Observer();
+
+	static
+	{
+		NSSelector<Void> selector = new NSSelector<Void>("modelGroupDidChange", new Class[] {NSNotification.class});
+		NSNotificationCenter.defaultCenter().addObserver(observer, selector, EOModelGroup.ModelAddedNotification, null);
+		NSNotificationCenter.defaultCenter().addObserver(observer, selector, EOModelGroup.ModelInvalidatedNotification, null);
+		COCacheRegistry.registerCache("copyPlans", new COCacheRegistry.Cache()
+		{
+			public void clearCache()
+			{
+				plans.clear();
+			}
+		});
+	}
+
+	/**
+	 * Drops the plans when the model group changes.
+	 */
+	public static class Observer
+	{
+		public void modelGroupDidChange(final NSNotification notification)
+		{
+			if (log.isDebugEnabled())
+				log.debug("method: modelGroupDidChange: " + notification.name());
+			plans.clear();
+		}
+	}
+
+	final String entityName;
+	/** attributes copied from the source, class properties that are not exposed keys and not marked as not copyable */
+	final String[] copyableAttributeKeys;
+	/** class property attributes used as primary or foreign keys, set to null in the copy */
+	final String[] exposedKeys;
+	/** copyable class property relationships, in the order of the entity */
+	final EORelationship[] relationships;
+	final String[] relationshipNames;
+	final boolean[] toMany;
+	final boolean[] owned;
+	/** <code>true</code> for a to one relationship whose foreign key is in the row of the source (join to the destination primary key) */
+	final boolean[] foreignKeyInSource;
+	private final NSArray<String> _exposedKeyAttributeNames;
+	/** policies by copy context key (see COCopyPolicy.copyContextKey) */
+	private final ConcurrentMap<String, COCopyPolicy> _policies = new ConcurrentHashMap<String, COCopyPolicy>();
+
+	private COCopyPlan(final EOEntity entity)
+	{
+		entityName = entity.name();
+		@SuppressWarnings("unchecked")
+		NSArray<String> attributeKeys = entity.classDescriptionForInstances().attributeKeys();
+		@SuppressWarnings("unchecked")
+		NSArray<Object> classProperties = entity.classProperties();
+
+		NSMutableSet<String> keyNames = new NSMutableSet<String>();
+		keyNames.addObjectsFromArray(entity.primaryKeyAttributeNames());
+		for (EORelationship relationship : entity.relationships())
+		{
+			for (EOAttribute attribute : relationship.sourceAttributes())
+				keyNames.addObject(attribute.name());
+		}
+		NSMutableArray<String> aCopyableAttributeKeys = new NSMutableArray<String>();
+		NSMutableArray<String> anExposedKeys = new NSMutableArray<String>();
+		for (String attributeKey : attributeKeys)
+		{
+			if (keyNames.containsObject(attributeKey))
+				anExposedKeys.addObject(attributeKey);
+			else if (isCopyable(entity.attributeNamed(attributeKey).userInfo()))
+				aCopyableAttributeKeys.addObject(attributeKey);
+		}
+		copyableAttributeKeys = aCopyableAttributeKeys.toArray(new String[aCopyableAttributeKeys.count()]);
+		exposedKeys = anExposedKeys.toArray(new String[anExposedKeys.count()]);
+		_exposedKeyAttributeNames = anExposedKeys.immutableClone();
+
+		NSMutableArray<EORelationship> aRelationships = new NSMutableArray<EORelationship>();
+		for (EORelationship relationship : entity.relationships())
+		{
+			if (classProperties.containsObject(relationship) && isCopyable(relationship.userInfo()))
+				aRelationships.addObject(relationship);
+		}
+		int count = aRelationships.count();
+		relationships = aRelationships.toArray(new EORelationship[count]);
+		relationshipNames = new String[count];
+		toMany = new boolean[count];
+		owned = new boolean[count];
+		foreignKeyInSource = new boolean[count];
+		for (int i = 0; i < count; i++)
+		{
+			relationshipNames[i] = relationships[i].name();
+			toMany[i] = relationships[i].isToMany();
+			owned[i] = relationships[i].ownsDestination();
+			foreignKeyInSource[i] = !toMany[i] && !relationships[i].isFlattened()
+					&& relationships[i].destinationEntity().primaryKeyAttributes().containsAll(relationships[i].destinationAttributes())
+					&& !entity.primaryKeyAttributes().containsAll(relationships[i].sourceAttributes());
+		}
+		if (log.isDebugEnabled())
+			log.debug("method: COCopyPlan: entity: " + entity.name() + " attributes: " + aCopyableAttributeKeys + " exposed keys: " + anExposedKeys
+					+ " relationships: " + aRelationships.valueForKey("name"));
+	}
+
+	/**
+	 * Returns the plan of the entity of the object, it's compiled the first time.
+	 *
+	 * @param eo
+	 * @return the plan
+	 */
+	public static COCopyPlan planForObject(final EOEnterpriseObject eo)
+	{
+		COCopyPlan plan = plans.get(eo.entityName());
+		return plan != null ? plan : planForEntity(EOUtilities.entityForObject(eo.editingContext(), eo));
+	}
+
+	/**
+	 * Returns the plan of the entity, it's compiled the first time.
+	 *
+	 * @param entity
+	 * @return the plan
+	 */
+	public static COCopyPlan planForEntity(final EOEntity entity)
+	{
+		COCopyPlan plan = plans.get(entity.name());
+		if (plan == null)
+		{
+			COCopyPlan newPlan = new COCopyPlan(entity);
+			plan = plans.putIfAbsent(entity.name(), newPlan);
+			if (plan == null)
+				plan = newPlan;
+		}
+		return plan;
+	}
+
+	/**
+	 * @param relationshipName
+	 * @return index of the relationship in the plan, -1 if it's not copied
+	 */
+	int indexOfRelationship(final String relationshipName)
+	{
+		for (int i = 0; i < relationshipNames.length; i++)
+		{
+			if (relationshipNames[i].equals(relationshipName))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the copy policy of the entity for the copy context, it's compiled the first time.
+	 *
+	 * @param copyContext a copy context, can be <code>null</code>
+	 * @return the policy
+	 */
+	COCopyPolicy policy(final String copyContext)
+	{
+		String key = COCopyPolicy.copyContextKey(copyContext);
+		COCopyPolicy policy = _policies.get(key);
+		if (policy == null)
+		{
+			COCopyPolicy newPolicy = new COCopyPolicy(entityName, this, key);
+			policy = _policies.putIfAbsent(key, newPolicy);
+			if (policy == null)
+				policy = newPolicy;
+		}
+		return policy;
+	}
+
+	/**
+	 * @return names of the attributes used as primary or foreign keys (see COCopyable.Utility.exposedKeyAttributeNames)
+	 */
+	public NSArray<String> exposedKeyAttributeNames()
+	{
+		return _exposedKeyAttributeNames;
+	}
+
+	/**
+	 * Reads the key "isAttributeCopyable" of the userInfo of an attribute or a relationship. It's often used for
+	 * information like order id or invoice id that must not be copied and must be regenerated.
+	 *
+	 * @param userInfo
+	 * @return <code>true</code> if the property can be copied.
+	 */
+	private static boolean isCopyable(final NSDictionary<String, Object> userInfo)
+	{
+		if (userInfo == null)
+			return true;
+		return ERXValueUtilities.booleanValueWithDefault(userInfo.valueForKey(COCopyable.isCopyableKey), true);
+	}
+}
@@ -0,0 +1,243 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.eo.COCopyable.COCopyMode;
+
+/**
+ * Copy modes of an entity for a copy context, read from a table of rules compiled at startup. The rules are a dictionary
+ * whose keys are <code>copyContext/Entity</code> (mode of the objects of the entity) or
+ * <code>copyContext/Entity/relationship</code> (mode of a relationship), <code>*</code> matches any copy context, entity
+ * or relationship:<br>
+ * <code>fr.sophiacom.corason.foundation.eo.COCopyPolicy.rules={"&#42;/Template" = DEEP; "archive/Order/lines" = SKIP; "&#42;/&#42;/createdBy" = REFERENCE;}</code><br>
+ * The most specific rule wins: an exact copy context first, then an exact entity, then an exact relationship. Without
+ * rule, the objects are copied with <code>fr.sophiacom.corason.foundation.eo.COCopyable.defaultCopyMode</code>.<p>
+ * The mode of the objects is SHALLOW, DEEP, LAZY (DEEP with the non owned DEEP relationships copied on demand, see
+ * COLazyCopy) or REFERENCE (the object is not copied, the copy is the object itself). The mode of a relationship is:
+ * <ul>
+ * <li>SHALLOW: the destinations are copied with COCopyable.Utility.shallowCopy</li>
+ * <li>DEEP: the destinations are copied with their own copy method, so with the mode of their entity</li>
+ * <li>REFERENCE: the copy references the destinations (or their copy for a to one relationship if they're copied)</li>
+ * <li>SKIP: the relationship of the copy is not set</li>
+ * </ul>
+ * Without rule, the relationships of an object copied with the DEEP mode are DEEP, the owned relationships of an object
+ * copied with the SHALLOW mode are SHALLOW and the other ones are REFERENCE, as before the rules.<p>
+ * The policies are compiled per entity and copy context the first time they're used and kept by COCopyPlan, a copy
+ * context without rule uses the policies of <code>*</code>. The lookup doesn't allocate anything.
+ *
+ * @see COCopyable.DefaultImplementation#duplicate(com.webobjects.foundation.NSMutableDictionary, EOEnterpriseObject, String)
+ */
+public final class COCopyPolicy
+{
+	private static final Logger log = Logger.getLogger(COCopyPolicy.class);
+	/** wildcard of the rules, also the key of the policies of the copy contexts without rule */
+	public static final String ANY = "*";
+
+	/**
+	 * Rule of the table.
+	 */
+	private static final class Rule
+	{
+		private final String _copyContext;
+		private final String _entityName;
+		/** <code>null</code> for the mode of the objects */
+		private final String _relationshipName;
+		private final COCopyMode _mode;
+		private final int _specificity;
+
+		private Rule(final String copyContext, final String entityName, final String relationshipName, final COCopyMode mode)
+		{
+			_copyContext = copyContext;
+			_entityName = entityName;
+			_relationshipName = relationshipName;
+			_mode = mode;
+			_specificity = (ANY.equals(copyContext) ? 0 : 4) + (ANY.equals(entityName) ? 0 : 2) + (relationshipName == null || ANY.equals(relationshipName) ? 0 : 1);
+		}
+
+		private boolean matches(final String copyContext, final String entityName, final String relationshipName)
+		{
+			return (ANY.equals(_copyContext) || _copyContext.equals(copyContext)) && (ANY.equals(_entityName) || _entityName.equals(entityName))
+					&& (relationshipName == null ? _relationshipName == null : _relationshipName != null && (ANY.equals(_relationshipName) || _relationshipName.equals(relationshipName)));
+		}
+	}
+
+	private static final COCopyMode defaultMode;
+	private static final NSArray<Rule> rules;
+	/** copy contexts with at least one rule */
+	private static final Set<String> copyContexts = new HashSet<String>();
+
+	static
+	{
+		String aString = ERXProperties.stringForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COCopyable.defaultCopyMode", COCopyMode.SHALLOW.toString());
+		COCopyMode mode = null;
+		try
+		{
+			mode = COCopyMode.valueOf(aString.toUpperCase());
+		} catch (IllegalArgumentException e)
+		{
+			// Logged below.
+		}
+		if (mode == null || !COCopyMode.SHALLOW.equals(mode) && !COCopyMode.DEEP.equals(mode) && !COCopyMode.LAZY.equals(mode))
+		{
+			log.error("The default copy mode must be SHALLOW, DEEP or LAZY: " + aString);
+			mode = COCopyMode.SHALLOW;
+		}
+		defaultMode = mode;
+
+		NSMutableArray<Rule> someRules = new NSMutableArray<Rule>();
+		@SuppressWarnings("unchecked")
+		NSDictionary<String, Object> table = ERXProperties.dictionaryForKey("fr.sophiacom.corason.foundation.eo.COCopyPolicy.rules");
+		if (table != null)
+		{
+			for (String key : table.allKeys())
+			{
+				String[] parts = key.split("/");
+				COCopyMode ruleMode = null;
+				try
+				{
+					ruleMode = COCopyMode.valueOf(String.valueOf(table.objectForKey(key)).toUpperCase());
+				} catch (IllegalArgumentException e)
+				{
+					// Logged below.
+				}
+				if (ruleMode == null || parts.length < 2 || parts.length > 3 || (parts.length == 2 && COCopyMode.SKIP.equals(ruleMode))
+						|| (parts.length == 3 && COCopyMode.LAZY.equals(ruleMode)))
+				{
+					log.error("Invalid copy policy rule, ignored: " + key + " = " + table.objectForKey(key));
+					continue;
+				}
+				someRules.addObject(new Rule(parts[0], parts[1], parts.length == 3 ? parts[2] : null, ruleMode));
+				if (!ANY.equals(parts[0]))
+					copyContexts.add(parts[0]);
+			}
+		}
+		rules = someRules.immutableClone();
+		if (log.isDebugEnabled())
+			log.debug("method: static: default mode: " + defaultMode + " rules: " + rules.count() + " copy contexts: " + copyContexts);
+	}
+
+	/** mode of the objects of the entity: SHALLOW, DEEP or REFERENCE */
+	final COCopyMode mode;
+	/** <code>true</code> if the objects are copied with the LAZY mode, <code>mode</code> is DEEP */
+	final boolean lazy;
+	/** mode of the relationships of COCopyPlan set by a rule, <code>null</code> otherwise */
+	private final COCopyMode[] _relationshipModes;
+	private final boolean[] _owned;
+
+	COCopyPolicy(final String entityName, final COCopyPlan plan, final String copyContext)
+	{
+		Rule entityRule = bestRule(copyContext, entityName, null);
+		COCopyMode entityMode = entityRule != null ? entityRule._mode : defaultMode;
+		lazy = COCopyMode.LAZY.equals(entityMode);
+		mode = lazy ? COCopyMode.DEEP : entityMode;
+		_owned = plan.owned;
+		_relationshipModes = new COCopyMode[plan.relationshipNames.length];
+		for (int r = 0; r < _relationshipModes.length; r++)
+		{
+			Rule rule = bestRule(copyContext, entityName, plan.relationshipNames[r]);
+			_relationshipModes[r] = rule != null ? rule._mode : null;
+		}
+		if (log.isDebugEnabled())
+			log.debug("method: COCopyPolicy: entity: " + entityName + " copy context: " + copyContext + " mode: " + entityMode
+					+ " relationships: " + Arrays.toString(_relationshipModes));
+	}
+
+	private static Rule bestRule(final String copyContext, final String entityName, final String relationshipName)
+	{
+		Rule bestRule = null;
+		for (Rule rule : rules)
+		{
+			if (rule.matches(copyContext, entityName, relationshipName) && (bestRule == null || rule._specificity > bestRule._specificity))
+				bestRule = rule;
+		}
+		return bestRule;
+	}
+
+	/**
+	 * @param copyContext a copy context, can be <code>null</code>
+	 * @return the key of the policies of the copy context
+	 */
+	static String copyContextKey(final String copyContext)
+	{
+		return copyContext != null && copyContexts.contains(copyContext) ? copyContext : ANY;
+	}
+
+	/**
+	 * @return the default copy mode of the objects, SHALLOW, DEEP or LAZY
+	 */
+	public static COCopyMode defaultMode()
+	{
+		return defaultMode;
+	}
+
+	/**
+	 * Returns the policy of the entity of the object for the copy context.
+	 *
+	 * @param eo
+	 * @param copyContext a copy context, can be <code>null</code>
+	 * @return the policy
+	 */
+	public static COCopyPolicy policyForObject(final EOEnterpriseObject eo, final String copyContext)
+	{
+		return COCopyPlan.planForObject(eo).policy(copyContext);
+	}
+
+	/**
+	 * @return mode of the objects of the entity: SHALLOW, DEEP or REFERENCE, DEEP for the LAZY mode
+	 */
+	public COCopyMode mode()
+	{
+		return mode;
+	}
+
+	/**
+	 * @return <code>true</code> if the objects of the entity are copied with the LAZY mode
+	 */
+	public boolean isLazy()
+	{
+		return lazy;
+	}
+
+	/**
+	 * Returns the mode of a relationship of COCopyPlan for an object copied with the DEEP (<code>deep</code>) or SHALLOW
+	 * mode.
+	 *
+	 * @param relationshipIndex index of the relationship in COCopyPlan
+	 * @param deep <code>true</code> if the object is copied with the DEEP mode
+	 * @return SHALLOW, DEEP, REFERENCE or SKIP
+	 */
+	public COCopyMode relationshipMode(final int relationshipIndex, final boolean deep)
+	{
+		COCopyMode relationshipMode = _relationshipModes[relationshipIndex];
+		if (relationshipMode != null)
+			return relationshipMode;
+		if (deep)
+			return COCopyMode.DEEP;
+		return _owned[relationshipIndex] ? COCopyMode.SHALLOW : COCopyMode.REFERENCE;
+	}
+
+	/**
+	 * Returns how the destinations of a relationship are copied when the default copy methods are used: the mode of the
+	 * relationship, with the mode of the destination entity for a DEEP relationship.
+	 *
+	 * @param relationshipIndex index of the relationship in COCopyPlan
+	 * @param deep <code>true</code> if the object is copied with the DEEP mode
+	 * @param destinationPolicy policy of the destination entity for the same copy context
+	 * @return SHALLOW or DEEP if the destinations are copied with this mode, REFERENCE or SKIP otherwise
+	 */
+	public COCopyMode destinationMode(final int relationshipIndex, final boolean deep, final COCopyPolicy destinationPolicy)
+	{
+		COCopyMode relationshipMode = relationshipMode(relationshipIndex, deep);
+		return COCopyMode.DEEP.equals(relationshipMode) ? destinationPolicy.mode : relationshipMode;
+	}
+}
@@ -1,26 +1,26 @@
 package fr.sophiacom.corason.foundation.eo;
 
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 
-import com.webobjects.eoaccess.EOAttribute;
-import com.webobjects.eoaccess.EOEntity;
 import com.webobjects.eoaccess.EORelationship;
 import com.webobjects.eoaccess.EOUtilities;
-import com.webobjects.eocontrol.EOClassDescription;
 import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOEnterpriseObject;
 import com.webobjects.eocontrol.EOGlobalID;
 import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
 import com.webobjects.foundation.NSMutableDictionary;
-import com.webobjects.foundation.NSMutableSet;
-import com.webobjects.foundation.NSSet;
 import com.webobjects.foundation.NSTimestamp;
 
 import er.corebusinesslogic.ERCStampedEnterpriseObject;
-import er.extensions.foundation.ERXProperties;
-import er.extensions.foundation.ERXValueUtilities;
+import er.extensions.eof.ERXBatchFetchUtilities;
 
 
 /**
@@ -38,10 +38,21 @@ public interface COCopyable
 
 	public static final String isCopyableKey = "isAttributeCopyable";
 
+	/**
+	 * Copy modes of the objects and of the relationships, see COCopyPolicy.
+	 */
 	public enum COCopyMode
 	{
+		/** attributes copied, owned relationships copied with a shallow copy, other relationships copied by reference */
 		SHALLOW,
-		DEEP;
+		/** attributes copied, relationships copied with the copy method of their destinations */
+		DEEP,
+		/** same as DEEP, the non owned relationships are copied when they're used or saved (see COLazyCopy), only for the objects */
+		LAZY,
+		/** not copied, the copy is the object itself */
+		REFERENCE,
+		/** relationship not set in the copy, only for the relationships */
+		SKIP;
 	}
 
 	/**
@@ -114,8 +125,6 @@ public interface COCopyable
 	 */
 	public static class DefaultImplementation
 	{
-		public static COCopyMode copyMode;
-
 		/**
 		 * Returns a copy of this object.  The actual copy mechanism (by
 		 * reference, shallow, deep, or custom) is up to the object being
@@ -155,8 +164,9 @@ public interface COCopyable
 		}
 
 		/**
-		 * Returns a copy of this object. Depending of the property <code>fr.sophiacom.corason.foundation.eo.COCopyable.defaultCopyMode</code>,
-		 * the copy is a deep or shallow one (@see COCopyMode enum).
+		 * Returns a copy of this object. The copy is a deep, shallow or reference one depending on the copy policy of the
+		 * entity for the copy context, by default on the property <code>fr.sophiacom.corason.foundation.eo.COCopyable.defaultCopyMode</code>
+		 * (@see COCopyPolicy).
 		 *
 		 * @param copiedObjects the copied objects keyed on the EOGlobalID of the object the copy was made from.
 		 * @param copyContext a context that can be passed to all objects involved by the copy process
@@ -167,18 +177,188 @@ public interface COCopyable
 				final String copyContext)
 		{
 			EOEnterpriseObject duplicate;
-			if (copyMode == null)
-				synchronized (DefaultImplementation.class)
+			switch (COCopyPolicy.policyForObject(source, copyContext).mode)
+			{
+			case SHALLOW:
+				duplicate = Utility.shallowCopy(copiedObjects, source, copyContext);
+				break;
+			case DEEP:
+				duplicate = Utility.deepCopy(copiedObjects, source, copyContext);
+				break;
+			default:
+				duplicate = Utility.referenceCopy(source);
+			}
+			return duplicate;
+		}
+
+		/**
+		 * Returns a copy of each source object. The copies share the same <code>copiedObjects</code> dictionary, so an
+		 * object reached from several sources is copied once. The graph is prefetched level by level before the copy
+		 * (see prefetchGraph), the number of round trips depends on the depth of the graph instead of its size. The copy
+		 * is made by a COCopyOperation, use it directly to follow or cancel the copy.
+		 *
+		 * @param sources the EOEnterpriseObjects to copy, they must implement COCopyable
+		 * @param copyContext a context that can be passed to all objects involved by the copy process
+		 * @return the copies in the order of <code>sources</code>
+		 */
+		public static NSArray<EOEnterpriseObject> copyObjects(final NSArray<? extends EOEnterpriseObject> sources, final String copyContext)
+		{
+			prefetchGraph(sources, copyContext);
+			return new COCopyOperation(copyContext).copyObjects(sources);
+		}
+
+		/**
+		 * Returns the global id of a saved copy of the object. The rows of the object and of the objects it owns are
+		 * copied with INSERT ... SELECT statements when the model allows it, otherwise the objects are copied in a new
+		 * editing context which is saved (see COSQLCopyOperation).
+		 *
+		 * @param source the saved EOEnterpriseObject to copy
+		 * @param copyContext a context that can be passed to all objects involved by the copy process
+		 * @return the global id of the copy
+		 */
+		public static EOGlobalID copyInDatabase(final EOEnterpriseObject source, final String copyContext)
+		{
+			return COSQLCopyOperation.copy(source, copyContext);
+		}
+
+		/**
+		 * Returns the number of objects, per entity, a copy of the objects would create, without fetching them (see
+		 * COCopyEstimator). It can be used to refuse a copy or to run it in a background job when it's too large.
+		 *
+		 * @param sources the saved EOEnterpriseObjects to copy
+		 * @param copyContext the context of the copy, it selects the copy policies
+		 * @return the estimate
+		 */
+		public static COCopyEstimator.Estimate estimateCopy(final NSArray<? extends EOEnterpriseObject> sources, final String copyContext)
+		{
+			return COCopyEstimator.estimate(sources, copyContext);
+		}
+
+		/**
+		 * Same as prefetchGraph(sources, null).
+		 *
+		 * @param sources the objects the copy starts from
+		 */
+		public static void prefetchGraph(final NSArray<? extends EOEnterpriseObject> sources)
+		{
+			prefetchGraph(sources, null);
+		}
+
+		/**
+		 * Fetches the relationships read by the copy for all the objects of a level of the graph at once
+		 * (ERXBatchFetchUtilities), then goes down to the objects of the next level. The relationships are the copyable
+		 * relationships of COCopyPlan that are not skipped by the copy policies, the next level is made of the destinations
+		 * the copy goes through (see COCopyPolicy.destinationMode): by default all of them for a DEEP copy, the owned ones
+		 * for a SHALLOW copy. An object is visited once.<p>
+		 * The objects with a custom duplicate method may need less (the prefetch is then useless) or more (the missing
+		 * relationships are faulted one by one as before).
+		 *
+		 * @param sources the objects the copy starts from
+		 * @param copyContext the context of the copy, it selects the copy policies
+		 */
+		public static void prefetchGraph(final NSArray<? extends EOEnterpriseObject> sources, final String copyContext)
+		{
+			long startTime = System.currentTimeMillis();
+			Set<EOEnterpriseObject> visitedObjects = Collections.newSetFromMap(new IdentityHashMap<EOEnterpriseObject, Boolean>());
+			NSMutableArray<EOEnterpriseObject> deepLevel = new NSMutableArray<EOEnterpriseObject>();
+			NSMutableArray<EOEnterpriseObject> shallowLevel = new NSMutableArray<EOEnterpriseObject>();
+			for (EOEnterpriseObject source : sources)
+				addToLevel(source, COCopyPolicy.policyForObject(source, copyContext).mode, visitedObjects, deepLevel, shallowLevel);
+			int depth = 0;
+			while (deepLevel.count() > 0 || shallowLevel.count() > 0)
+			{
+				NSMutableArray<EOEnterpriseObject> nextDeepLevel = new NSMutableArray<EOEnterpriseObject>();
+				NSMutableArray<EOEnterpriseObject> nextShallowLevel = new NSMutableArray<EOEnterpriseObject>();
+				prefetchLevel(deepLevel, true, copyContext, visitedObjects, nextDeepLevel, nextShallowLevel);
+				prefetchLevel(shallowLevel, false, copyContext, visitedObjects, nextDeepLevel, nextShallowLevel);
+				if (log.isDebugEnabled())
+					log.debug("Method: prefetchGraph/ depth: " + depth + " objects: " + (deepLevel.count() + shallowLevel.count()));
+				deepLevel = nextDeepLevel;
+				shallowLevel = nextShallowLevel;
+				depth++;
+			}
+			if (log.isDebugEnabled())
+				log.debug("Method: prefetchGraph/ sources: " + sources.count() + " objects: " + visitedObjects.size() + " depth: " + depth
+						+ " time: " + (System.currentTimeMillis() - startTime) + " ms");
+		}
+
+		/**
+		 * Prefetches the relationships of the objects of a level copied with the same mode, entity by entity.
+		 */
+		private static void prefetchLevel(final NSArray<EOEnterpriseObject> level, final boolean deep, final String copyContext,
+				final Set<EOEnterpriseObject> visitedObjects, final NSMutableArray<EOEnterpriseObject> nextDeepLevel,
+				final NSMutableArray<EOEnterpriseObject> nextShallowLevel)
+		{
+			Map<String, NSMutableArray<EOEnterpriseObject>> objectsByEntity = new LinkedHashMap<String, NSMutableArray<EOEnterpriseObject>>();
+			for (EOEnterpriseObject eo : level)
+			{
+				NSMutableArray<EOEnterpriseObject> objects = objectsByEntity.get(eo.entityName());
+				if (objects == null)
+				{
+					objects = new NSMutableArray<EOEnterpriseObject>();
+					objectsByEntity.put(eo.entityName(), objects);
+				}
+				objects.addObject(eo);
+			}
+			for (NSMutableArray<EOEnterpriseObject> objects : objectsByEntity.values())
+			{
+				COCopyPlan plan = COCopyPlan.planForObject(objects.objectAtIndex(0));
+				COCopyPolicy policy = plan.policy(copyContext);
+				NSMutableArray<String> relationshipNames = new NSMutableArray<String>(plan.relationships.length);
+				for (int r = 0; r < plan.relationships.length; r++)
+				{
+					if (!COCopyMode.SKIP.equals(policy.relationshipMode(r, deep)))
+						relationshipNames.addObject(plan.relationshipNames[r]);
+				}
+				if (relationshipNames.count() == 0)
+					continue;
+				ERXBatchFetchUtilities.batchFetch(objects, relationshipNames, true);
+				for (int r = 0; r < plan.relationships.length; r++)
 				{
-					String aString = ERXProperties.stringForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COCopyable.defaultCopyMode", COCopyMode.SHALLOW.toString());
-					copyMode = COCopyMode.valueOf(aString.toUpperCase());
+					COCopyMode relationshipMode = policy.relationshipMode(r, deep);
+					if (COCopyMode.SHALLOW.equals(relationshipMode) || COCopyMode.DEEP.equals(relationshipMode))
+						addDestinations(objects, plan.relationshipNames[r], plan.toMany[r], relationshipMode, copyContext, visitedObjects, nextDeepLevel, nextShallowLevel);
 				}
+			}
+		}
 
-			if (COCopyMode.SHALLOW.equals(copyMode))
-				duplicate = Utility.shallowCopy(copiedObjects, source);
-			else
-				duplicate = Utility.deepCopy(copiedObjects, source, copyContext);
-			return duplicate;
+		private static void addDestinations(final NSArray<EOEnterpriseObject> objects, final String relationshipName, final boolean toMany,
+				final COCopyMode relationshipMode, final String copyContext, final Set<EOEnterpriseObject> visitedObjects,
+				final NSMutableArray<EOEnterpriseObject> nextDeepLevel, final NSMutableArray<EOEnterpriseObject> nextShallowLevel)
+		{
+			for (EOEnterpriseObject eo : objects)
+			{
+				Object value = eo.storedValueForKey(relationshipName);
+				if (toMany)
+				{
+					@SuppressWarnings("unchecked")
+					NSArray<EOEnterpriseObject> destinations = (NSArray<EOEnterpriseObject>)value;
+					for (EOEnterpriseObject destination : destinations)
+						addDestination(destination, relationshipMode, copyContext, visitedObjects, nextDeepLevel, nextShallowLevel);
+				}
+				else if (value != null)
+					addDestination((EOEnterpriseObject)value, relationshipMode, copyContext, visitedObjects, nextDeepLevel, nextShallowLevel);
+			}
+		}
+
+		private static void addDestination(final EOEnterpriseObject destination, final COCopyMode relationshipMode, final String copyContext,
+				final Set<EOEnterpriseObject> visitedObjects, final NSMutableArray<EOEnterpriseObject> nextDeepLevel,
+				final NSMutableArray<EOEnterpriseObject> nextShallowLevel)
+		{
+			if (!(destination instanceof COCopyable))
+				return;
+			// A DEEP relationship copies its destinations with their own mode.
+			COCopyMode mode = COCopyMode.DEEP.equals(relationshipMode) ? COCopyPolicy.policyForObject(destination, copyContext).mode : relationshipMode;
+			addToLevel(destination, mode, visitedObjects, nextDeepLevel, nextShallowLevel);
+		}
+
+		private static void addToLevel(final EOEnterpriseObject eo, final COCopyMode mode, final Set<EOEnterpriseObject> visitedObjects,
+				final NSMutableArray<EOEnterpriseObject> deepLevel, final NSMutableArray<EOEnterpriseObject> shallowLevel)
+		{
+			if (COCopyMode.DEEP.equals(mode) && visitedObjects.add(eo))
+				deepLevel.addObject(eo);
+			else if (COCopyMode.SHALLOW.equals(mode) && visitedObjects.add(eo))
+				shallowLevel.addObject(eo);
 		}
 	}
 
@@ -214,9 +394,6 @@ public interface COCopyable
 	 */
 	public static class Utility
 	{
-		protected static NSMutableDictionary<String, NSArray<String>> exposedKeyAttributeDictionary = null;
-
-
 		/**
 		 * Returns a copy of this object by reference.  This is equivalent to
 		 * <code>return this;</code> on an EOEnterpriseObject.  This method of
@@ -246,15 +423,32 @@ public interface COCopyable
 		 */
 		public static EOEnterpriseObject shallowCopy(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects, final EOEnterpriseObject source)
 		{
+			return shallowCopy(copiedObjects, source, null);
+		}
+
+		/**
+		 * Returns a shallow copy of this object, the relationships are copied with the copy policies of the copy context
+		 * (see COCopyPolicy), by default the owned relationships are copied with a shallow copy and the other ones by
+		 * reference.
+		 *
+		 * @param copiedObjects the copied objects keyed on the EOGlobalID of the object the copy was made from.
+		 * @param source the EOEnterpriseObject to copy
+		 * @param copyContext a context that can be passed to all objects involved by the copy process
+		 * @return a copy of this object
+		 */
+		public static EOEnterpriseObject shallowCopy(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects, final EOEnterpriseObject source,
+				final String copyContext)
+		{
+			EOGlobalID globalID = globalIDForObject(source);
 			if (log.isDebugEnabled())
-				log.debug("Method: shallowCopy/ source globalID: " + globalIDForObject(source));
+				log.debug("Method: shallowCopy/ source globalID: " + globalID);
 
 			EOEnterpriseObject copy = newInstance(source);
 
 			// Register this object right away to handle circular relationships
-			copiedObjects.setObjectForKey(copy, globalIDForObject(source));
+			copiedObjects.setObjectForKey(copy, globalID);
 			copyAttributes(source, copy);
-			shallowCopyRelatedObjects(copiedObjects, source, copy);
+			shallowCopyRelatedObjects(copiedObjects, source, copy, copyContext);
 
 			return copy;
 		}
@@ -275,13 +469,14 @@ public interface COCopyable
 		 */
 		public static EOEnterpriseObject deepCopy(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects, final EOEnterpriseObject source, final String copyContext)
 		{
+			EOGlobalID globalID = globalIDForObject(source);
 			if (log.isDebugEnabled())
-				log.debug("Method: deepCopy/ source globalID: " + globalIDForObject(source));
+				log.debug("Method: deepCopy/ source globalID: " + globalID);
 
 			EOEnterpriseObject copy = newInstance(source);
 
 			// Register this object right away to handle circular relationships
-			copiedObjects.setObjectForKey(copy, globalIDForObject(source));
+			copiedObjects.setObjectForKey(copy, globalID);
 
 			copyAttributes(source, copy);
 			deepCopyRelatedObjects(copiedObjects, source, copy, copyContext);
@@ -382,7 +577,8 @@ public interface COCopyable
 
 		/**
 		 * This copies the attributes from the source EOEnterpriseObject to the
-		 * destination.  Only attributes which are class properties are copied.
+		 * destination.  Only attributes which are class properties are copied,
+		 * the attributes are read from the copy plan of the entity (see COCopyPlan).
 		 * However if an attribute is a class property and also used in a
 		 * relationship it is assumed to be an exposed primary or forign key and
 		 * not copied.  Such attributes are set to null.  See
@@ -398,61 +594,19 @@ public interface COCopyable
 			if (log.isDebugEnabled())
 				log.debug("Method copyAttributes/ source globalID: " + globalIDForObject(source));
 
-			NSArray<String> exposedKeyAttributeNames = exposedKeyAttributeNames(source);
-
-			EOEntity entity = EOUtilities.entityForObject(source.editingContext(), source);
-
-			Enumeration<String> attributeNameEnumerator = source.attributeKeys().objectEnumerator();
-
-			while (attributeNameEnumerator.hasMoreElements())
+			COCopyPlan plan = COCopyPlan.planForObject(source);
+			for (String attributeName : plan.exposedKeys)
 			{
-				String attributeName = attributeNameEnumerator.nextElement();
-
-				if (exposedKeyAttributeNames.containsObject(attributeName))
-				{
-					if (log.isDebugEnabled())
-						log.debug("Method: copyAttributes/ nulling exposed key (attributeName): " + attributeName);
-					destination.takeStoredValueForKey(null, attributeName);
-				}
-				else
-				{
-					if (isAttributeCopyable(entity.attributeNamed(attributeName)))
-					{
-						if (log.isDebugEnabled())
-							log.debug("Method: copyAttributes/ attribute: " + attributeName + " / value: " + source.valueForKey(attributeName));
-						destination.takeStoredValueForKey(source.storedValueForKey(attributeName), attributeName);
-					}
-				}
+				if (log.isDebugEnabled())
+					log.debug("Method: copyAttributes/ nulling exposed key (attributeName): " + attributeName);
+				destination.takeStoredValueForKey(null, attributeName);
+			}
+			for (String attributeName : plan.copyableAttributeKeys)
+			{
+				if (log.isDebugEnabled())
+					log.debug("Method: copyAttributes/ attribute: " + attributeName + " / value: " + source.valueForKey(attributeName));
+				destination.takeStoredValueForKey(source.storedValueForKey(attributeName), attributeName);
 			}
-		}
-
-		/**
-		 * This returns true if the attribute can be copied or not. It reads the userInfo of the attribute entity
-		 * and looks for the key "isAttributeCopyable".<p>
-		 * It's often use for information like order id or invoice id that must not be copied and must be regenerated.
-		 * 
-		 * @param attribute
-		 * @return <code>true</code> if the attribute can be copied.
-		 */
-		private static boolean isAttributeCopyable(final EOAttribute attribute)
-		{
-			if (attribute.userInfo() == null)
-				return true;
-			return ERXValueUtilities.booleanValueWithDefault(attribute.userInfo().valueForKey(isCopyableKey), true);
-		}
-
-		/**
-		 * This returns true if the relationship can be copied or not. It reads the userInfo of the relationship entity
-		 * and looks for the key "isAttributeCopyable".<p>
-		 * 
-		 * @param attribute
-		 * @return <code>true</code> if the attribute can be copied.
-		 */
-		private static boolean isRelationshipCopyable(final EORelationship relationship)
-		{
-			if (relationship.userInfo() == null)
-				return true;
-			return ERXValueUtilities.booleanValueWithDefault(relationship.userInfo().valueForKey(isCopyableKey), true);
 		}
 
 		/**
@@ -464,49 +618,16 @@ public interface COCopyable
 		 * @param source the EOEnterpriseObject to copy attribute values from
 		 * @return an array of attribute names from the EOEntity of source that
 		 * are used in forming relationships.
-		 *
+		 * @see COCopyPlan
 		 **/
 		public static NSArray<String> exposedKeyAttributeNames(final EOEnterpriseObject source)
 		{
-			if (exposedKeyAttributeDictionary == null)
-			{
-				exposedKeyAttributeDictionary = new NSMutableDictionary<String, NSArray<String>>();
-			}
-
-			EOEntity entity = EOUtilities.entityForObject(source.editingContext(), source);
-			NSArray<String> exposedKeyAttributeNames = exposedKeyAttributeDictionary.objectForKey(entity.name());
-
-			if (exposedKeyAttributeNames == null)
-			{
-				if (log.isDebugEnabled())
-					log.debug("Method: exposedKeyAttributeNames/ checking entity name: " + entity.name() + " for exposed keys");
-				NSMutableSet<String> keyNames = new NSMutableSet<String>();
-				keyNames.addObjectsFromArray(entity.primaryKeyAttributeNames());
-
-				Enumeration<EORelationship> relationshipEnumerator = entity.relationships().objectEnumerator();
-
-				while (relationshipEnumerator.hasMoreElements())
-				{
-					EORelationship relationship = relationshipEnumerator.nextElement();
-					@SuppressWarnings("unchecked")
-					NSArray<String> keys = (NSArray<String>)relationship.sourceAttributes().valueForKey("name");
-					keyNames.addObjectsFromArray(keys);
-				}
-
-				NSSet<String> publicAttributeNames = new NSSet<String>(source.attributeKeys());
-				exposedKeyAttributeNames = publicAttributeNames.setByIntersectingSet(keyNames).allObjects();
-				if (log.isDebugEnabled())
-					log.debug("Method: exposedKeyAttributeNames/ --> Attributes: " + exposedKeyAttributeNames + " are exposed, including...");
-				exposedKeyAttributeDictionary.setObjectForKey(exposedKeyAttributeNames, entity.name());
-			}
-
-			return exposedKeyAttributeNames;
+			return COCopyPlan.planForObject(source).exposedKeyAttributeNames();
 		}
 
 		/**
 		 * This copies related objects from the source EOEnterpriseObject to the destination by reference.  Only relationships which are class
 		 * properties are copied.  It can be used when creating custom implementations of the duplicate() method in COCopyable.
-		 * @param copiedObjects
 		 *
 		 * @param copiedObjects
 		 * @param source the EOEnterpriseObject to copy attribute values from
@@ -515,12 +636,28 @@ public interface COCopyable
 		public static void shallowCopyRelatedObjects(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects,
 				final EOEnterpriseObject source,
 				final EOEnterpriseObject destination)
+		{
+			shallowCopyRelatedObjects(copiedObjects, source, destination, null);
+		}
+
+		/**
+		 * Same as shallowCopyRelatedObjects with the copy policies of the copy context (see COCopyPolicy).
+		 *
+		 * @param copiedObjects
+		 * @param source the EOEnterpriseObject to copy attribute values from
+		 * @param destination the EOEnterpriseObject to copy attribute values to
+		 * @param copyContext a context that can be passed to all objects involved by the copy process
+		 */
+		public static void shallowCopyRelatedObjects(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects,
+				final EOEnterpriseObject source,
+				final EOEnterpriseObject destination,
+				final String copyContext)
 		{
 			if (log.isDebugEnabled())
 				log.debug("Method: shallowCopyRelatedObjects/ source globalID: " + globalIDForObject(source));
 
-			shallowCopyRelatedToManyObjects(copiedObjects, source, destination);
-			shallowCopyRelatedToOneObjects(copiedObjects, source, destination);
+			shallowCopyRelatedToManyObjects(copiedObjects, source, destination, copyContext);
+			shallowCopyRelatedToOneObjects(copiedObjects, source, destination, copyContext);
 		}
 
 		/**
@@ -533,38 +670,32 @@ public interface COCopyable
 		 * @param source the EOEnterpriseObject to copy attribute values from
 		 * @param destination the EOEnterpriseObject to copy attribute values to
 		 */
-		@SuppressWarnings("unchecked")
 		public static void shallowCopyRelatedToManyObjects(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects,
 				final EOEnterpriseObject source,
 				final EOEnterpriseObject destination)
 		{
-			Enumeration<String> relationshipEnumerator =  source.toManyRelationshipKeys().objectEnumerator();
-			EOClassDescription sourceClassDescription = source.classDescription();
-			EOEntity entity = EOUtilities.entityForObject(source.editingContext(), source);
+			shallowCopyRelatedToManyObjects(copiedObjects, source, destination, null);
+		}
 
-			while (relationshipEnumerator.hasMoreElements())
+		/**
+		 * Same as shallowCopyRelatedToManyObjects with the copy policies of the copy context (see COCopyPolicy).
+		 *
+		 * @param copiedObjects
+		 * @param source the EOEnterpriseObject to copy attribute values from
+		 * @param destination the EOEnterpriseObject to copy attribute values to
+		 * @param copyContext a context that can be passed to all objects involved by the copy process
+		 */
+		public static void shallowCopyRelatedToManyObjects(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects,
+				final EOEnterpriseObject source,
+				final EOEnterpriseObject destination,
+				final String copyContext)
+		{
+			COCopyPlan plan = COCopyPlan.planForObject(source);
+			COCopyPolicy policy = plan.policy(copyContext);
+			for (int r = 0; r < plan.relationships.length; r++)
 			{
-				String relationshipName = relationshipEnumerator.nextElement();
-				if (isRelationshipCopyable(entity.relationshipNamed(relationshipName)))
-				{
-					boolean relatedObjectOwned = sourceClassDescription.ownsDestinationObjectsForRelationshipKey(relationshipName);
-
-					NSArray<EOEnterpriseObject> originalObjects = (NSArray<EOEnterpriseObject>)source.valueForKey(relationshipName);
-
-					if (log.isDebugEnabled())
-						log.debug("Method: shallowCopyRelatedToManyObjects: copying " + originalObjects.count() + " originalObjects for relationship: " + relationshipName);
-
-					for (int i = 0, count = originalObjects.count(); i < count; i++)
-					{
-						EOEnterpriseObject copyRelated;
-						EOEnterpriseObject originalRelated =  originalObjects.objectAtIndex(i);
-						if (relatedObjectOwned)
-							copyRelated = shallowCopy(copiedObjects, originalRelated);
-						else
-							copyRelated = referenceCopy(originalRelated);
-						destination.addObjectToBothSidesOfRelationshipWithKey(copyRelated, relationshipName);
-					}
-				}
+				if (plan.toMany[r])
+					copyRelationship(copiedObjects, source, destination, plan, r, policy.relationshipMode(r, false), copyContext);
 			}
 		}
 
@@ -582,32 +713,28 @@ public interface COCopyable
 				final EOEnterpriseObject source,
 				final EOEnterpriseObject destination)
 		{
-			Enumeration<String> relationshipEnumerator = source.toOneRelationshipKeys().objectEnumerator();
-			EOClassDescription sourceClassDescription = source.classDescription();
-			EOEntity entity = EOUtilities.entityForObject(source.editingContext(), source);
+			shallowCopyRelatedToOneObjects(copiedObjects, source, destination, null);
+		}
 
-			while (relationshipEnumerator.hasMoreElements())
+		/**
+		 * Same as shallowCopyRelatedToOneObjects with the copy policies of the copy context (see COCopyPolicy).
+		 *
+		 * @param copiedObjects
+		 * @param source the EOEnterpriseObject to copy attribute values from
+		 * @param destination the EOEnterpriseObject to copy attribute values to
+		 * @param copyContext a context that can be passed to all objects involved by the copy process
+		 */
+		public static void shallowCopyRelatedToOneObjects(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects,
+				final EOEnterpriseObject source,
+				final EOEnterpriseObject destination,
+				final String copyContext)
+		{
+			COCopyPlan plan = COCopyPlan.planForObject(source);
+			COCopyPolicy policy = plan.policy(copyContext);
+			for (int r = 0; r < plan.relationships.length; r++)
 			{
-				String relationshipName = relationshipEnumerator.nextElement();
-				if (isRelationshipCopyable(entity.relationshipNamed(relationshipName)))
-				{
-					EOEnterpriseObject originalRelated = (EOEnterpriseObject)source.valueForKey(relationshipName);
-					if (originalRelated != null)
-					{
-						boolean relatedObjectOwned = sourceClassDescription.ownsDestinationObjectsForRelationshipKey(relationshipName);
-						EOEnterpriseObject copyRelated;
-						if (log.isDebugEnabled())
-							log.debug("Method: shallowCopyRelatedToOneObject: copying object: " + source + "for relationship: " + relationshipName + " source owns destination: " + relatedObjectOwned);
-						if (relatedObjectOwned)
-							copyRelated = shallowCopy(copiedObjects, originalRelated);
-						else
-						{
-							copyRelated = copiedObjects.objectForKey(globalIDForObject(originalRelated));
-							copyRelated = copyRelated != null ? copyRelated: referenceCopy(originalRelated);
-						}
-						destination.addObjectToBothSidesOfRelationshipWithKey(copyRelated, relationshipName);
-					}
-				}
+				if (!plan.toMany[r])
+					copyRelationship(copiedObjects, source, destination, plan, r, policy.relationshipMode(r, false), copyContext);
 			}
 		}
 
@@ -616,6 +743,11 @@ public interface COCopyable
 		 * destination by calling deepCopyRelationship on them. It can be used
 		 * when creating custom implementations of the duplicate() method in
 		 * COCopyable. Only relationships which are class properties are copied.
+		 * The copy policies of the copy context can copy some relationships with
+		 * a shallow copy, by reference or skip them (see COCopyPolicy). With the
+		 * LAZY mode, the non owned relationships copied with deepCopyRelationship
+		 * are only recorded on a COStampedEnterpriseObject destination, they're
+		 * copied when they're used or saved (see COLazyCopy).
 		 *
 		 * @param copiedObjects the copied objects keyed on the EOGlobalID of the object the copy was made from
 		 * @param source the EOEnterpriseObject to copy attribute values from
@@ -628,15 +760,74 @@ public interface COCopyable
 		{
 			if (log.isDebugEnabled())
 				log.debug("Method: deepCopyRelatedObjects/ source globalID: " + globalIDForObject(source));
-			EOEntity entity = EOUtilities.entityForObject(source.editingContext(),source);
+			COCopyPlan plan = COCopyPlan.planForObject(source);
+			COCopyPolicy policy = plan.policy(copyContext);
+			COLazyCopy lazyCopy = policy.lazy && destination instanceof COStampedEnterpriseObject ? new COLazyCopy(copiedObjects, source, plan, copyContext) : null;
+			for (int r = 0; r < plan.relationships.length; r++)
+			{
+				COCopyMode mode = policy.relationshipMode(r, true);
+				if (lazyCopy != null && COCopyMode.DEEP.equals(mode) && !plan.owned[r])
+					lazyCopy.addRelationship(r);
+				else
+					copyRelationship(copiedObjects, source, destination, plan, r, mode, copyContext);
+			}
+			if (lazyCopy != null && lazyCopy.hasPendingRelationships())
+				((COStampedEnterpriseObject)destination).setLazyCopy(lazyCopy);
+		}
 
-			Enumeration<EORelationship> relationshipEnumerator = entity.relationships().objectEnumerator();
-			while (relationshipEnumerator.hasMoreElements())
+		/**
+		 * Copies a relationship of the plan with the mode: DEEP with deepCopyRelationship, SHALLOW with shallowCopy,
+		 * REFERENCE by reference (or with the existing copy for a to one relationship), SKIP not at all.
+		 */
+		private static void copyRelationship(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects,
+				final EOEnterpriseObject source,
+				final EOEnterpriseObject destination,
+				final COCopyPlan plan,
+				final int relationshipIndex,
+				final COCopyMode mode,
+				final String copyContext)
+		{
+			String relationshipName = plan.relationshipNames[relationshipIndex];
+			if (log.isDebugEnabled())
+				log.debug("Method: copyRelationship/ relationship: " + relationshipName + " mode: " + mode + " source globalID: " + globalIDForObject(source));
+			switch (mode)
 			{
-				EORelationship relationship = relationshipEnumerator.nextElement();
-				if (entity.classProperties().containsObject(relationship) && isRelationshipCopyable(relationship))
+			case SKIP:
+				break;
+			case DEEP:
+				deepCopyRelationship(copiedObjects, source, destination, plan.relationships[relationshipIndex], copyContext);
+				break;
+			default:
+				if (plan.toMany[relationshipIndex])
+				{
+					@SuppressWarnings("unchecked")
+					NSArray<EOEnterpriseObject> originalObjects = (NSArray<EOEnterpriseObject>)source.valueForKey(relationshipName);
+					for (int i = 0, count = originalObjects.count(); i < count; i++)
+					{
+						EOEnterpriseObject originalRelated = originalObjects.objectAtIndex(i);
+						EOEnterpriseObject copyRelated;
+						if (COCopyMode.SHALLOW.equals(mode))
+							copyRelated = shallowCopy(copiedObjects, originalRelated, copyContext);
+						else
+							copyRelated = referenceCopy(originalRelated);
+						destination.addObjectToBothSidesOfRelationshipWithKey(copyRelated, relationshipName);
+					}
+				}
+				else
 				{
-					deepCopyRelationship(copiedObjects, source, destination, relationship, copyContext);
+					EOEnterpriseObject originalRelated = (EOEnterpriseObject)source.valueForKey(relationshipName);
+					if (originalRelated != null)
+					{
+						EOEnterpriseObject copyRelated;
+						if (COCopyMode.SHALLOW.equals(mode))
+							copyRelated = shallowCopy(copiedObjects, originalRelated, copyContext);
+						else
+						{
+							copyRelated = copiedObjects.objectForKey(globalIDForObject(originalRelated));
+							copyRelated = copyRelated != null ? copyRelated: referenceCopy(originalRelated);
+						}
+						destination.addObjectToBothSidesOfRelationshipWithKey(copyRelated, relationshipName);
+					}
 				}
 			}
 		}
@@ -671,8 +862,9 @@ public interface COCopyable
 
 				@SuppressWarnings("unchecked")
 				NSArray<EOEnterpriseObject> originalObjects = (NSArray<EOEnterpriseObject>)source.valueForKey(relationshipName);
-				@SuppressWarnings("unchecked")
-				NSArray<EOEnterpriseObject> destinationObjects = (NSArray<EOEnterpriseObject>)destination.valueForKey(relationshipName);
+				// The objects of the destination relationship in an identity set, a linear search per copied object
+				// makes the copy of a large relationship quadratic.
+				RelationshipMembers destinationMembers = new RelationshipMembers(destination, relationshipName);
 
 				if (log.isDebugEnabled())
 					log.debug("Method: deepCopyRelationship/ copying " + originalObjects.count() + " originalObjects for relationship (name): " + relationshipName);
@@ -687,9 +879,10 @@ public interface COCopyable
 					// copiedObjects line can set the relationship that we are
 					// about to set.  We need to check for this so that we do not
 					// create duplicated relationships.
-					if (!destinationObjects.containsObject(originalCopy))
+					if (!destinationMembers.contains(originalCopy))
 					{
 						destination.addObjectToBothSidesOfRelationshipWithKey(originalCopy, relationshipName);
+						destinationMembers.update();
 					}
 				}
 			}
@@ -708,6 +901,51 @@ public interface COCopyable
 			}
 		}
 
+		/**
+		 * Identity set of the objects of a to-many relationship kept up to date when the relationship grows. The objects
+		 * added to the relationship are appended to its array, so only the new ones are added to the set.
+		 */
+		static class RelationshipMembers
+		{
+			private final EOEnterpriseObject _eo;
+			private final String _relationshipName;
+			private final Set<EOEnterpriseObject> _members = Collections.newSetFromMap(new IdentityHashMap<EOEnterpriseObject, Boolean>());
+			private NSArray<EOEnterpriseObject> _objects = NSArray.emptyArray();
+			private int _count = 0;
+
+			RelationshipMembers(final EOEnterpriseObject eo, final String relationshipName)
+			{
+				_eo = eo;
+				_relationshipName = relationshipName;
+				update();
+			}
+
+			boolean contains(final EOEnterpriseObject eo)
+			{
+				update();
+				return _members.contains(eo);
+			}
+
+			@SuppressWarnings("unchecked")
+			void update()
+			{
+				NSArray<EOEnterpriseObject> objects = (NSArray<EOEnterpriseObject>)_eo.valueForKey(_relationshipName);
+				int count = objects.count();
+				if (objects == _objects && count == _count)
+					return;
+				// An object has been removed or the array has been replaced by another one: the set is built again.
+				if (count < _count || (objects != _objects && (_count > 0 && objects.objectAtIndex(_count - 1) != _objects.objectAtIndex(_count - 1))))
+				{
+					_members.clear();
+					_count = 0;
+				}
+				for (int i = _count; i < count; i++)
+					_members.add(objects.objectAtIndex(i));
+				_objects = objects;
+				_count = count;
+			}
+		}
+
 		/**
 		 * Convenience method to get EOGlobalID from an EOEnterpriseObject.
 		 *
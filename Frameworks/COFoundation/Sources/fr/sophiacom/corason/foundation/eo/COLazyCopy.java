@@ -0,0 +1,135 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Relationships of a copy made with the LAZY copy mode (see COCopyPolicy) that are still shared with the source. The non
+ * owned relationships that a deep copy would copy with COCopyable.Utility.deepCopyRelationship are only recorded when the
+ * object is copied, a large template copy returns once its owned part is copied. A relationship is copied, with the
+ * <code>copiedObjects</code> dictionary and the copy context of the whole copy:
+ * <ul>
+ * <li>when it's read or modified on the copy (storedValueForKey, takeStoredValueForKey, valueForKey and takeValueForKey
+ * of COStampedEnterpriseObject), the snapshots taken by the editing context don't copy it</li>
+ * <li>when the copy is saved (COEditingContext.saveChanges calls copyPendingRelationships)</li>
+ * </ul>
+ * The relationship is copied from the source as it is at that time, the source must stay in the editing context of the
+ * copy until then. The relationships of a deleted copy are not copied. Only a COStampedEnterpriseObject copied with
+ * COCopyable.Utility.deepCopy (the default duplicate) can be lazy, COCopyOperation and the other copy operations copy
+ * everything at once.
+ *
+ * @see COCopyable.Utility#deepCopyRelatedObjects(NSMutableDictionary, EOEnterpriseObject, EOEnterpriseObject, String)
+ */
+public final class COLazyCopy
+{
+	private static final Logger log = Logger.getLogger(COLazyCopy.class);
+	/** <code>true</code> once a lazy copy has been made, the saves don't look for pending relationships before */
+	private static volatile boolean used;
+
+	private final NSMutableDictionary<Object, EOEnterpriseObject> _copiedObjects;
+	private final EOEnterpriseObject _source;
+	private final COCopyPlan _plan;
+	private final String _copyContext;
+	/** indexes in COCopyPlan of the relationships not copied yet, the first <code>_pendingCount</code> ones */
+	private final int[] _pendingIndexes;
+	private int _pendingCount;
+
+	COLazyCopy(final NSMutableDictionary<Object, EOEnterpriseObject> copiedObjects, final EOEnterpriseObject source, final COCopyPlan plan, final String copyContext)
+	{
+		_copiedObjects = copiedObjects;
+		_source = source;
+		_plan = plan;
+		_copyContext = copyContext;
+		_pendingIndexes = new int[plan.relationships.length];
+		used = true;
+	}
+
+	void addRelationship(final int relationshipIndex)
+	{
+		_pendingIndexes[_pendingCount++] = relationshipIndex;
+	}
+
+	boolean hasPendingRelationships()
+	{
+		return _pendingCount > 0;
+	}
+
+	/**
+	 * Copies the relationship if it's still shared with the source.
+	 *
+	 * @param copy the copy of the source
+	 * @param key a key of the copy
+	 * @return <code>true</code> if no relationship is pending anymore
+	 */
+	boolean copyRelationship(final EOEnterpriseObject copy, final String key)
+	{
+		for (int i = 0; i < _pendingCount; i++)
+		{
+			int r = _pendingIndexes[i];
+			if (_plan.relationshipNames[r].equals(key))
+			{
+				// Removed first: the copy of the relationship reads it on the copy.
+				_pendingIndexes[i] = _pendingIndexes[--_pendingCount];
+				copyRelationshipAtIndex(copy, r);
+				break;
+			}
+		}
+		return _pendingCount == 0;
+	}
+
+	/**
+	 * Copies all the relationships still shared with the source.
+	 *
+	 * @param copy the copy of the source
+	 */
+	void copyRelationships(final EOEnterpriseObject copy)
+	{
+		while (_pendingCount > 0)
+			copyRelationshipAtIndex(copy, _pendingIndexes[--_pendingCount]);
+	}
+
+	private void copyRelationshipAtIndex(final EOEnterpriseObject copy, final int relationshipIndex)
+	{
+		if (log.isDebugEnabled())
+			log.debug("method: copyRelationshipAtIndex: " + _plan.entityName + "." + _plan.relationshipNames[relationshipIndex] + " source: "
+					+ COCopyable.Utility.globalIDForObject(_source));
+		COCopyable.Utility.deepCopyRelationship(_copiedObjects, _source, copy, _plan.relationships[relationshipIndex], _copyContext);
+	}
+
+	/**
+	 * Copies the relationships still shared with their source of the inserted objects of the editing context, and of the
+	 * objects inserted by these copies, so that the save persists complete copies.
+	 *
+	 * @param ec an editing context about to be saved
+	 * @return number of objects whose relationships have been copied
+	 */
+	public static int copyPendingRelationships(final EOEditingContext ec)
+	{
+		if (!used)
+			return 0;
+		int count = 0;
+		boolean copied = true;
+		while (copied)
+		{
+			copied = false;
+			ec.processRecentChanges();
+			@SuppressWarnings("unchecked")
+			NSArray<EOEnterpriseObject> insertedObjects = new NSArray<EOEnterpriseObject>(ec.insertedObjects());
+			for (EOEnterpriseObject eo : insertedObjects)
+			{
+				if (eo instanceof COStampedEnterpriseObject && ((COStampedEnterpriseObject)eo).copyLazyRelationships())
+				{
+					copied = true;
+					count++;
+				}
+			}
+		}
+		if (log.isDebugEnabled() && count > 0)
+			log.debug("method: copyPendingRelationships: objects: " + count);
+		return count;
+	}
+}
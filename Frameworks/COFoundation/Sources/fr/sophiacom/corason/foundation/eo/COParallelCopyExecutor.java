@@ -0,0 +1,364 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOObjectStoreCoordinator;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableSet;
+
+import er.extensions.eof.ERXObjectStoreCoordinator;
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory;
+
+/**
+ * Copy of many independent roots in parallel, for example a template copied for each of a list of customers. The roots
+ * are split into partitions of <code>partitionSize</code> roots, each partition is copied and saved in its own manual
+ * locking editing context by a pool of <code>threadCount</code> worker threads:<br>
+ * <code>fr.sophiacom.corason.foundation.eo.COParallelCopyExecutor.threadCount=</code> (number of processors by default)<br>
+ * <code>fr.sophiacom.corason.foundation.eo.COParallelCopyExecutor.partitionSize=10</code><br>
+ * <code>fr.sophiacom.corason.foundation.eo.COParallelCopyExecutor.separateObjectStores=false</code><p>
+ * By default the editing contexts share the default object store coordinator, so the workers are serialized by its lock
+ * while they fetch and save. With <code>separateObjectStores</code>, each worker thread has its own coordinator (and its
+ * own database connection and snapshots), the coordinators are disposed at the end of the copy.<p>
+ * Each root is copied by its own COCopyOperation, the same root can be given several times and is then copied several
+ * times. The copies can be completed (for example with their customer) by a CopyHandler in the editing context of the
+ * partition before it's saved. A partition is saved or not at all: the failure of a root (exception of the copy, of the
+ * handler or of the save) is recorded for all the roots of its partition and the other partitions go on.
+ *
+ * @see COCopyOperation
+ */
+public class COParallelCopyExecutor
+{
+	private static final Logger log = Logger.getLogger(COParallelCopyExecutor.class);
+	private static final int defaultThreadCount = ERXProperties.intForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COParallelCopyExecutor.threadCount",
+			Runtime.getRuntime().availableProcessors());
+	private static final int defaultPartitionSize = ERXProperties.intForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COParallelCopyExecutor.partitionSize", 10);
+	private static final boolean defaultSeparateObjectStores = ERXProperties.booleanForKeyWithDefault(
+			"fr.sophiacom.corason.foundation.eo.COParallelCopyExecutor.separateObjectStores", false);
+
+	/**
+	 * Completes the copies before the save of their partition.
+	 */
+	public interface CopyHandler
+	{
+		/**
+		 * Called by a worker thread, with the editing context of the partition locked.
+		 *
+		 * @param rootIndex index of the root in the roots given to the executor
+		 * @param source the root in the editing context of the partition
+		 * @param copy its copy
+		 */
+		public void didCopy(int rootIndex, EOEnterpriseObject source, EOEnterpriseObject copy);
+	}
+
+	/**
+	 * Copies and failures of the roots.
+	 */
+	public static final class Result
+	{
+		private final EOGlobalID[] _copyGlobalIDs;
+		private final NSDictionary<Integer, Throwable> _failures;
+
+		private Result(final EOGlobalID[] copyGlobalIDs, final NSDictionary<Integer, Throwable> failures)
+		{
+			_copyGlobalIDs = copyGlobalIDs;
+			_failures = failures;
+		}
+
+		/**
+		 * @param rootIndex index of a root
+		 * @return global id of the saved copy of the root, <code>null</code> if its partition failed
+		 */
+		public EOGlobalID copyGlobalID(final int rootIndex)
+		{
+			return _copyGlobalIDs[rootIndex];
+		}
+
+		/**
+		 * @return global ids of the saved copies in the order of the roots, without the failed ones
+		 */
+		public NSArray<EOGlobalID> copyGlobalIDs()
+		{
+			NSMutableArray<EOGlobalID> gids = new NSMutableArray<EOGlobalID>(_copyGlobalIDs.length);
+			for (EOGlobalID gid : _copyGlobalIDs)
+			{
+				if (gid != null)
+					gids.addObject(gid);
+			}
+			return gids;
+		}
+
+		/**
+		 * @return exceptions by index of the failed roots
+		 */
+		public NSDictionary<Integer, Throwable> failures()
+		{
+			return _failures;
+		}
+
+		public boolean hasFailures()
+		{
+			return _failures.count() > 0;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "roots: " + _copyGlobalIDs.length + " failures: " + _failures.count();
+		}
+	}
+
+	private final String _copyContext;
+	private int _threadCount = defaultThreadCount;
+	private int _partitionSize = defaultPartitionSize;
+	private boolean _separateObjectStores = defaultSeparateObjectStores;
+	private CopyHandler _copyHandler;
+
+	/**
+	 * @param copyContext a context that can be passed to all objects involved by the copy process
+	 */
+	public COParallelCopyExecutor(final String copyContext)
+	{
+		_copyContext = copyContext;
+	}
+
+	public void setThreadCount(final int threadCount)
+	{
+		if (threadCount <= 0)
+			throw new IllegalArgumentException("The thread count must be positive.");
+		_threadCount = threadCount;
+	}
+
+	public void setPartitionSize(final int partitionSize)
+	{
+		if (partitionSize <= 0)
+			throw new IllegalArgumentException("The partition size must be positive.");
+		_partitionSize = partitionSize;
+	}
+
+	public void setSeparateObjectStores(final boolean separateObjectStores)
+	{
+		_separateObjectStores = separateObjectStores;
+	}
+
+	public void setCopyHandler(final CopyHandler copyHandler)
+	{
+		_copyHandler = copyHandler;
+	}
+
+	/**
+	 * Copies the roots, the method returns when all the partitions are done.
+	 *
+	 * @param roots saved objects, the editing context must be locked by the caller
+	 * @return the copies and the failures
+	 */
+	public Result copyObjects(final NSArray<? extends EOEnterpriseObject> roots)
+	{
+		NSMutableArray<EOGlobalID> gids = new NSMutableArray<EOGlobalID>(roots.count());
+		for (EOEnterpriseObject root : roots)
+		{
+			EOGlobalID gid = root.editingContext().globalIDForObject(root);
+			if (gid == null || gid.isTemporary())
+				throw new IllegalArgumentException("The objects to copy must be saved: " + root);
+			gids.addObject(gid);
+		}
+		return copyGlobalIDs(gids);
+	}
+
+	/**
+	 * Copies the roots, the method returns when all the partitions are done.
+	 *
+	 * @param rootGlobalIDs global ids of saved objects
+	 * @return the copies and the failures
+	 */
+	public Result copyGlobalIDs(final NSArray<EOGlobalID> rootGlobalIDs)
+	{
+		long startTime = System.currentTimeMillis();
+		EOGlobalID[] copyGlobalIDs = new EOGlobalID[rootGlobalIDs.count()];
+		ConcurrentMap<Integer, Throwable> failures = new ConcurrentHashMap<Integer, Throwable>();
+		int threadCount = Math.min(_threadCount, (rootGlobalIDs.count() + _partitionSize - 1) / _partitionSize);
+		if (threadCount == 0)
+			return new Result(copyGlobalIDs, NSDictionary.<Integer, Throwable>emptyDictionary());
+
+		final List<EOObjectStoreCoordinator> objectStores = new ArrayList<EOObjectStoreCoordinator>();
+		ThreadLocal<EOObjectStoreCoordinator> threadObjectStore = null;
+		if (_separateObjectStores)
+			threadObjectStore = new ThreadLocal<EOObjectStoreCoordinator>()
+			{
+				@Override
+				protected EOObjectStoreCoordinator initialValue()
+				{
+					EOObjectStoreCoordinator objectStore = new ERXObjectStoreCoordinator();
+					synchronized (objectStores)
+					{
+						objectStores.add(objectStore);
+					}
+					return objectStore;
+				}
+			};
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount, new WorkerThreadFactory());
+		try
+		{
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int start = 0; start < rootGlobalIDs.count(); start += _partitionSize)
+			{
+				int end = Math.min(start + _partitionSize, rootGlobalIDs.count());
+				futures.add(executor.submit(new Partition(rootGlobalIDs, start, end, threadObjectStore, copyGlobalIDs, failures)));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("The parallel copy has been interrupted.", e);
+		} catch (ExecutionException e)
+		{
+			// The partitions record their exceptions, only an Error can get here.
+			throw new IllegalStateException("A partition of the parallel copy failed.", e.getCause());
+		} finally
+		{
+			executor.shutdownNow();
+			// The object stores can only be disposed when no worker uses them anymore.
+			awaitTermination(executor);
+			synchronized (objectStores)
+			{
+				for (EOObjectStoreCoordinator objectStore : objectStores)
+					objectStore.dispose();
+			}
+		}
+		Result result = new Result(copyGlobalIDs, new NSDictionary<Integer, Throwable>(failures));
+		if (log.isDebugEnabled())
+			log.debug("method: copyGlobalIDs: " + result + " threads: " + threadCount + " object stores: " + objectStores.size()
+					+ " time: " + (System.currentTimeMillis() - startTime) + " ms");
+		return result;
+	}
+
+	/**
+	 * Waits for the end of the workers after a <code>shutdownNow()</code>. The wait is not interruptible: an interrupted
+	 * partition stops before its next root, but a running fetch or save must finish before its object store is disposed.
+	 * The interrupted status of the current thread is restored.
+	 */
+	private static void awaitTermination(final ExecutorService executor)
+	{
+		boolean interrupted = false;
+		while (!executor.isTerminated())
+		{
+			try
+			{
+				if (!executor.awaitTermination(1, TimeUnit.MINUTES))
+					log.warn("method: awaitTermination: the workers of the parallel copy are still running.");
+			} catch (InterruptedException e)
+			{
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Copy and save of the roots from <code>start</code> to <code>end</code>.
+	 */
+	private final class Partition implements Callable<Void>
+	{
+		private final NSArray<EOGlobalID> _rootGlobalIDs;
+		private final int _start;
+		private final int _end;
+		private final ThreadLocal<EOObjectStoreCoordinator> _threadObjectStore;
+		private final EOGlobalID[] _copyGlobalIDs;
+		private final ConcurrentMap<Integer, Throwable> _failures;
+
+		private Partition(final NSArray<EOGlobalID> rootGlobalIDs, final int start, final int end, final ThreadLocal<EOObjectStoreCoordinator> threadObjectStore,
+				final EOGlobalID[] copyGlobalIDs, final ConcurrentMap<Integer, Throwable> failures)
+		{
+			_rootGlobalIDs = rootGlobalIDs;
+			_start = start;
+			_end = end;
+			_threadObjectStore = threadObjectStore;
+			_copyGlobalIDs = copyGlobalIDs;
+			_failures = failures;
+		}
+
+		public Void call()
+		{
+			EOEditingContext ec = _threadObjectStore == null ? COEditingContextFactory.newManualLockingEditingContext()
+					: COEditingContextFactory.newManualLockingEditingContext(_threadObjectStore.get());
+			ec.lock();
+			try
+			{
+				NSMutableArray<EOEnterpriseObject> sources = new NSMutableArray<EOEnterpriseObject>(_end - _start);
+				NSMutableSet<EOGlobalID> distinctGlobalIDs = new NSMutableSet<EOGlobalID>();
+				NSMutableArray<EOEnterpriseObject> distinctSources = new NSMutableArray<EOEnterpriseObject>();
+				for (int i = _start; i < _end; i++)
+				{
+					EOEnterpriseObject source = ec.faultForGlobalID(_rootGlobalIDs.objectAtIndex(i), ec);
+					sources.addObject(source);
+					if (!distinctGlobalIDs.containsObject(_rootGlobalIDs.objectAtIndex(i)))
+					{
+						distinctGlobalIDs.addObject(_rootGlobalIDs.objectAtIndex(i));
+						distinctSources.addObject(source);
+					}
+				}
+				COCopyable.DefaultImplementation.prefetchGraph(distinctSources, _copyContext);
+				NSMutableArray<EOEnterpriseObject> copies = new NSMutableArray<EOEnterpriseObject>(sources.count());
+				for (int i = 0; i < sources.count(); i++)
+				{
+					if (Thread.currentThread().isInterrupted())
+						throw new IllegalStateException("The parallel copy has been interrupted.");
+					EOEnterpriseObject copy = new COCopyOperation(_copyContext).copy(sources.objectAtIndex(i));
+					if (_copyHandler != null)
+						_copyHandler.didCopy(_start + i, sources.objectAtIndex(i), copy);
+					copies.addObject(copy);
+				}
+				ec.saveChanges();
+				for (int i = 0; i < copies.count(); i++)
+					_copyGlobalIDs[_start + i] = ec.globalIDForObject(copies.objectAtIndex(i));
+			} catch (RuntimeException e)
+			{
+				log.error("method: call: roots: " + _start + "-" + (_end - 1), e);
+				for (int i = _start; i < _end; i++)
+					_failures.put(Integer.valueOf(i), e);
+			} finally
+			{
+				ec.unlock();
+				ec.dispose();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Daemon worker threads, the copy must not keep the application alive.
+	 */
+	private static final class WorkerThreadFactory implements ThreadFactory
+	{
+		private static final AtomicInteger poolNumber = new AtomicInteger();
+		private final int _poolNumber = poolNumber.incrementAndGet();
+		private final AtomicInteger _threadNumber = new AtomicInteger();
+
+		public Thread newThread(final Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "COParallelCopyExecutor-" + _poolNumber + "-" + _threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,591 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSKeyValueCoding;
+
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory;
+
+/**
+ * In-memory count of the references to the "parameter" entities, used by COCheckDelete.DefaultImplementation instead of
+ * the queries. An entity is counted when its userInfo contains <code>referenceCount = true</code> (and
+ * <code>checkDelete = true</code>). Only the simple relationships (see COCheckDeleteIndex) are counted, the other ones
+ * are still checked with a fetch.<p>
+ * The counts are seeded at startup by COCoreApplication with one <code>SELECT FK, COUNT(*) ... GROUP BY FK</code> per
+ * relationship. Then the saves of the COEditingContext in the database update them with the values actually saved (see
+ * Delta), like the copies of COSQLCopyOperation (see rowsDidInsert) and the deletes of COCascadeDeletePlanner (see
+ * rowsWillDelete). The changes made by another instance, another application, other plain SQL or an editing context
+ * that is not a COEditingContext are not seen, so the counts are seeded again at the consistency check interval (s) and the differences found are
+ * logged:<br>
+ * <code>fr.sophiacom.corason.foundation.eo.COReferenceCounter.enabled=true</code><br>
+ * <code>fr.sophiacom.corason.foundation.eo.COReferenceCounter.consistencyCheckInterval=3600</code><br>
+ * A wrong count in either direction gives a wrong answer (a referenced row deleted or a free row refused until the next
+ * check), so COCheckDelete only uses the counts of the entities whose userInfo also contains
+ * <code>referenceCountTrusted = true</code>: set it only when the referencing rows are written by this instance alone.
+ * The counts of the other entities are only maintained and checked, the consistency check tells whether they can be
+ * trusted.
+ *
+ * @see COCheckDelete.DefaultImplementation#checkDelete(EOEnterpriseObject)
+ */
+public class COReferenceCounter
+{
+	public static final String REFERENCE_COUNT = "referenceCount";
+	public static final String REFERENCE_COUNT_TRUSTED = "referenceCountTrusted";
+
+	private static final Logger log = Logger.getLogger(COReferenceCounter.class);
+	private static final boolean enabled = ERXProperties.booleanForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COReferenceCounter.enabled", false);
+	private static final long consistencyCheckInterval = ERXProperties.longForKeyWithDefault("fr.sophiacom.corason.foundation.eo.COReferenceCounter.consistencyCheckInterval", 3600L) * 1000L;
+	private static final NSArray<String> SEED_RESULT_KEYS = new NSArray<String>(new String[] {"R0", "R1"});
+	private static volatile COReferenceCounter counter = null;
+	private static Timer consistencyCheckTimer;
+
+	private final COCheckDeleteIndex _index;
+	private final Map<String, TrackedEntity> _trackedEntities;
+	private final Map<String, List<Reference>> _referencesBySourceEntity;
+
+	/**
+	 * The counts of an entity, one map (normalized primary key -> count) per simple relationship.
+	 */
+	static final class TrackedEntity
+	{
+		final COCheckDeleteIndex.EntityIndex entityIndex;
+		final ConcurrentMap<Object, AtomicInteger>[] counts;
+
+		@SuppressWarnings("unchecked")
+		private TrackedEntity(final COCheckDeleteIndex.EntityIndex anEntityIndex)
+		{
+			entityIndex = anEntityIndex;
+			counts = new ConcurrentMap[anEntityIndex.relationships.length];
+			for (int i = 0; i < counts.length; i++)
+			{
+				if (anEntityIndex.simple[i])
+					counts[i] = new ConcurrentHashMap<Object, AtomicInteger>();
+			}
+		}
+
+		/**
+		 * @param relationshipIndex index of a simple relationship
+		 * @param key normalized primary key
+		 * @return number of rows that reference the key through the relationship
+		 */
+		int referenceCount(final int relationshipIndex, final Object key)
+		{
+			AtomicInteger count = counts[relationshipIndex].get(key);
+			return count == null ? 0 : count.get();
+		}
+
+		private void add(final int relationshipIndex, final Object key, final int delta)
+		{
+			ConcurrentMap<Object, AtomicInteger> relationshipCounts = counts[relationshipIndex];
+			AtomicInteger count = relationshipCounts.get(key);
+			if (count == null)
+			{
+				AtomicInteger newCount = new AtomicInteger();
+				count = relationshipCounts.putIfAbsent(key, newCount);
+				if (count == null)
+					count = newCount;
+			}
+			count.addAndGet(delta);
+		}
+	}
+
+	/**
+	 * A counted relationship seen from its source entity.
+	 */
+	private static final class Reference
+	{
+		private final TrackedEntity _trackedEntity;
+		private final int _relationshipIndex;
+		private final String _relationshipName;
+
+		private Reference(final TrackedEntity trackedEntity, final int relationshipIndex)
+		{
+			_trackedEntity = trackedEntity;
+			_relationshipIndex = relationshipIndex;
+			_relationshipName = trackedEntity.entityIndex.relationships[relationshipIndex].name();
+		}
+	}
+
+	/**
+	 * Destinations of the counted relationships of the objects changed in an editing context, read in the committed
+	 * snapshots, and compared with the saved values when the save succeeds.
+	 */
+	private static final class ChangedObject
+	{
+		private final List<Reference> _references;
+		private final Object[] _oldKeys;
+
+		private ChangedObject(final List<Reference> references)
+		{
+			_references = references;
+			_oldKeys = new Object[references.size()];
+		}
+
+		private void readOldKeys(final EOEditingContext ec, final EOEnterpriseObject eo)
+		{
+			NSDictionary<String, Object> snapshot = ec.committedSnapshotForObject(eo);
+			for (int i = 0; i < _oldKeys.length; i++)
+				_oldKeys[i] = snapshot == null ? null : destinationKey(ec, snapshot.objectForKey(_references.get(i)._relationshipName));
+		}
+	}
+
+	/**
+	 * Changes of the counts made by the saves of an editing context. The objects are recorded when they are inserted,
+	 * changed or deleted, including by the willInsert and willUpdate methods run during the save, and the counts are
+	 * updated with the values actually saved.
+	 */
+	public static final class Delta
+	{
+		private final Map<EOEnterpriseObject, ChangedObject> _changedObjects = new IdentityHashMap<EOEnterpriseObject, ChangedObject>();
+
+		private Delta()
+		{
+		}
+
+		/**
+		 * Records an object that will change, if it references a counted entity.
+		 *
+		 * @param ec editing context of the object
+		 * @param eo object inserted, changed or deleted
+		 */
+		public void objectWillChange(final EOEditingContext ec, final EOEnterpriseObject eo)
+		{
+			if (_changedObjects.containsKey(eo))
+				return;
+			COReferenceCounter aCounter = counter;
+			List<Reference> references = aCounter == null ? null : aCounter._referencesBySourceEntity.get(eo.entityName());
+			if (references == null)
+				return;
+			ChangedObject changedObject = new ChangedObject(references);
+			changedObject.readOldKeys(ec, eo);
+			_changedObjects.put(eo, changedObject);
+		}
+
+		/**
+		 * Reads again the old destinations, the committed snapshots may have been updated by the saves of the other
+		 * editing contexts. Must be called just before the save.
+		 *
+		 * @param ec editing context about to be saved
+		 */
+		public void willSave(final EOEditingContext ec)
+		{
+			for (Map.Entry<EOEnterpriseObject, ChangedObject> entry : _changedObjects.entrySet())
+				entry.getValue().readOldKeys(ec, entry.getKey());
+		}
+
+		/**
+		 * Applies the changes and forgets the objects. Must be called after the save so the destination objects have
+		 * their permanent global id.
+		 *
+		 * @param ec editing context that has saved its changes
+		 */
+		public void apply(final EOEditingContext ec)
+		{
+			for (Map.Entry<EOEnterpriseObject, ChangedObject> entry : _changedObjects.entrySet())
+			{
+				EOEnterpriseObject eo = entry.getKey();
+				ChangedObject changedObject = entry.getValue();
+				// The deleted objects are forgotten by the editing context.
+				boolean deleted = ec.globalIDForObject(eo) == null;
+				for (int i = 0; i < changedObject._oldKeys.length; i++)
+				{
+					Reference reference = changedObject._references.get(i);
+					Object oldKey = changedObject._oldKeys[i];
+					Object newKey = deleted ? null : destinationKey(ec, eo.storedValueForKey(reference._relationshipName));
+					if (oldKey == null ? newKey == null : oldKey.equals(newKey))
+						continue;
+					TrackedEntity trackedEntity = currentTrackedEntity(reference);
+					if (oldKey != null)
+						trackedEntity.add(reference._relationshipIndex, oldKey, -1);
+					if (newKey != null)
+						trackedEntity.add(reference._relationshipIndex, newKey, 1);
+				}
+			}
+			_changedObjects.clear();
+		}
+
+		/**
+		 * @return the counts of the reference in the current counter, they have been replaced if a seed ended during the save
+		 */
+		private static TrackedEntity currentTrackedEntity(final Reference reference)
+		{
+			TrackedEntity trackedEntity = reference._trackedEntity;
+			COReferenceCounter aCounter = counter;
+			if (aCounter == null)
+				return trackedEntity;
+			TrackedEntity currentTrackedEntity = aCounter._trackedEntities.get(trackedEntity.entityIndex.entityName);
+			return currentTrackedEntity != null && currentTrackedEntity.entityIndex == trackedEntity.entityIndex ? currentTrackedEntity : trackedEntity;
+		}
+	}
+
+	/**
+	 * References removed with plain SQL (see COCascadeDeletePlanner), counted in the transaction before the statements and
+	 * applied after the commit.
+	 */
+	public static final class RemovedReferences
+	{
+		private final List<Reference> _references = new ArrayList<Reference>();
+		private final List<Object> _keys = new ArrayList<Object>();
+		private final List<Integer> _counts = new ArrayList<Integer>();
+
+		private RemovedReferences()
+		{
+		}
+
+		/**
+		 * Decreases the counts. Must be called after the commit.
+		 *
+		 */
+		public void apply()
+		{
+			for (int i = 0; i < _references.size(); i++)
+			{
+				Reference reference = _references.get(i);
+				Delta.currentTrackedEntity(reference).add(reference._relationshipIndex, _keys.get(i), -_counts.get(i).intValue());
+			}
+		}
+	}
+
+	private COReferenceCounter(final COCheckDeleteIndex index, final Map<String, TrackedEntity> trackedEntities)
+	{
+		_index = index;
+		_trackedEntities = trackedEntities;
+		_referencesBySourceEntity = new HashMap<String, List<Reference>>();
+		for (TrackedEntity trackedEntity : trackedEntities.values())
+		{
+			for (int i = 0; i < trackedEntity.counts.length; i++)
+			{
+				if (trackedEntity.counts[i] == null)
+					continue;
+				String sourceEntityName = trackedEntity.entityIndex.referencingEntityNames[i];
+				List<Reference> references = _referencesBySourceEntity.get(sourceEntityName);
+				if (references == null)
+				{
+					references = new ArrayList<Reference>();
+					_referencesBySourceEntity.put(sourceEntityName, references);
+				}
+				references.add(new Reference(trackedEntity, i));
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the reference counter is enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Seeds the counts and starts the periodic consistency check if the counter is enabled.
+	 *
+	 */
+	public static synchronized void startIfEnabled()
+	{
+		if (!enabled || consistencyCheckTimer != null)
+			return;
+		seed();
+		if (consistencyCheckInterval > 0)
+		{
+			consistencyCheckTimer = new Timer("COReferenceCounter", true);
+			consistencyCheckTimer.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						seed();
+					} catch (RuntimeException e)
+					{
+						log.error("method: run: unable to check the reference counts", e);
+					}
+				}
+			}, consistencyCheckInterval, consistencyCheckInterval);
+		}
+	}
+
+	/**
+	 * Returns the counts of the entity if they can replace the SQL: the entity trusts its counts and the counter is seeded
+	 * with the same COCheckDeleteIndex.
+	 *
+	 * @param entityIndex
+	 * @return the counts or <code>null</code>
+	 */
+	static TrackedEntity trackedEntity(final COCheckDeleteIndex.EntityIndex entityIndex)
+	{
+		COReferenceCounter aCounter = counter;
+		if (aCounter == null || !entityIndex.referenceCountTrusted)
+			return null;
+		TrackedEntity trackedEntity = aCounter._trackedEntities.get(entityIndex.entityName);
+		return trackedEntity != null && trackedEntity.entityIndex == entityIndex ? trackedEntity : null;
+	}
+
+	/**
+	 * Returns a new delta to record the changes of an editing context.
+	 *
+	 * @return the delta
+	 */
+	public static Delta newDelta()
+	{
+		return new Delta();
+	}
+
+	private static Object destinationKey(final EOEditingContext ec, final Object destination)
+	{
+		if (!(destination instanceof EOEnterpriseObject))
+			return null;
+		EOGlobalID gid = ec.globalIDForObject((EOEnterpriseObject)destination);
+		if (!(gid instanceof EOKeyGlobalID) || gid.isTemporary())
+			return null;
+		return COCheckDelete.DefaultImplementation.normalizedValue(((EOKeyGlobalID)gid).keyValues()[0]);
+	}
+
+	/**
+	 * Counts the references in the database and replaces the current counts. The differences with the current counts
+	 * are logged.
+	 *
+	 */
+	public static void seed()
+	{
+		long startTime = System.currentTimeMillis();
+		COCheckDeleteIndex index = COCheckDeleteIndex.currentIndex();
+		Map<String, TrackedEntity> trackedEntities = new HashMap<String, TrackedEntity>();
+		EOEditingContext ec = COEditingContextFactory.newManualLockingEditingContext();
+		ec.lock();
+		try
+		{
+			for (String entityName : index.entityNames())
+			{
+				COCheckDeleteIndex.EntityIndex entityIndex = index.entityIndex(entityName);
+				if (!entityIndex.referenceCounted || entityIndex.simpleCount == 0)
+					continue;
+				TrackedEntity trackedEntity = new TrackedEntity(entityIndex);
+				for (int i = 0; i < trackedEntity.counts.length; i++)
+				{
+					if (trackedEntity.counts[i] != null)
+						seedRelationship(ec, trackedEntity, i);
+				}
+				trackedEntities.put(entityName, trackedEntity);
+			}
+		} finally
+		{
+			ec.unlock();
+			ec.dispose();
+		}
+
+		COReferenceCounter oldCounter = counter;
+		counter = new COReferenceCounter(index, trackedEntities);
+		if (oldCounter != null && oldCounter._index == index)
+		{
+			int differenceCount = differenceCount(oldCounter, counter);
+			if (differenceCount > 0)
+				log.warn("method: seed: the reference counts were wrong for " + differenceCount + " keys, they have been corrected");
+		}
+		log.info("method: seed: entities: " + trackedEntities.keySet() + " time: " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+
+	private static void seedRelationship(final EOEditingContext ec, final TrackedEntity trackedEntity, final int relationshipIndex)
+	{
+		COCheckDeleteIndex.EntityIndex entityIndex = trackedEntity.entityIndex;
+		String columnName = entityIndex.referencingColumns[relationshipIndex];
+		String sql = "SELECT " + columnName + " AS R0, COUNT(*) AS R1 FROM " + entityIndex.referencingTables[relationshipIndex]
+				+ " WHERE " + columnName + " IS NOT NULL GROUP BY " + columnName;
+		if (log.isDebugEnabled())
+			log.debug("method: seedRelationship: sql: " + sql);
+		addCounts(ec, trackedEntity, relationshipIndex, sql);
+	}
+
+	/**
+	 * Adds the counts read by the SQL, the columns are the key (R0) and the count (R1).
+	 */
+	private static void addCounts(final EOEditingContext ec, final TrackedEntity trackedEntity, final int relationshipIndex, final String sql)
+	{
+		@SuppressWarnings("unchecked")
+		NSArray<NSDictionary<String, Object>> rows = EOUtilities.rawRowsForSQL(ec, trackedEntity.entityIndex.modelName, sql, SEED_RESULT_KEYS);
+		for (NSDictionary<String, Object> row : rows)
+		{
+			Object key = row.objectForKey("R0");
+			Object count = row.objectForKey("R1");
+			if (key != null && key != NSKeyValueCoding.NullValue && count instanceof Number)
+				trackedEntity.add(relationshipIndex, COCheckDelete.DefaultImplementation.normalizedValue(key), ((Number)count).intValue());
+		}
+	}
+
+	/**
+	 * Counts the references of rows inserted with plain SQL (see COSQLCopyOperation), it must be called after the commit.
+	 * The references are read with one <code>SELECT FK, COUNT(*) ... GROUP BY FK</code> per counted relationship and chunk
+	 * of primary keys.
+	 *
+	 * @param ec editing context used to run the SQL
+	 * @param entity entity of the inserted rows
+	 * @param primaryKeys primary keys of the inserted rows
+	 */
+	public static void rowsDidInsert(final EOEditingContext ec, final EOEntity entity, final NSArray<Object> primaryKeys)
+	{
+		COReferenceCounter aCounter = counter;
+		List<Reference> references = aCounter == null ? null : aCounter._referencesBySourceEntity.get(entity.name());
+		if (references == null || primaryKeys.count() == 0)
+			return;
+		EOAttribute primaryKeyAttribute = entity.primaryKeyAttributes().objectAtIndex(0);
+		String primaryKeyColumn = entity.externalName() + "." + primaryKeyAttribute.columnName();
+		EOSQLExpression expression = EOUtilities.databaseContextForModelNamed(ec, entity.model().name()).adaptorContext().adaptor().expressionFactory()
+				.expressionForEntity(entity);
+		for (Reference reference : references)
+		{
+			COCheckDeleteIndex.EntityIndex entityIndex = reference._trackedEntity.entityIndex;
+			String columnName = entityIndex.referencingColumns[reference._relationshipIndex];
+			for (int start = 0; start < primaryKeys.count(); start += COCheckDelete.DefaultImplementation.inListSize)
+			{
+				int end = Math.min(start + COCheckDelete.DefaultImplementation.inListSize, primaryKeys.count());
+				StringBuilder sql = new StringBuilder("SELECT ").append(columnName).append(" AS R0, COUNT(*) AS R1 FROM ")
+						.append(entityIndex.referencingTables[reference._relationshipIndex]).append(" WHERE ").append(primaryKeyColumn).append(" IN (");
+				for (int i = start; i < end; i++)
+				{
+					if (i > start)
+						sql.append(", ");
+					sql.append(expression.formatValueForAttribute(primaryKeys.objectAtIndex(i), primaryKeyAttribute));
+				}
+				sql.append(") AND ").append(columnName).append(" IS NOT NULL GROUP BY ").append(columnName);
+				if (log.isDebugEnabled())
+					log.debug("method: rowsDidInsert: sql: " + sql);
+				addCounts(ec, reference._trackedEntity, reference._relationshipIndex, sql.toString());
+			}
+		}
+	}
+
+	/**
+	 * Returns a new list of references removed with plain SQL.
+	 *
+	 * @return the list or <code>null</code> if there is nothing to count
+	 */
+	public static RemovedReferences newRemovedReferences()
+	{
+		COReferenceCounter aCounter = counter;
+		return aCounter == null || aCounter._referencesBySourceEntity.isEmpty() ? null : new RemovedReferences();
+	}
+
+	/**
+	 * Counts the references of the rows that will be deleted with plain SQL (see COCascadeDeletePlanner). It must be
+	 * called in the transaction just before the DELETE statement, with one <code>SELECT FK, COUNT(*) ... GROUP BY FK</code>
+	 * per counted relationship of the entity.
+	 *
+	 * @param statement statement of the transaction
+	 * @param entity entity of the deleted rows
+	 * @param condition condition on the table of the entity that selects the deleted rows
+	 * @param removedReferences references removed by the transaction, applied after the commit
+	 * @exception SQLException
+	 */
+	public static void rowsWillDelete(final Statement statement, final EOEntity entity, final String condition, final RemovedReferences removedReferences)
+			throws SQLException
+	{
+		addRemovedReferences(statement, entity, null, condition, removedReferences);
+	}
+
+	/**
+	 * Counts the references of the rows whose foreign key will be set to NULL with plain SQL (see COCascadeDeletePlanner).
+	 * It must be called in the transaction just before the UPDATE statement.
+	 *
+	 * @param statement statement of the transaction
+	 * @param entity entity of the updated rows
+	 * @param column qualified column set to NULL
+	 * @param condition condition on the table of the entity that selects the updated rows
+	 * @param removedReferences references removed by the transaction, applied after the commit
+	 * @exception SQLException
+	 */
+	public static void rowsWillNullify(final Statement statement, final EOEntity entity, final String column, final String condition,
+			final RemovedReferences removedReferences) throws SQLException
+	{
+		addRemovedReferences(statement, entity, column, condition, removedReferences);
+	}
+
+	private static void addRemovedReferences(final Statement statement, final EOEntity entity, final String column, final String condition,
+			final RemovedReferences removedReferences) throws SQLException
+	{
+		COReferenceCounter aCounter = counter;
+		List<Reference> references = aCounter == null ? null : aCounter._referencesBySourceEntity.get(entity.name());
+		if (references == null)
+			return;
+		for (Reference reference : references)
+		{
+			COCheckDeleteIndex.EntityIndex entityIndex = reference._trackedEntity.entityIndex;
+			String columnName = entityIndex.referencingColumns[reference._relationshipIndex];
+			if (column != null && !column.equals(columnName))
+				continue;
+			String sql = "SELECT " + columnName + ", COUNT(*) FROM " + entityIndex.referencingTables[reference._relationshipIndex] + " WHERE " + condition
+					+ " AND " + columnName + " IS NOT NULL GROUP BY " + columnName;
+			if (log.isDebugEnabled())
+				log.debug("method: addRemovedReferences: sql: " + sql);
+			ResultSet resultSet = statement.executeQuery(sql);
+			try
+			{
+				while (resultSet.next())
+				{
+					Object key = resultSet.getObject(1);
+					if (key == null)
+						continue;
+					removedReferences._references.add(reference);
+					removedReferences._keys.add(COCheckDelete.DefaultImplementation.normalizedValue(key));
+					removedReferences._counts.add(Integer.valueOf(resultSet.getInt(2)));
+				}
+			} finally
+			{
+				resultSet.close();
+			}
+		}
+	}
+
+	private static int differenceCount(final COReferenceCounter oldCounter, final COReferenceCounter newCounter)
+	{
+		int differenceCount = 0;
+		for (Map.Entry<String, TrackedEntity> entry : newCounter._trackedEntities.entrySet())
+		{
+			TrackedEntity oldTrackedEntity = oldCounter._trackedEntities.get(entry.getKey());
+			if (oldTrackedEntity == null)
+				continue;
+			TrackedEntity newTrackedEntity = entry.getValue();
+			for (int i = 0; i < newTrackedEntity.counts.length; i++)
+			{
+				if (newTrackedEntity.counts[i] == null)
+					continue;
+				for (Map.Entry<Object, AtomicInteger> count : newTrackedEntity.counts[i].entrySet())
+				{
+					if (oldTrackedEntity.referenceCount(i, count.getKey()) != count.getValue().get())
+						differenceCount++;
+				}
+				for (Map.Entry<Object, AtomicInteger> count : oldTrackedEntity.counts[i].entrySet())
+				{
+					if (count.getValue().get() != 0 && !newTrackedEntity.counts[i].containsKey(count.getKey()))
+						differenceCount++;
+				}
+			}
+		}
+		return differenceCount;
+	}
+}
@@ -0,0 +1,673 @@
+package fr.sophiacom.corason.foundation.eo;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EOAdaptorContext;
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabase;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOJoin;
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOGlobalID;
+import com.webobjects.eocontrol.EOKeyGlobalID;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableSet;
+import com.webobjects.foundation.NSTimestamp;
+import com.webobjects.foundation._NSUtilities;
+import com.webobjects.jdbcadaptor.JDBCContext;
+
+import er.corebusinesslogic.ERCStampedEnterpriseObject;
+import fr.sophiacom.corason.foundation.eo.COCopyable.COCopyMode;
+import fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory;
+
+/**
+ * Copies an object and the objects it owns with INSERT ... SELECT statements, one per entity of the owned graph (and
+ * per chunk of COCheckDelete.inListSize rows), instead of instantiating every object in an editing context. The primary
+ * keys of the copies are allocated before the inserts and the keys of the copied rows are mapped with CASE expressions:
+ * <ul>
+ * <li>primary keys and foreign keys to a copied row: the key of the copy</li>
+ * <li>foreign keys of the other copyable to one relationships: the same row (a reference), or its copy if it's copied too</li>
+ * <li>copyable attributes (see COCopyPlan and the <code>isAttributeCopyable</code> userInfo key): the source value</li>
+ * <li>created and lastModified: the time of the copy</li>
+ * <li>the other columns (not copyable attributes, exposed keys of the other relationships): NULL</li>
+ * </ul>
+ * The graph is the one of COCopyable.DefaultImplementation.duplicate with the copy policies of the copy context (see
+ * COCopyPolicy): the owned relationships for the SHALLOW copy mode, all the copyable relationships for the DEEP mode,
+ * unless a rule sets the mode of the relationship; a skipped relationship is NULL. Everything runs in one database
+ * transaction, the inserts are done in the order of the foreign keys. No object is fetched, only the primary keys of the
+ * copied rows are read.<p>
+ * The business logic of the objects (awakeFromInsertion, willInsert, validateForSave, ...) is not run, the operation is
+ * only for graphs fully described by the model. The graphs that can't be copied this way raise an IllegalStateException
+ * when the plan is built and <code>copy</code> falls back to the copy of the objects: entities whose class overrides copy
+ * or duplicate (see COStampedEnterpriseObject), compound keys or joins, flattened relationships, inheritance, restricting
+ * qualifiers, an entity reached twice, a root or a to many relationship copied by reference, a not copyable
+ * column that can't be NULL. The CASE expressions of a foreign key list all the copied keys of the referenced entity, the
+ * operation is made for templates of moderate size.<p>
+ * After the commit, the reference counts of COReferenceCounter are increased with the references of the inserted rows and
+ * the to many snapshots of the inverse relationships of the references get the new rows. The referenced objects are not
+ * invalidated, the to many relationships already in an editing context see the new rows when they're refreshed.
+ *
+ * @see COCopyable.DefaultImplementation
+ */
+public class COSQLCopyOperation
+{
+	private static final Logger log = Logger.getLogger(COSQLCopyOperation.class);
+
+	private static final int COPY = 0;
+	private static final int NULL = 1;
+	private static final int NOW = 2;
+	/** key mapped with the keys of a node */
+	private static final int KEY = 3;
+	/** foreign key of a reference, mapped if the referenced row is copied */
+	private static final int REFERENCE = 4;
+
+	/**
+	 * Rows copied by the plan: the root or the destination of a copied relationship.
+	 */
+	private static final class Node
+	{
+		private final EOEntity _entity;
+		private final String _table;
+		private final EOAttribute _primaryKeyAttribute;
+		private final String _primaryKeyColumn;
+		private final Node _parent;
+		/** <code>true</code> if the rows are copied with the DEEP mode */
+		private final boolean _deep;
+		/** <code>true</code> if the parent row holds the foreign key to the node */
+		private final boolean _keyInParent;
+		/** attribute of the node joined to the parent (a foreign key, or the primary key if <code>_keyInParent</code>) */
+		private final EOAttribute _attribute;
+		/** attribute of the parent joined to the node */
+		private final EOAttribute _parentAttribute;
+		private final String _path;
+		private final NSMutableArray<Node> _children = new NSMutableArray<Node>();
+		private NSArray<Column> _columns;
+
+		private Node(final EOEntity entity, final Node parent, final boolean deep, final boolean keyInParent, final EOAttribute attribute, final EOAttribute parentAttribute,
+				final String path)
+		{
+			_entity = entity;
+			_table = entity.externalName();
+			_primaryKeyAttribute = entity.primaryKeyAttributes().objectAtIndex(0);
+			_primaryKeyColumn = _table + "." + _primaryKeyAttribute.columnName();
+			_parent = parent;
+			_deep = deep;
+			_keyInParent = keyInParent;
+			_attribute = attribute;
+			_parentAttribute = parentAttribute;
+			_path = path;
+		}
+
+		@Override
+		public String toString()
+		{
+			return _path + " (" + _entity.name() + ")";
+		}
+	}
+
+	/**
+	 * Value of a column of the copies.
+	 */
+	private static final class Column
+	{
+		private final EOAttribute _attribute;
+		private final int _kind;
+		/** node of the keys of a KEY or REFERENCE column, <code>null</code> for a reference to a row that is not copied */
+		private final Node _keyNode;
+		/** relationship of a REFERENCE column */
+		private final EORelationship _relationship;
+
+		private Column(final EOAttribute attribute, final int kind, final Node keyNode, final EORelationship relationship)
+		{
+			_attribute = attribute;
+			_kind = kind;
+			_keyNode = keyNode;
+			_relationship = relationship;
+		}
+	}
+
+	/**
+	 * Immutable plan of the copy of objects of an entity.
+	 */
+	public static final class Plan
+	{
+		private final NSArray<Node> _nodes;
+
+		private Plan(final NSArray<Node> nodes)
+		{
+			_nodes = nodes;
+		}
+
+		/**
+		 * @return name of the entity of the roots
+		 */
+		public String entityName()
+		{
+			return _nodes.objectAtIndex(0)._entity.name();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "copy: " + _nodes;
+		}
+	}
+
+	/**
+	 * Builds the plan of the copy of objects of the entity with the copy policies of the copy context.
+	 *
+	 * @param entity entity of the roots
+	 * @param copyContext the copy context, can be <code>null</code>
+	 * @return the plan
+	 * @exception IllegalStateException if the graph can't be copied with INSERT ... SELECT statements
+	 */
+	public static Plan planForEntity(final EOEntity entity, final String copyContext)
+	{
+		COCopyMode mode = COCopyPlan.planForEntity(entity).policy(copyContext).mode;
+		if (COCopyMode.REFERENCE.equals(mode))
+			throw new IllegalStateException("The objects of " + entity.name() + " are copied by reference.");
+		NSMutableArray<Node> nodes = new NSMutableArray<Node>();
+		checkEntity(entity, entity.name());
+		addNode(new Node(entity, null, COCopyMode.DEEP.equals(mode), false, null, null, entity.name()), copyContext, nodes);
+		for (Node node : nodes)
+			node._columns = columns(node, copyContext, nodes);
+		Plan plan = new Plan(nodes.immutableClone());
+		if (log.isDebugEnabled())
+			log.debug("method: planForEntity: plan: " + plan);
+		return plan;
+	}
+
+	private static void addNode(final Node node, final String copyContext, final NSMutableArray<Node> nodes)
+	{
+		for (Node other : nodes)
+		{
+			if (other._entity == node._entity)
+				throw new IllegalStateException("The entity " + node._entity.name() + " is reached twice: " + other._path + ", " + node._path);
+		}
+		nodes.addObject(node);
+		COCopyPlan copyPlan = COCopyPlan.planForEntity(node._entity);
+		for (int r = 0; r < copyPlan.relationships.length; r++)
+		{
+			EORelationship relationship = copyPlan.relationships[r];
+			String path = node._path + "." + relationship.name();
+			if (relationship.isFlattened() || relationship.joins().count() != 1)
+				throw new IllegalStateException("The relationship " + path + " must have one join and must not be flattened.");
+			EOJoin join = relationship.joins().objectAtIndex(0);
+			// The inverse of the relationship from the parent is set with the key of the copy of the parent.
+			if (node._parent != null && !node._keyInParent && join.sourceAttribute() == node._attribute && relationship.destinationEntity() == node._parent._entity)
+				continue;
+			COCopyMode mode = destinationMode(copyPlan, node, r, copyContext);
+			if (COCopyMode.SHALLOW.equals(mode) || COCopyMode.DEEP.equals(mode))
+			{
+				EOEntity destinationEntity = relationship.destinationEntity();
+				checkEntity(destinationEntity, path);
+				boolean deep = COCopyMode.DEEP.equals(mode);
+				Node child;
+				if (copyPlan.foreignKeyInSource[r])
+					child = new Node(destinationEntity, node, deep, true, join.destinationAttribute(), join.sourceAttribute(), path);
+				else if (join.sourceAttribute() == node._primaryKeyAttribute && !destinationEntity.primaryKeyAttributes().containsObject(join.destinationAttribute()))
+					child = new Node(destinationEntity, node, deep, false, join.destinationAttribute(), join.sourceAttribute(), path);
+				else
+					throw new IllegalStateException("The relationship " + path + " must join a foreign key to a primary key.");
+				node._children.addObject(child);
+				addNode(child, copyContext, nodes);
+			}
+			else if (COCopyMode.REFERENCE.equals(mode) && (copyPlan.toMany[r] || !copyPlan.foreignKeyInSource[r]))
+				throw new IllegalStateException("The relationship " + path + " is copied by reference, only a to one relationship with its foreign key in the source row can be.");
+		}
+	}
+
+	/**
+	 * @return how the destinations of the relationship are copied, see COCopyPolicy.destinationMode
+	 */
+	private static COCopyMode destinationMode(final COCopyPlan copyPlan, final Node node, final int relationshipIndex, final String copyContext)
+	{
+		COCopyPolicy policy = copyPlan.policy(copyContext);
+		COCopyMode mode = policy.relationshipMode(relationshipIndex, node._deep);
+		if (!COCopyMode.DEEP.equals(mode))
+			return mode;
+		return COCopyPlan.planForEntity(copyPlan.relationships[relationshipIndex].destinationEntity()).policy(copyContext).mode;
+	}
+
+	private static void checkEntity(final EOEntity entity, final String path)
+	{
+		if (entity.externalName() == null || entity.isReadOnly())
+			throw new IllegalStateException("The entity " + entity.name() + " of " + path + " must have a table and must not be read only.");
+		if (entity.primaryKeyAttributes().count() != 1)
+			throw new IllegalStateException("The entity " + entity.name() + " of " + path + " must have a single primary key.");
+		if (entity.parentEntity() != null || entity.subEntities().count() > 0 || entity.restrictingQualifier() != null)
+			throw new IllegalStateException("The entity " + entity.name() + " of " + path + " must not use inheritance or a restricting qualifier.");
+		Class<?> eoClass = _NSUtilities.classWithName(entity.className());
+		if (eoClass == null || !COCopyOperation.usesDefaultDuplicate(eoClass))
+			throw new IllegalStateException("The class " + entity.className() + " of " + path + " must keep the copy and duplicate methods of COStampedEnterpriseObject.");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static NSArray<Column> columns(final Node node, final String copyContext, final NSArray<Node> nodes)
+	{
+		EOEntity entity = node._entity;
+		COCopyPlan copyPlan = COCopyPlan.planForEntity(entity);
+		NSArray<String> copyableAttributeKeys = new NSArray<String>(copyPlan.copyableAttributeKeys);
+		NSMutableArray<Column> columns = new NSMutableArray<Column>();
+		NSMutableSet<String> columnNames = new NSMutableSet<String>();
+		for (EOAttribute attribute : (NSArray<EOAttribute>)entity.attributes())
+		{
+			if (attribute.columnName() == null || attribute.isDerived() || columnNames.containsObject(attribute.columnName()))
+				continue;
+			columnNames.addObject(attribute.columnName());
+			Column column = null;
+			if (attribute == node._primaryKeyAttribute)
+				column = new Column(attribute, KEY, node, null);
+			else if (node._parent != null && !node._keyInParent && attribute == node._attribute)
+				column = new Column(attribute, KEY, node._parent, null);
+			for (int i = 0; column == null && i < node._children.count(); i++)
+			{
+				Node child = node._children.objectAtIndex(i);
+				if (child._keyInParent && attribute == child._parentAttribute)
+					column = new Column(attribute, KEY, child, null);
+			}
+			for (int r = 0; column == null && r < copyPlan.relationships.length; r++)
+			{
+				EORelationship relationship = copyPlan.relationships[r];
+				if (copyPlan.foreignKeyInSource[r] && relationship.joins().objectAtIndex(0).sourceAttribute() == attribute
+						&& COCopyMode.REFERENCE.equals(destinationMode(copyPlan, node, r, copyContext)))
+				{
+					Node keyNode = null;
+					for (Node other : nodes)
+					{
+						if (other._entity == relationship.destinationEntity())
+							keyNode = other;
+					}
+					column = new Column(attribute, REFERENCE, keyNode, relationship);
+				}
+			}
+			if (column == null)
+			{
+				String name = attribute.name();
+				if (ERCStampedEnterpriseObject.Keys.CREATED.equals(name) || ERCStampedEnterpriseObject.Keys.LAST_MODIFIED.equals(name))
+					column = new Column(attribute, NOW, null, null);
+				else if (copyableAttributeKeys.containsObject(name))
+					column = new Column(attribute, COPY, null, null);
+				else if (attribute.allowsNull())
+					column = new Column(attribute, NULL, null, null);
+				else
+					throw new IllegalStateException("The column " + node._table + "." + attribute.columnName() + " of " + node._path + " is not copied and can't be NULL.");
+			}
+			columns.addObject(column);
+		}
+		return columns.immutableClone();
+	}
+
+	/**
+	 * Copies the object and the objects it owns (see the class comment) in the database. If the graph can't be copied with
+	 * INSERT ... SELECT statements, the copy is made by a COCopyOperation in a new editing context, which is saved.
+	 *
+	 * @param source saved object
+	 * @param copyContext context passed to the objects when the copy falls back to the copy of the objects
+	 * @return global id of the copy of the source, use faultForGlobalID to get it in an editing context
+	 */
+	public static EOGlobalID copy(final EOEnterpriseObject source, final String copyContext)
+	{
+		EOEditingContext ec = source.editingContext();
+		Plan plan;
+		try
+		{
+			plan = planForEntity(EOUtilities.entityForObject(ec, source), copyContext);
+		} catch (IllegalStateException e)
+		{
+			if (log.isDebugEnabled())
+				log.debug("method: copy: copy of the objects: " + e.getMessage());
+			return copyObjects(source, copyContext);
+		}
+		return copyRows(plan, source);
+	}
+
+	private static EOGlobalID copyObjects(final EOEnterpriseObject source, final String copyContext)
+	{
+		EOEditingContext ec = COEditingContextFactory.newManualLockingEditingContext();
+		ec.lock();
+		try
+		{
+			EOEnterpriseObject copy = new COCopyOperation(copyContext).copy(EOUtilities.localInstanceOfObject(ec, source));
+			ec.saveChanges();
+			return ec.globalIDForObject(copy);
+		} finally
+		{
+			ec.unlock();
+			ec.dispose();
+		}
+	}
+
+	/**
+	 * Copies the rows of the object with the plan, in one transaction.
+	 *
+	 * @param plan plan of the entity of the source
+	 * @param source saved object
+	 * @return global id of the copy of the source
+	 * @exception IllegalStateException if a transaction is open
+	 */
+	public static EOGlobalID copyRows(final Plan plan, final EOEnterpriseObject source)
+	{
+		EOEditingContext ec = source.editingContext();
+		EOGlobalID gid = ec.globalIDForObject(source);
+		if (!plan.entityName().equals(source.entityName()) || !(gid instanceof EOKeyGlobalID) || gid.isTemporary())
+			throw new IllegalArgumentException("The object must be a saved object of the entity " + plan.entityName() + ": " + source);
+
+		long startTime = System.currentTimeMillis();
+		Node root = plan._nodes.objectAtIndex(0);
+		Map<Node, Map<Object, Object>> keyMaps = new LinkedHashMap<Node, Map<Object, Object>>();
+		Map<EORelationship, Map<EOGlobalID, NSMutableArray<EOGlobalID>>> newDestinations = new LinkedHashMap<EORelationship, Map<EOGlobalID, NSMutableArray<EOGlobalID>>>();
+		int rowCount = 0;
+		EODatabaseContext databaseContext = EOUtilities.databaseContextForModelNamed(ec, root._entity.model().name());
+		databaseContext.lock();
+		try
+		{
+			EOAdaptorChannel channel = databaseContext.availableChannel().adaptorChannel();
+			if (!channel.isOpen())
+				channel.openChannel();
+			EOAdaptorContext adaptorContext = channel.adaptorContext();
+			if (adaptorContext.hasOpenTransaction())
+				throw new IllegalStateException("The SQL copy needs its own transaction.");
+			adaptorContext.beginTransaction();
+			boolean succeeded = false;
+			try
+			{
+				// The keys of the parents are read first, the nodes are in the order of the graph.
+				for (Node node : plan._nodes)
+				{
+					NSArray<Object> keys;
+					if (node == root)
+						keys = new NSArray<Object>(((EOKeyGlobalID)gid).keyValues()[0]);
+					else
+						keys = readKeys(channel, node, keyMaps.get(node._parent));
+					Map<Object, Object> keyMap = new LinkedHashMap<Object, Object>();
+					if (keys.count() > 0)
+					{
+						@SuppressWarnings("unchecked")
+						NSArray<NSDictionary<String, Object>> newKeys = channel.primaryKeysForNewRowsWithEntity(keys.count(), node._entity);
+						if (newKeys == null || newKeys.count() != keys.count())
+							throw new IllegalStateException("Unable to allocate " + keys.count() + " primary keys for " + node._entity.name());
+						for (int i = 0; i < keys.count(); i++)
+							keyMap.put(keys.objectAtIndex(i), newKeys.objectAtIndex(i).objectForKey(node._primaryKeyAttribute.name()));
+					}
+					keyMaps.put(node, keyMap);
+				}
+				Statement statement = ((JDBCContext)adaptorContext).connection().createStatement();
+				try
+				{
+					rowCount = insertRows(root, channel, statement, keyMaps, newDestinations);
+				} finally
+				{
+					statement.close();
+				}
+				adaptorContext.commitTransaction();
+				succeeded = true;
+			} finally
+			{
+				if (!succeeded)
+					adaptorContext.rollbackTransaction();
+			}
+			recordToManySnapshots(databaseContext, newDestinations);
+		} catch (SQLException e)
+		{
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		} finally
+		{
+			databaseContext.unlock();
+		}
+
+		if (COReferenceCounter.isEnabled())
+		{
+			for (Node node : plan._nodes)
+				COReferenceCounter.rowsDidInsert(ec, node._entity, new NSArray<Object>(keyMaps.get(node).values().toArray()));
+		}
+		Object rootKey = keyMaps.get(root).values().iterator().next();
+		EOGlobalID copyGlobalID = EOKeyGlobalID.globalIDWithEntityName(root._entity.name(), new Object[] {rootKey});
+		if (log.isDebugEnabled())
+			log.debug("method: copyRows: entityName: " + root._entity.name() + " rows: " + rowCount + " time: " + (System.currentTimeMillis() - startTime) + " ms");
+		return copyGlobalID;
+	}
+
+	/**
+	 * Adds the new rows to the to many snapshots of the referenced rows that are known by the database, the other ones
+	 * are read when their relationship is faulted.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void recordToManySnapshots(final EODatabaseContext databaseContext, final Map<EORelationship, Map<EOGlobalID, NSMutableArray<EOGlobalID>>> newDestinations)
+	{
+		EODatabase database = databaseContext.database();
+		for (Map.Entry<EORelationship, Map<EOGlobalID, NSMutableArray<EOGlobalID>>> entry : newDestinations.entrySet())
+		{
+			String relationshipName = entry.getKey().name();
+			for (Map.Entry<EOGlobalID, NSMutableArray<EOGlobalID>> destinations : entry.getValue().entrySet())
+			{
+				NSArray<EOGlobalID> snapshot = database.snapshotForSourceGlobalID(destinations.getKey(), relationshipName);
+				if (snapshot != null)
+					database.recordSnapshotForSourceGlobalID(snapshot.arrayByAddingObjectsFromArray(destinations.getValue()), destinations.getKey(), relationshipName);
+			}
+		}
+	}
+
+	/**
+	 * Reads the primary keys of the rows of the node joined to the rows of the parent.
+	 */
+	private static NSArray<Object> readKeys(final EOAdaptorChannel channel, final Node node, final Map<Object, Object> parentKeyMap)
+	{
+		NSMutableArray<Object> keys = new NSMutableArray<Object>();
+		NSMutableSet<Object> keySet = new NSMutableSet<Object>();
+		NSArray<Object> parentKeys = new NSArray<Object>(parentKeyMap.keySet().toArray());
+		EOSQLExpression expression = expression(channel, node._parent._entity);
+		for (int start = 0; start < parentKeys.count(); start += COCheckDelete.DefaultImplementation.inListSize)
+		{
+			int end = Math.min(start + COCheckDelete.DefaultImplementation.inListSize, parentKeys.count());
+			String parentCondition = node._parent._primaryKeyColumn + inList(expression, parentKeys, start, end, node._parent._primaryKeyAttribute);
+			String sql;
+			if (node._keyInParent)
+			{
+				String column = node._parent._table + "." + node._parentAttribute.columnName();
+				sql = "SELECT " + column + " FROM " + node._parent._table + " WHERE " + parentCondition + " AND " + column + " IS NOT NULL";
+			}
+			else
+				sql = "SELECT " + node._primaryKeyColumn + " FROM " + node._table + " WHERE " + node._table + "." + node._attribute.columnName()
+						+ " IN (SELECT " + node._parent._primaryKeyColumn + " FROM " + node._parent._table + " WHERE " + parentCondition + ")";
+			for (Object key : fetchValues(channel, node._primaryKeyAttribute, sql))
+			{
+				if (!keySet.containsObject(key))
+				{
+					keySet.addObject(key);
+					keys.addObject(key);
+				}
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * Inserts the copies of the node and of its children, the rows that hold a foreign key after the rows it references.
+	 */
+	private static int insertRows(final Node node, final EOAdaptorChannel channel, final Statement statement, final Map<Node, Map<Object, Object>> keyMaps,
+			final Map<EORelationship, Map<EOGlobalID, NSMutableArray<EOGlobalID>>> newDestinations) throws SQLException
+	{
+		int rowCount = 0;
+		for (Node child : node._children)
+		{
+			if (child._keyInParent)
+				rowCount += insertRows(child, channel, statement, keyMaps, newDestinations);
+		}
+
+		Map<Object, Object> keyMap = keyMaps.get(node);
+		if (keyMap.size() > 0)
+		{
+			EOSQLExpression expression = expression(channel, node._entity);
+			String now = null;
+			StringBuilder columnList = new StringBuilder();
+			for (Column column : node._columns)
+			{
+				if (columnList.length() > 0)
+					columnList.append(", ");
+				columnList.append(column._attribute.columnName());
+				if (column._kind == NOW && now == null)
+					now = expression.formatValueForAttribute(new NSTimestamp(), column._attribute);
+			}
+			NSArray<Object> keys = new NSArray<Object>(keyMap.keySet().toArray());
+			NSArray<Object> newKeys = new NSArray<Object>(keyMap.values().toArray());
+			for (int start = 0; start < keys.count(); start += COCheckDelete.DefaultImplementation.inListSize)
+			{
+				int end = Math.min(start + COCheckDelete.DefaultImplementation.inListSize, keys.count());
+				StringBuilder sql = new StringBuilder("INSERT INTO ").append(node._table).append(" (").append(columnList).append(") SELECT ");
+				for (int c = 0; c < node._columns.count(); c++)
+				{
+					Column column = node._columns.objectAtIndex(c);
+					String columnName = node._table + "." + column._attribute.columnName();
+					if (c > 0)
+						sql.append(", ");
+					switch (column._kind)
+					{
+					case COPY:
+						sql.append(columnName);
+						break;
+					case NULL:
+						sql.append("NULL");
+						break;
+					case NOW:
+						sql.append(now);
+						break;
+					default:
+						if (column._keyNode == null)
+							sql.append(columnName);
+						else if (column._attribute == node._primaryKeyAttribute)
+							sql.append(caseExpression(expression, columnName, keyMap, start, end, node._primaryKeyAttribute, false));
+						else
+						{
+							Map<Object, Object> keyNodeMap = keyMaps.get(column._keyNode);
+							sql.append(caseExpression(expression, columnName, keyNodeMap, 0, keyNodeMap.size(), column._keyNode._primaryKeyAttribute,
+									column._kind == REFERENCE));
+						}
+					}
+				}
+				sql.append(" FROM ").append(node._table).append(" WHERE ").append(node._primaryKeyColumn)
+						.append(inList(expression, keys, start, end, node._primaryKeyAttribute));
+				if (log.isDebugEnabled())
+					log.debug("method: insertRows: " + node + ": " + sql);
+				rowCount += statement.executeUpdate(sql.toString());
+
+				for (Column column : node._columns)
+				{
+					EORelationship inverse = column._kind == REFERENCE ? column._relationship.inverseRelationship() : null;
+					if (inverse != null && inverse.isToMany() && inverse.entity().classProperties().containsObject(inverse))
+					{
+						EOEntity destinationEntity = column._relationship.destinationEntity();
+						String columnName = node._table + "." + column._attribute.columnName();
+						String referenceSQL = "SELECT " + columnName + ", " + node._primaryKeyColumn + " FROM " + node._table + " WHERE " + node._primaryKeyColumn
+								+ inList(expression, newKeys, start, end, node._primaryKeyAttribute) + " AND " + columnName + " IS NOT NULL";
+						Map<EOGlobalID, NSMutableArray<EOGlobalID>> destinationsBySource = newDestinations.get(inverse);
+						if (destinationsBySource == null)
+						{
+							destinationsBySource = new LinkedHashMap<EOGlobalID, NSMutableArray<EOGlobalID>>();
+							newDestinations.put(inverse, destinationsBySource);
+						}
+						NSArray<EOAttribute> attributes = new NSArray<EOAttribute>(new EOAttribute[] {column._attribute, node._primaryKeyAttribute});
+						for (NSDictionary<String, Object> row : fetchRows(channel, attributes, referenceSQL))
+						{
+							EOGlobalID referencedGID = EOKeyGlobalID.globalIDWithEntityName(destinationEntity.name(), new Object[] {row.objectForKey(column._attribute.name())});
+							NSMutableArray<EOGlobalID> destinations = destinationsBySource.get(referencedGID);
+							if (destinations == null)
+							{
+								destinations = new NSMutableArray<EOGlobalID>();
+								destinationsBySource.put(referencedGID, destinations);
+							}
+							destinations.addObject(EOKeyGlobalID.globalIDWithEntityName(node._entity.name(), new Object[] {row.objectForKey(node._primaryKeyAttribute.name())}));
+						}
+					}
+				}
+			}
+		}
+
+		for (Node child : node._children)
+		{
+			if (!child._keyInParent)
+				rowCount += insertRows(child, channel, statement, keyMaps, newDestinations);
+		}
+		return rowCount;
+	}
+
+	/**
+	 * @return CASE expression that maps the keys from <code>start</code> to <code>end</code>, the other values are kept if
+	 * <code>keepOthers</code> is <code>true</code>, set to NULL otherwise
+	 */
+	private static String caseExpression(final EOSQLExpression expression, final String columnName, final Map<Object, Object> keyMap, final int start,
+			final int end, final EOAttribute keyAttribute, final boolean keepOthers)
+	{
+		if (start == end)
+			return keepOthers ? columnName : "NULL";
+		StringBuilder sql = new StringBuilder("CASE ").append(columnName);
+		int i = 0;
+		for (Map.Entry<Object, Object> entry : keyMap.entrySet())
+		{
+			if (i >= start && i < end)
+				sql.append(" WHEN ").append(expression.formatValueForAttribute(entry.getKey(), keyAttribute)).append(" THEN ")
+						.append(expression.formatValueForAttribute(entry.getValue(), keyAttribute));
+			i++;
+		}
+		if (keepOthers)
+			sql.append(" ELSE ").append(columnName);
+		return sql.append(" END").toString();
+	}
+
+	private static String inList(final EOSQLExpression expression, final NSArray<Object> keys, final int start, final int end, final EOAttribute attribute)
+	{
+		StringBuilder sql = new StringBuilder(" IN (");
+		for (int i = start; i < end; i++)
+		{
+			if (i > start)
+				sql.append(", ");
+			sql.append(expression.formatValueForAttribute(keys.objectAtIndex(i), attribute));
+		}
+		return sql.append(')').toString();
+	}
+
+	private static EOSQLExpression expression(final EOAdaptorChannel channel, final EOEntity entity)
+	{
+		return channel.adaptorContext().adaptor().expressionFactory().expressionForEntity(entity);
+	}
+
+	/**
+	 * Reads the values of the first column with the adaptor channel so they have the type of the attribute.
+	 */
+	private static NSArray<Object> fetchValues(final EOAdaptorChannel channel, final EOAttribute attribute, final String sql)
+	{
+		NSMutableArray<Object> values = new NSMutableArray<Object>();
+		for (NSDictionary<String, Object> row : fetchRows(channel, new NSArray<EOAttribute>(attribute), sql))
+			values.addObject(row.objectForKey(attribute.name()));
+		return values;
+	}
+
+	/**
+	 * Reads the rows with the adaptor channel, the columns are the attributes in the same order.
+	 */
+	@SuppressWarnings("unchecked")
+	private static NSArray<NSDictionary<String, Object>> fetchRows(final EOAdaptorChannel channel, final NSArray<EOAttribute> attributes, final String sql)
+	{
+		NSMutableArray<NSDictionary<String, Object>> rows = new NSMutableArray<NSDictionary<String, Object>>();
+		channel.evaluateExpression(channel.adaptorContext().adaptor().expressionFactory().expressionForString(sql));
+		channel.setAttributesToFetch(attributes);
+		NSDictionary<String, Object> row;
+		while ((row = channel.fetchRow()) != null)
+			rows.addObject(row);
+		return rows;
+	}
+}
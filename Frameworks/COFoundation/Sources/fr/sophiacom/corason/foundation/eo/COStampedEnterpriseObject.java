@@ -3,13 +3,17 @@
  */
 package fr.sophiacom.corason.foundation.eo;
 
+import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.foundation.NSDictionary;
 import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSTimestamp;
 import com.webobjects.foundation.NSValidation;
 
 import er.corebusinesslogic.ERCStampedEnterpriseObject;
 import er.extensions.eof.ERXKey;
+import fr.sophiacom.corason.foundation.eocontrol.COEditingContext;
+import fr.sophiacom.corason.foundation.eocontrol.COSaveProfile;
 
 /**
  * EO subclass that has some useful methods and that inherits from Project Wonder class.
@@ -25,25 +29,80 @@ public class COStampedEnterpriseObject extends ERCStampedEnterpriseObject implem
 		public static final ERXKey<NSTimestamp> LAST_MODIFIED_KEY = new ERXKey<NSTimestamp>(LAST_MODIFIED);
 	}
 
+	/** relationships of a lazy copy still shared with its source (see COLazyCopy) */
+	private transient COLazyCopy _lazyCopy;
+	private transient boolean _inSnapshot;
+
+	/**
+	 * Overridden to call willSave
+	 * 
+	 * {@link #willSave()}.
+	 */
 	@Override
 	public void willInsert()
 	{
-		super.willInsert();
-		willSave();
+		long startTime = System.nanoTime();
+		try
+		{
+			super.willInsert();
+			willSave();
+		} finally
+		{
+			addHookTime(startTime);
+		}
 	}
 	
 	/**
 	 * Overridden to call willSave
 	 * 
-     * {@link #willSave()}.
+	 * {@link #willSave()}.
 	 */
 	@Override
 	public void willUpdate()
 	{
-		super.willUpdate();
-		willSave();
+		long startTime = System.nanoTime();
+		try
+		{
+			super.willUpdate();
+			willSave();
+		} finally
+		{
+			addHookTime(startTime);
+		}
     }
 
+	/**
+	 * Overridden to record the time spent in the hook when the save is profiled.
+	 *
+	 * @exception NSValidation.ValidationException
+	 */
+	@Override
+	public void willDelete() throws NSValidation.ValidationException
+	{
+		long startTime = System.nanoTime();
+		try
+		{
+			super.willDelete();
+		} finally
+		{
+			addHookTime(startTime);
+		}
+	}
+
+	private void addHookTime(final long startTime)
+	{
+		COSaveProfile profile = COSaveProfile.currentProfile(this);
+		if (profile != null)
+			profile.addHookTime(System.nanoTime() - startTime);
+	}
+
+	private void addValidationTime(final long startTime)
+	{
+		COSaveProfile profile = COSaveProfile.currentProfile(this);
+		if (profile != null)
+			profile.addValidationTime(System.nanoTime() - startTime);
+	}
+
 	 /**
      * Called as part of the augmented transaction process.
      * This method is called after saveChanges is called on
@@ -143,8 +202,150 @@ public class COStampedEnterpriseObject extends ERCStampedEnterpriseObject implem
     	return COCopyable.DefaultImplementation.duplicate(copiedObjects, this, copyContext);
     }
 
+	void setLazyCopy(final COLazyCopy lazyCopy)
+	{
+		_lazyCopy = lazyCopy;
+	}
+
 	/**
-	 * Implementation of COCheckDelete interface.
+	 * Copies the relationships of a lazy copy still shared with its source (see COLazyCopy).
+	 *
+	 * @return <code>true</code> if some relationships were pending
+	 */
+	boolean copyLazyRelationships()
+	{
+		COLazyCopy lazyCopy = _lazyCopy;
+		if (lazyCopy == null)
+			return false;
+		_lazyCopy = null;
+		lazyCopy.copyRelationships(this);
+		return true;
+	}
+
+	private void copyLazyRelationship(final String key)
+	{
+		COLazyCopy lazyCopy = _lazyCopy;
+		if (lazyCopy != null && !_inSnapshot && lazyCopy.copyRelationship(this, key))
+			_lazyCopy = null;
+	}
+
+	/**
+	 * Overridden to copy the relationship of a lazy copy before it's read (see COLazyCopy).
+	 *
+	 * @param key
+	 * @return value
+	 */
+	@Override
+	public Object storedValueForKey(final String key)
+	{
+		if (_lazyCopy != null)
+			copyLazyRelationship(key);
+		return super.storedValueForKey(key);
+	}
+
+	/**
+	 * Overridden to copy the relationship of a lazy copy before it's modified (see COLazyCopy).
+	 *
+	 * @param value
+	 * @param key
+	 */
+	@Override
+	public void takeStoredValueForKey(final Object value, final String key)
+	{
+		if (_lazyCopy != null)
+			copyLazyRelationship(key);
+		super.takeStoredValueForKey(value, key);
+	}
+
+	/**
+	 * Overridden to copy the relationship of a lazy copy before it's read (see COLazyCopy).
+	 *
+	 * @param key
+	 * @return value
+	 */
+	@Override
+	public Object valueForKey(final String key)
+	{
+		if (_lazyCopy != null)
+			copyLazyRelationship(key);
+		return super.valueForKey(key);
+	}
+
+	/**
+	 * Overridden to copy the relationship of a lazy copy before it's modified (see COLazyCopy).
+	 *
+	 * @param value
+	 * @param key
+	 */
+	@Override
+	public void takeValueForKey(final Object value, final String key)
+	{
+		if (_lazyCopy != null)
+			copyLazyRelationship(key);
+		super.takeValueForKey(value, key);
+	}
+
+	/**
+	 * Overridden so that the snapshots taken by the editing context don't copy the relationships of a lazy copy, they're
+	 * recorded as they are.
+	 *
+	 * @return snapshot
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public NSDictionary snapshot()
+	{
+		if (_lazyCopy == null)
+			return super.snapshot();
+		_inSnapshot = true;
+		try
+		{
+			return super.snapshot();
+		} finally
+		{
+			_inSnapshot = false;
+		}
+	}
+
+	/**
+	 * Overridden so that an undo doesn't copy the relationships of a lazy copy.
+	 *
+	 * @param snapshot
+	 */
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void updateFromSnapshot(final NSDictionary snapshot)
+	{
+		if (_lazyCopy == null)
+		{
+			super.updateFromSnapshot(snapshot);
+			return;
+		}
+		_inSnapshot = true;
+		try
+		{
+			super.updateFromSnapshot(snapshot);
+		} finally
+		{
+			_inSnapshot = false;
+		}
+	}
+
+	/**
+	 * Overridden to drop the relationships of a deleted lazy copy, they're not copied by the delete rules.
+	 *
+	 * @param ec
+	 */
+	@Override
+	public void propagateDeleteWithEditingContext(final EOEditingContext ec)
+	{
+		_lazyCopy = null;
+		super.propagateDeleteWithEditingContext(ec);
+	}
+
+	/**
+	 * Implementation of COCheckDelete interface.<p>
+	 * Does nothing if the object has already been checked by the save of its COEditingContext.
 	 *
 	 * @exception NSValidation.ValidationException
 	 */
@@ -152,6 +353,8 @@ public class COStampedEnterpriseObject extends ERCStampedEnterpriseObject implem
 	{
 		if (ERCStampedEnterpriseObject.log.isDebugEnabled())
 			ERCStampedEnterpriseObject.log.debug("method: checkDelete: hasToCheckDelete: " + hasToCheckDelete());
+		if (editingContext() instanceof COEditingContext && ((COEditingContext)editingContext()).isDeleteChecked(this))
+			return;
 		if (hasToCheckDelete())
 		{
 			COCheckDelete.DefaultImplementation.checkDelete(this);
@@ -177,7 +380,32 @@ public class COStampedEnterpriseObject extends ERCStampedEnterpriseObject implem
 	@Override
 	public void validateForDelete() throws NSValidation.ValidationException
 	{
-		super.validateForDelete();
-		checkDelete();
+		long startTime = System.nanoTime();
+		try
+		{
+			super.validateForDelete();
+			checkDelete();
+		} finally
+		{
+			addValidationTime(startTime);
+		}
+	}
+
+	/**
+	 * Overridden to record the time spent in the validation when the save is profiled.
+	 *
+	 * @exception NSValidation.ValidationException
+	 */
+	@Override
+	public void validateForSave() throws NSValidation.ValidationException
+	{
+		long startTime = System.nanoTime();
+		try
+		{
+			super.validateForSave();
+		} finally
+		{
+			addValidationTime(startTime);
+		}
 	}
 }
@@ -0,0 +1,264 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.foundation.NSArray;
+
+/**
+ * A block of rows returned by a columnar fetch (see COEditingContext.fetchColumns). The values are stored by column in
+ * primitive arrays so there is no boxed value and no dictionary per row:
+ * <ul>
+ * <li>integer numbers, booleans and dates (milliseconds since 1970) are stored in a <code>long[]</code></li>
+ * <li>decimal numbers are stored in a <code>double[]</code></li>
+ * <li>strings are dictionary-encoded: each distinct string gets an int code, stable for the whole fetch</li>
+ * </ul>
+ * <b>The same block and the same arrays are reused for every block of a fetch.</b> The handler must aggregate or copy the
+ * values it needs before returning. Only the first <code>rowCount()</code> elements of the arrays are meaningful.
+ *
+ * @see COEditingContext#fetchColumns(String, com.webobjects.eocontrol.EOQualifier, NSArray, int, Handler)
+ */
+public class COColumnBlock
+{
+	public enum COColumnType
+	{
+		LONG,
+		DOUBLE,
+		STRING;
+	}
+
+	/**
+	 * Receives the blocks of a columnar fetch.
+	 */
+	public interface Handler
+	{
+		/**
+		 * Called for each block of rows. The block is reused after the method returns.
+		 *
+		 * @param block current block
+		 */
+		public void handleBlock(COColumnBlock block);
+	}
+
+	private final NSArray<String> _attributeNames;
+	private final COColumnType[] _types;
+	private final boolean[] _dates;
+	private final long[][] _longValues;
+	private final double[][] _doubleValues;
+	private final int[][] _stringCodes;
+	private final boolean[][] _nulls;
+	private final HashMap<String, Integer>[] _codesByString;
+	private final ArrayList<String>[] _stringsByCode;
+	private int _rowCount;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param attributes attributes fetched
+	 * @param blockSize maximum number of rows in a block
+	 */
+	@SuppressWarnings("unchecked")
+	protected COColumnBlock(final NSArray<EOAttribute> attributes, final int blockSize)
+	{
+		int count = attributes.count();
+		_attributeNames = (NSArray<String>)attributes.valueForKey("name");
+		_types = new COColumnType[count];
+		_dates = new boolean[count];
+		_longValues = new long[count][];
+		_doubleValues = new double[count][];
+		_stringCodes = new int[count][];
+		_nulls = new boolean[count][];
+		_codesByString = new HashMap[count];
+		_stringsByCode = new ArrayList[count];
+		for (int i = 0; i < count; i++)
+		{
+			_types[i] = columnTypeForAttribute(attributes.objectAtIndex(i));
+			_dates[i] = attributes.objectAtIndex(i).adaptorValueType() == EOAttribute.AdaptorDateType;
+			_nulls[i] = new boolean[blockSize];
+			switch (_types[i])
+			{
+				case LONG:
+					_longValues[i] = new long[blockSize];
+					break;
+				case DOUBLE:
+					_doubleValues[i] = new double[blockSize];
+					break;
+				default:
+					_stringCodes[i] = new int[blockSize];
+					_codesByString[i] = new HashMap<String, Integer>();
+					_stringsByCode[i] = new ArrayList<String>();
+			}
+		}
+	}
+
+	/**
+	 * Returns the type of column used to store the values of the attribute.
+	 *
+	 * @param attribute
+	 * @return column type
+	 * @exception IllegalArgumentException if the attribute type is not supported (binary data)
+	 */
+	public static COColumnType columnTypeForAttribute(final EOAttribute attribute)
+	{
+		switch (attribute.adaptorValueType())
+		{
+			case EOAttribute.AdaptorNumberType:
+				String valueType = attribute.valueType();
+				if (valueType == null || valueType.length() == 0)
+					return COColumnType.DOUBLE;
+				switch (valueType.charAt(0))
+				{
+					case 'b':
+					case 's':
+					case 'i':
+					case 'l':
+					case 'c':
+						return COColumnType.LONG;
+					default:
+						return COColumnType.DOUBLE;
+				}
+			case EOAttribute.AdaptorDateType:
+				return COColumnType.LONG;
+			case EOAttribute.AdaptorCharactersType:
+				return COColumnType.STRING;
+			default:
+				throw new IllegalArgumentException("The attribute " + attribute.name() + " can't be fetched in a column.");
+		}
+	}
+
+	/**
+	 * @return names of the attributes in the order of the columns
+	 */
+	public NSArray<String> attributeNames()
+	{
+		return _attributeNames;
+	}
+
+	/**
+	 * @param attributeName
+	 * @return index of the column or -1 if the attribute has not been fetched
+	 */
+	public int columnIndex(final String attributeName)
+	{
+		return _attributeNames.indexOfObject(attributeName);
+	}
+
+	public COColumnType columnType(final int column)
+	{
+		return _types[column];
+	}
+
+	/**
+	 * @param column
+	 * @return <code>true</code> if the LONG column contains dates (milliseconds since 1970)
+	 */
+	public boolean isDateColumn(final int column)
+	{
+		return _dates[column];
+	}
+
+	/**
+	 * @return number of rows in the block
+	 */
+	public int rowCount()
+	{
+		return _rowCount;
+	}
+
+	/**
+	 * @param column
+	 * @return values of a LONG column
+	 */
+	public long[] longValues(final int column)
+	{
+		return _longValues[column];
+	}
+
+	/**
+	 * @param column
+	 * @return values of a DOUBLE column
+	 */
+	public double[] doubleValues(final int column)
+	{
+		return _doubleValues[column];
+	}
+
+	/**
+	 * @param column
+	 * @return codes of a STRING column (-1 for null)
+	 */
+	public int[] stringCodes(final int column)
+	{
+		return _stringCodes[column];
+	}
+
+	/**
+	 * @param column
+	 * @param code
+	 * @return the string of a STRING column for the code
+	 */
+	public String stringForCode(final int column, final int code)
+	{
+		return code < 0 ? null : _stringsByCode[column].get(code);
+	}
+
+	/**
+	 * @param column
+	 * @return number of distinct strings of a STRING column found so far
+	 */
+	public int stringCount(final int column)
+	{
+		return _stringsByCode[column].size();
+	}
+
+	/**
+	 * @param column
+	 * @return <code>true</code> for the rows where the value is null
+	 */
+	public boolean[] nulls(final int column)
+	{
+		return _nulls[column];
+	}
+
+	protected void clear()
+	{
+		_rowCount = 0;
+	}
+
+	protected void setRowCount(final int rowCount)
+	{
+		_rowCount = rowCount;
+	}
+
+	protected void setLongValue(final int column, final int row, final long value, final boolean isNull)
+	{
+		_longValues[column][row] = value;
+		_nulls[column][row] = isNull;
+	}
+
+	protected void setDoubleValue(final int column, final int row, final double value, final boolean isNull)
+	{
+		_doubleValues[column][row] = value;
+		_nulls[column][row] = isNull;
+	}
+
+	protected void setStringValue(final int column, final int row, final String value)
+	{
+		int code = -1;
+		if (value != null)
+		{
+			Integer existingCode = _codesByString[column].get(value);
+			if (existingCode == null)
+			{
+				code = _stringsByCode[column].size();
+				_stringsByCode[column].add(value);
+				_codesByString[column].put(value, Integer.valueOf(code));
+			}
+			else
+				code = existingCode.intValue();
+		}
+		_stringCodes[column][row] = code;
+		_nulls[column][row] = value == null;
+	}
+}
@@ -0,0 +1,215 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EOAdaptor;
+import com.webobjects.eoaccess.EOAdaptorChannel;
+import com.webobjects.eoaccess.EOAdaptorContext;
+import com.webobjects.eoaccess.EOAttribute;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOQualifierSQLGeneration;
+import com.webobjects.eoaccess.EOSQLExpression;
+import com.webobjects.eoaccess.EOUtilities;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOObjectStoreCoordinator;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSData;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSForwardException;
+import com.webobjects.foundation.NSKeyValueCoding;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.jdbcadaptor.JDBCContext;
+
+/**
+ * Fetches a few attributes of an entity into COColumnBlock objects. The SQL is generated by EOF (so the qualifier can use
+ * key paths and enterprise objects) but the rows are read directly from the JDBC result set into primitive arrays,
+ * without any NSDictionary or boxed value per row.<p>
+ * The fetch doesn't register anything in the editing context, it's used to find the model and the database (the
+ * connection dictionary of its database context, so a read replica EC reads the replica). The rows are streamed with a
+ * dedicated connection, opened by a private EOObjectStoreCoordinator disposed at the end of the fetch: the handler can
+ * take its time, the database contexts of the application are never locked by the fetch. The rows written by an open
+ * transaction of the editing context are not seen. The model must use the JDBC adaptor.
+ *
+ * @see COEditingContext#fetchColumns(String, EOQualifier, NSArray, int, COColumnBlock.Handler)
+ */
+public class COColumnarFetcher
+{
+	private static final Logger log = Logger.getLogger(COColumnarFetcher.class);
+
+	/**
+	 * Fetches the attributes of the rows matching the qualifier and gives them to the handler by blocks.
+	 *
+	 * @param ec editing context used to find the database context
+	 * @param entityName name of the entity to fetch
+	 * @param qualifier qualifier (can be <code>null</code>)
+	 * @param attributeNames names of the attributes to fetch
+	 * @param blockSize maximum number of rows in a block
+	 * @param handler object that receives the blocks
+	 * @return number of rows fetched
+	 */
+	public static int fetchColumns(final EOEditingContext ec, final String entityName, final EOQualifier qualifier,
+			final NSArray<String> attributeNames, final int blockSize, final COColumnBlock.Handler handler)
+	{
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("The block size must be positive.");
+		if (attributeNames == null || attributeNames.count() == 0)
+			throw new IllegalArgumentException("At least one attribute must be fetched.");
+		EOEntity entity = EOUtilities.entityNamed(ec, entityName);
+		NSMutableArray<EOAttribute> attributes = new NSMutableArray<EOAttribute>(attributeNames.count());
+		for (String attributeName : attributeNames)
+		{
+			EOAttribute attribute = entity.attributeNamed(attributeName);
+			if (attribute == null)
+				throw new IllegalArgumentException("The attribute " + attributeName + " doesn't exist in the entity " + entityName);
+			attributes.addObject(attribute);
+		}
+		EOQualifier schemaQualifier = qualifier == null ? null : EOQualifierSQLGeneration.Support._schemaBasedQualifierWithRootEntity(qualifier, entity);
+		EOFetchSpecification fetchSpecification = new EOFetchSpecification(entityName, schemaQualifier, null);
+		COColumnBlock block = new COColumnBlock(attributes, blockSize);
+
+		EOAdaptor ecAdaptor = EOUtilities.databaseContextForModelNamed(ec, entity.model().name()).database().adaptor();
+		EOObjectStoreCoordinator osc = new EOObjectStoreCoordinator();
+		try
+		{
+			// Nobody else uses the database context of the private coordinator, it's locked for the rules of EOF only.
+			EODatabaseContext databaseContext = EODatabaseContext.registeredDatabaseContextForModel(entity.model(), osc);
+			databaseContext.lock();
+			try
+			{
+				EOAdaptor adaptor = databaseContext.database().adaptor();
+				adaptor.setConnectionDictionary(ecAdaptor.connectionDictionary());
+				EOAdaptorContext adaptorContext = databaseContext.adaptorContext();
+				if (!(adaptorContext instanceof JDBCContext))
+					throw new IllegalStateException("The columnar fetch needs the JDBC adaptor, the model " + entity.model().name() + " uses " + adaptor.getClass().getName());
+				EOAdaptorChannel channel = databaseContext.availableChannel().adaptorChannel();
+				if (!channel.isOpen())
+					channel.openChannel();
+				EOSQLExpression expression = adaptor.expressionFactory().selectStatementForAttributes(attributes, false, fetchSpecification, entity);
+				if (log.isDebugEnabled())
+					log.debug("method: fetchColumns: statement: " + expression.statement());
+
+				adaptorContext.beginTransaction();
+				boolean succeeded = false;
+				try
+				{
+					int rowCount = fetchColumns(((JDBCContext)adaptorContext).connection(), expression, block, handler);
+					succeeded = true;
+					return rowCount;
+				} finally
+				{
+					if (succeeded)
+						adaptorContext.commitTransaction();
+					else
+						adaptorContext.rollbackTransaction();
+					channel.closeChannel();
+				}
+			} finally
+			{
+				databaseContext.unlock();
+			}
+		} catch (SQLException e)
+		{
+			throw NSForwardException._runtimeExceptionForThrowable(e);
+		} finally
+		{
+			osc.dispose();
+		}
+	}
+
+	private static int fetchColumns(final Connection connection, final EOSQLExpression expression, final COColumnBlock block, final COColumnBlock.Handler handler) throws SQLException
+	{
+		int columnCount = block.attributeNames().count();
+		int blockSize = block.nulls(0).length;
+		int rowCount = 0;
+		PreparedStatement statement = connection.prepareStatement(expression.statement());
+		try
+		{
+			bindVariables(statement, expression);
+			statement.setFetchSize(blockSize);
+			ResultSet resultSet = statement.executeQuery();
+			try
+			{
+				int row = 0;
+				while (resultSet.next())
+				{
+					for (int column = 0; column < columnCount; column++)
+						readValue(resultSet, column, row, block);
+					row++;
+					if (row == blockSize)
+					{
+						block.setRowCount(row);
+						handler.handleBlock(block);
+						rowCount += row;
+						row = 0;
+						block.clear();
+					}
+				}
+				if (row > 0)
+				{
+					block.setRowCount(row);
+					handler.handleBlock(block);
+					rowCount += row;
+				}
+			} finally
+			{
+				resultSet.close();
+			}
+		} finally
+		{
+			statement.close();
+		}
+		if (log.isDebugEnabled())
+			log.debug("method: fetchColumns: rowCount: " + rowCount);
+		return rowCount;
+	}
+
+	private static void readValue(final ResultSet resultSet, final int column, final int row, final COColumnBlock block) throws SQLException
+	{
+		int index = column + 1;
+		switch (block.columnType(column))
+		{
+			case LONG:
+				long longValue;
+				if (block.isDateColumn(column))
+				{
+					Timestamp timestamp = resultSet.getTimestamp(index);
+					longValue = timestamp == null ? 0L : timestamp.getTime();
+				}
+				else
+					longValue = resultSet.getLong(index);
+				block.setLongValue(column, row, longValue, resultSet.wasNull());
+				break;
+			case DOUBLE:
+				double doubleValue = resultSet.getDouble(index);
+				block.setDoubleValue(column, row, doubleValue, resultSet.wasNull());
+				break;
+			default:
+				block.setStringValue(column, row, resultSet.getString(index));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void bindVariables(final PreparedStatement statement, final EOSQLExpression expression) throws SQLException
+	{
+		NSArray<NSDictionary<String, Object>> bindVariables = expression.bindVariableDictionaries();
+		for (int i = 0; i < bindVariables.count(); i++)
+		{
+			Object value = bindVariables.objectAtIndex(i).objectForKey(EOSQLExpression.BindVariableValueKey);
+			if (value == null || value == NSKeyValueCoding.NullValue)
+				statement.setObject(i + 1, null);
+			else if (value instanceof NSData)
+				statement.setBytes(i + 1, ((NSData)value).bytes());
+			else
+				statement.setObject(i + 1, value);
+		}
+	}
+}
@@ -1,15 +1,31 @@
 package fr.sophiacom.corason.foundation.eocontrol;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
 import org.apache.log4j.Logger;
 
 import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
 import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOGlobalID;
 import com.webobjects.eocontrol.EOObjectStore;
+import com.webobjects.eocontrol.EOObjectStoreCoordinator;
+import com.webobjects.eocontrol.EOQualifier;
 import com.webobjects.foundation.NSArray;
 import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableDictionary;
 import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSValidation.ValidationException;
 
 import er.extensions.eof.ERXEC;
+import er.extensions.foundation.ERXProperties;
+import er.extensions.foundation.ERXValueUtilities;
+import fr.sophiacom.corason.foundation.eo.COCheckDelete;
+import fr.sophiacom.corason.foundation.eo.COLazyCopy;
+import fr.sophiacom.corason.foundation.eo.COReferenceCounter;
 
 /**
  * EC subclass that inherits from Project Wonder class.
@@ -23,8 +39,21 @@ public class COEditingContext extends ERXEC
 
 	public static final String EditingContextWillFetchObjectsNotification = "EditingContextWillFetchObjects";
 	public static final String FETCH_SPEC_KEY = "fetchSpecificationKey";
+	public static final String READ_REPLICA_HINT = "fr.sophiacom.corason.foundation.eocontrol.readReplica";
+	public static final String PURPOSE_HINT = "fr.sophiacom.corason.foundation.eocontrol.purpose";
 
 	private static final Logger log = Logger.getLogger(COEditingContext.class);
+	private static final long lockTimeout = ERXProperties.longForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COEditingContext.lockTimeout", 0L);
+	private static final long LOCK_POLLING_INTERVAL = 1L;
+
+	private COSaveProfile _currentSaveProfile;
+	private volatile Thread _lockOwner;
+	private int _lockDepth;
+	private long _lockAcquiredTime;
+	private volatile boolean _resetRequested;
+	private Set<EOEnterpriseObject> _checkedDeletes;
+	private volatile int _registeredObjectCount;
+	private COReferenceCounter.Delta _referenceDelta;
 
 	/**
 	 * Constructor.
@@ -39,7 +68,14 @@ public class COEditingContext extends ERXEC
 
 	/**
 	 * objectsWithFetchSpecification posts a notification <code>EditingContextWillFetchObjectsNotification</code> before fetching objects.<p>
-	 * That gives you the opportunity to change the fetchSpecification on the fly.
+	 * That gives you the opportunity to change the fetchSpecification on the fly.<br>
+	 * The raw rows fetches with the replica hint are sent to the read replica when it's enabled (see shouldFetchFromReadReplica).<br>
+	 * When the request-scoped memo is enabled (see COFetchMemo), an identical fetch made again by this EC in the same
+	 * request returns the objects of the first fetch.<br>
+	 * When the guardrails are enabled (see COFetchGuardrail), the fetch limits are enforced and the unqualified fetches of
+	 * large tables are detected.<br>
+	 * When the prefetch hints are enabled (see COPrefetchHints), the prefetching key paths configured for the entity and
+	 * the purpose (hint <code>PURPOSE_HINT</code>) are added.
 	 *
 	 * @param fetchSpecification
 	 * @param editingContext
@@ -51,22 +87,527 @@ public class COEditingContext extends ERXEC
 	{
 		NSDictionary<String, EOFetchSpecification> userInfo = new NSDictionary<String, EOFetchSpecification>(fetchSpecification, FETCH_SPEC_KEY);
 		NSNotificationCenter.defaultCenter().postNotification(EditingContextWillFetchObjectsNotification, this, userInfo);
-		return super.objectsWithFetchSpecification(fetchSpecification, editingContext);
+
+		COPrefetchHints prefetchHints = editingContext == this && COPrefetchHints.isEnabled() ? COPrefetchHints.getInstance() : null;
+		String prefetchHint = prefetchHints == null ? null : prefetchHints.hintForFetchSpecification(fetchSpecification);
+		EOFetchSpecification usedFetchSpecification = prefetchHint == null ? fetchSpecification : prefetchHints.fetchSpecificationWithHint(fetchSpecification, prefetchHint);
+
+		COFetchGuardrail guardrail = editingContext == this && COFetchGuardrail.isEnabled() ? COFetchGuardrail.getInstance() : null;
+		if (guardrail != null)
+			usedFetchSpecification = guardrail.fetchSpecificationToUse(this, usedFetchSpecification);
+
+		COFetchMemo memo = editingContext == this ? COFetchMemo.currentMemo() : null;
+		Object memoKey = memo == null ? null : COFetchMemo.keyForFetchSpecification(usedFetchSpecification);
+		if (memoKey != null)
+		{
+			NSArray objects = memo.objectsForKey(this, memoKey);
+			if (objects != null)
+				return objects;
+		}
+
+		NSArray objects;
+		String previousFetchHint = prefetchHints == null ? null : prefetchHints.fetchWillBegin(prefetchHint);
+		try
+		{
+			if (shouldFetchFromReadReplica(usedFetchSpecification, editingContext))
+				objects = objectsFromReadReplica(usedFetchSpecification);
+			else
+				objects = super.objectsWithFetchSpecification(usedFetchSpecification, editingContext);
+		} finally
+		{
+			if (prefetchHints != null)
+				prefetchHints.fetchDidEnd(previousFetchHint);
+		}
+		if (prefetchHint != null)
+			prefetchHints.objectsDidFetch(prefetchHint, objects.count());
+		if (guardrail != null)
+			objects = guardrail.objectsDidFetch(fetchSpecification, usedFetchSpecification, objects);
+		if (memoKey != null)
+			memo.recordObjects(this, memoKey, objects);
+		return objects;
+	}
+
+	/**
+	 * Returns <code>true</code> if the fetch must be sent to the read replica (see COEditingContextFactory): the raw rows
+	 * fetches with the hint <code>READ_REPLICA_HINT</code> set to <code>true</code>, they don't record any snapshot. The
+	 * objects are never fetched from the replica by an EC of the primary, their faults and snapshots would come from two
+	 * databases; the read-only ECs created on the replica coordinator fetch everything from it.<br>
+	 * The fetches of nested ECs and the fetches made during the staleness window that follows a save of the session stay
+	 * on the primary.
+	 *
+	 * @param fetchSpecification
+	 * @param editingContext
+	 * @return boolean
+	 */
+	protected boolean shouldFetchFromReadReplica(final EOFetchSpecification fetchSpecification, final EOEditingContext editingContext)
+	{
+		if (!COEditingContextFactory.isReadReplicaEnabled() || editingContext != this || !(parentObjectStore() instanceof EOObjectStoreCoordinator)
+				|| parentObjectStore() == COEditingContextFactory.readReplicaObjectStore())
+			return false;
+		if (!fetchSpecification.fetchesRawRows() || fetchSpecification.hints() == null || !ERXValueUtilities.booleanValue(fetchSpecification.hints().objectForKey(READ_REPLICA_HINT)))
+			return false;
+		return COEditingContextFactory.canReadFromReplica();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private NSArray objectsFromReadReplica(final EOFetchSpecification fetchSpecification)
+	{
+		if (log.isDebugEnabled())
+			log.debug("objectsFromReadReplica: entityName: " + fetchSpecification.entityName());
+		EOObjectStoreCoordinator readReplica = COEditingContextFactory.readReplicaObjectStore();
+		lock();
+		try
+		{
+			readReplica.lock();
+			try
+			{
+				return readReplica.objectsWithFetchSpecification(fetchSpecification, this);
+			} finally
+			{
+				readReplica.unlock();
+			}
+		} finally
+		{
+			unlock();
+		}
+	}
+
+	/**
+	 * Fetches a few attributes of the rows matching the qualifier into columnar blocks of primitive arrays. It's the
+	 * equivalent of a raw rows fetch for aggregation jobs: no object is registered in the EC and no NSDictionary or boxed
+	 * value is created per row. The handler is called for each block of at most <code>blockSize</code> rows.<p>
+	 * The fetch doesn't post the <code>EditingContextWillFetchObjectsNotification</code> because there is no fetch
+	 * specification. The rows are read with a dedicated connection (see COColumnarFetcher), the database context of the
+	 * EC is not locked while the handler runs.
+	 *
+	 * @param entityName name of the entity to fetch
+	 * @param qualifier qualifier (can be <code>null</code>)
+	 * @param attributeNames names of the attributes to fetch
+	 * @param blockSize maximum number of rows in a block
+	 * @param handler object that receives the blocks
+	 * @return number of rows fetched
+	 * @see COColumnBlock
+	 */
+	public int fetchColumns(final String entityName, final EOQualifier qualifier, final NSArray<String> attributeNames, final int blockSize, final COColumnBlock.Handler handler)
+	{
+		return COColumnarFetcher.fetchColumns(this, entityName, qualifier, attributeNames, blockSize, handler);
 	}
 
 	/**
-	 * This method is overridden for memory optimization.
+	 * This method is overridden for memory optimization.<p>
+	 * When the profiling is enabled, a COSaveProfile is built for the save and sent to COSaveStatistics.<br>
+	 * The fetch memo of the request (see COFetchMemo) is cleared.<br>
+	 * The relationships of the lazy copies still shared with their source are copied (see COLazyCopy).<br>
+	 * The pending deletes are checked by entity with the batch API of COCheckDelete before the validation of EOF.<br>
+	 * The reference counts of COReferenceCounter are updated with the changes saved in the database, including the ones
+	 * made during the save (see recordReferenceChange).
 	 *
 	 * @see http://wiki.objectstyle.org/confluence/display/WO/EOF-Using+EOF-Memory+Management
+	 * @see COSaveStatistics
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public void saveChanges()
 	{
 		if (log.isDebugEnabled())
 			log.debug("saveChanges: "+this);
 
-		super.saveChanges();
+		COFetchMemo memo = COFetchMemo.currentMemo();
+		if (memo != null)
+			memo.clear();
+
+		COLazyCopy.copyPendingRelationships(this);
+		COSaveProfile profile = null;
+		processRecentChanges();
+		if (COSaveStatistics.isProfilingEnabled())
+		{
+			profile = new COSaveProfile(insertedObjects(), updatedObjects(), deletedObjects());
+			_currentSaveProfile = profile;
+		}
+		boolean succeeded = false;
+		try
+		{
+			checkPendingDeletes(profile);
+			COReferenceCounter.Delta referenceDelta = _referenceDelta;
+			if (referenceDelta != null)
+				referenceDelta.willSave(this);
+			super.saveChanges();
+			succeeded = true;
+			if (referenceDelta != null)
+				referenceDelta.apply(this);
+			if (COEditingContextFactory.isReadReplicaEnabled() && !(parentObjectStore() instanceof EOEditingContext))
+				COEditingContextFactory.primaryDidSaveChanges();
+		} finally
+		{
+			_checkedDeletes = null;
+			if (profile != null)
+			{
+				_currentSaveProfile = null;
+				profile.saveDidEnd(succeeded);
+				COSaveStatistics.getInstance().recordProfile(this, profile);
+			}
+		}
 		if (undoManager() != null)
 			undoManager().removeAllActions();
 	}
+
+	/**
+	 * Checks all the pending deletes that implement COCheckDelete with the batch API, one set of queries per entity
+	 * instead of queries per object. Only the classes that keep the checkDelete method of COStampedEnterpriseObject are
+	 * checked this way. The objects checked are not checked again by their validateForDelete.
+	 *
+	 * @param profile profile of the save or <code>null</code>
+	 * @exception ValidationException if some objects can't be deleted
+	 * @see COCheckDelete.DefaultImplementation#checkDeleteObjects(NSArray)
+	 */
+	private void checkPendingDeletes(final COSaveProfile profile)
+	{
+		@SuppressWarnings("unchecked")
+		NSArray<EOEnterpriseObject> deletedObjects = deletedObjects();
+		if (deletedObjects.count() == 0)
+			return;
+		long startTime = System.nanoTime();
+		NSMutableDictionary<String, NSMutableArray<EOEnterpriseObject>> deletesByEntity = new NSMutableDictionary<String, NSMutableArray<EOEnterpriseObject>>();
+		for (EOEnterpriseObject eo : deletedObjects)
+		{
+			// The classes with their own checkDelete are checked by it (validateForDelete).
+			if (eo instanceof COCheckDelete && COCheckDelete.DefaultImplementation.usesDefaultCheckDelete(eo) && ((COCheckDelete)eo).hasToCheckDelete())
+			{
+				NSMutableArray<EOEnterpriseObject> deletes = deletesByEntity.objectForKey(eo.entityName());
+				if (deletes == null)
+				{
+					deletes = new NSMutableArray<EOEnterpriseObject>();
+					deletesByEntity.setObjectForKey(deletes, eo.entityName());
+				}
+				deletes.addObject(eo);
+			}
+		}
+		if (deletesByEntity.count() == 0)
+			return;
+
+		Set<EOEnterpriseObject> checkedDeletes = Collections.newSetFromMap(new IdentityHashMap<EOEnterpriseObject, Boolean>());
+		NSMutableArray<ValidationException> exceptions = new NSMutableArray<ValidationException>();
+		for (NSMutableArray<EOEnterpriseObject> deletes : deletesByEntity.allValues())
+		{
+			exceptions.addObjectsFromArray(COCheckDelete.DefaultImplementation.checkDeleteExceptions(deletes));
+			checkedDeletes.addAll(deletes);
+		}
+		if (profile != null)
+			profile.addValidationTime(System.nanoTime() - startTime);
+		if (log.isDebugEnabled())
+			log.debug("checkPendingDeletes: checked: " + checkedDeletes.size() + " rejected: " + exceptions.count());
+		if (exceptions.count() == 1)
+			throw exceptions.objectAtIndex(0);
+		if (exceptions.count() > 1)
+			throw ValidationException.aggregateExceptionWithExceptions(exceptions);
+		_checkedDeletes = checkedDeletes;
+	}
+
+	/**
+	 * Returns <code>true</code> if the deleted object has already been checked by the save in progress (see COCheckDelete).
+	 *
+	 * @param eo deleted object
+	 * @return boolean
+	 */
+	public boolean isDeleteChecked(final EOEnterpriseObject eo)
+	{
+		Set<EOEnterpriseObject> checkedDeletes = _checkedDeletes;
+		return checkedDeletes != null && checkedDeletes.contains(eo);
+	}
+
+	/**
+	 * Overridden to measure the lock contention and to support the lock timeout.<p>
+	 * When the instrumentation is enabled (see COLockStatistics), the time spent waiting for the lock is recorded.<br>
+	 * When a timeout is set, the lock is taken with tryLock: an available lock is taken at once, otherwise tryLock is
+	 * retried every millisecond for at most this time (ms) and then an IllegalStateException is raised with the stack of
+	 * the owner as cause, instead of blocking forever:<br>
+	 * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContext.lockTimeout=30000</code>
+	 *
+	 * @see COLockStatistics
+	 */
+	@Override
+	public void lock()
+	{
+		Thread currentThread = Thread.currentThread();
+		if (_lockOwner == currentThread)
+		{
+			super.lock();
+			_lockDepth++;
+			return;
+		}
+		boolean instrumented = COLockStatistics.isInstrumentationEnabled();
+		long startTime = instrumented ? System.nanoTime() : 0L;
+		if (lockTimeout > 0)
+			lockWithTimeout(currentThread);
+		else
+			super.lock();
+		_lockOwner = currentThread;
+		_lockDepth = 1;
+		if (instrumented)
+		{
+			_lockAcquiredTime = System.nanoTime();
+			COLockStatistics.getInstance().recordWaitTime(currentThread, _lockAcquiredTime - startTime);
+		}
+	}
+
+	/**
+	 * Overridden to measure the time the lock is held and to do the reset requested by requestReset() when the outermost
+	 * lock is released.
+	 *
+	 * @see COLockStatistics
+	 */
+	@Override
+	public void unlock()
+	{
+		Thread currentThread = Thread.currentThread();
+		if (_lockOwner == currentThread)
+		{
+			if (_lockDepth == 1 && _resetRequested)
+				resetIfUnchanged();
+			if (--_lockDepth == 0)
+			{
+				_lockOwner = null;
+				if (_lockAcquiredTime != 0L)
+				{
+					COLockStatistics.getInstance().recordHoldTime(currentThread, System.nanoTime() - _lockAcquiredTime);
+					_lockAcquiredTime = 0L;
+				}
+			}
+		}
+		super.unlock();
+	}
+
+	/**
+	 * Asks the EC to reset itself the next time its owner releases the outermost lock, if it has no pending changes. It
+	 * can be called from any thread: the reset is done by the thread that uses the EC, so it never happens in the middle
+	 * of its work. An EC that is never locked again is never reset.
+	 *
+	 * @see fr.sophiacom.corason.foundation.appserver.COHeapWatchdog
+	 */
+	public void requestReset()
+	{
+		_resetRequested = true;
+	}
+
+	private void resetIfUnchanged()
+	{
+		_resetRequested = false;
+		try
+		{
+			if (!hasChanges())
+			{
+				log.warn("resetIfUnchanged: reset of " + this + " registeredObjects: " + _registeredObjectCount);
+				reset();
+			}
+		} catch (RuntimeException e)
+		{
+			log.error("resetIfUnchanged: unable to reset " + this, e);
+		}
+	}
+
+	/**
+	 * Takes the lock with tryLock until the timeout is reached, then raises an exception.
+	 *
+	 * @param currentThread
+	 * @exception IllegalStateException
+	 */
+	private void lockWithTimeout(final Thread currentThread)
+	{
+		if (super.tryLock())
+			return;
+		long deadline = System.currentTimeMillis() + lockTimeout;
+		while (!super.tryLock())
+		{
+			if (System.currentTimeMillis() >= deadline)
+			{
+				if (COLockStatistics.isInstrumentationEnabled())
+					COLockStatistics.getInstance().recordTimeout();
+				Thread owner = _lockOwner;
+				String ownerName = owner == null ? "unknown" : owner.getName();
+				Throwable ownerStack = null;
+				if (owner != null)
+				{
+					ownerStack = new Throwable("Stack of the lock owner: " + ownerName + " (" + owner.getState() + ")");
+					ownerStack.setStackTrace(owner.getStackTrace());
+				}
+				String message = "Unable to lock " + this + " after " + lockTimeout + " ms, the lock is owned by the thread " + ownerName;
+				log.error("lock: " + message, ownerStack);
+				throw new IllegalStateException(message, ownerStack);
+			}
+			try
+			{
+				Thread.sleep(LOCK_POLLING_INTERVAL);
+			} catch (InterruptedException e)
+			{
+				currentThread.interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the lock of " + this, e);
+			}
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if the EC can only be used to read objects.
+	 *
+	 * @return <code>false</code>
+	 * @see COReadOnlyEditingContext
+	 */
+	public boolean isReadOnly()
+	{
+		return false;
+	}
+
+	/**
+	 * Overridden to forget the fetches of the EC in the fetch memo of the request (see COFetchMemo).
+	 *
+	 */
+	@Override
+	public void reset()
+	{
+		forgetMemoizedFetches();
+		super.reset();
+		_registeredObjectCount = 0;
+		_referenceDelta = null;
+	}
+
+	/**
+	 * Overridden to forget the fetches of the EC in the fetch memo of the request (see COFetchMemo).
+	 *
+	 */
+	@Override
+	public void revert()
+	{
+		forgetMemoizedFetches();
+		super.revert();
+		_referenceDelta = null;
+	}
+
+	/**
+	 * Overridden to record the inserted objects for COReferenceCounter.
+	 *
+	 */
+	@Override
+	public void insertObject(final EOEnterpriseObject eo)
+	{
+		super.insertObject(eo);
+		recordReferenceChange(eo);
+	}
+
+	/**
+	 * Overridden to record the deleted objects for COReferenceCounter.
+	 *
+	 */
+	@Override
+	public void deleteObject(final EOEnterpriseObject eo)
+	{
+		recordReferenceChange(eo);
+		super.deleteObject(eo);
+	}
+
+	/**
+	 * Overridden to record the changed objects for COReferenceCounter, this is also called for the changes made by
+	 * willInsert and willUpdate during the save.
+	 *
+	 */
+	@Override
+	public void objectWillChange(final Object object)
+	{
+		super.objectWillChange(object);
+		if (object instanceof EOEnterpriseObject)
+			recordReferenceChange((EOEnterpriseObject)object);
+	}
+
+	/**
+	 * Records an object whose relationships to the counted entities may change (see COReferenceCounter.Delta). Only the
+	 * ECs that save in the database record them.
+	 *
+	 * @param eo object inserted, changed or deleted
+	 */
+	private void recordReferenceChange(final EOEnterpriseObject eo)
+	{
+		if (!COReferenceCounter.isEnabled() || isReadOnly() || parentObjectStore() instanceof EOEditingContext)
+			return;
+		if (_referenceDelta == null)
+			_referenceDelta = COReferenceCounter.newDelta();
+		_referenceDelta.objectWillChange(this, eo);
+	}
+
+	/**
+	 * Overridden to forget the fetches of the EC in the fetch memo of the request (see COFetchMemo).
+	 *
+	 */
+	@Override
+	public void invalidateAllObjects()
+	{
+		forgetMemoizedFetches();
+		super.invalidateAllObjects();
+	}
+
+	/**
+	 * Overridden to stop the tracking of the EC and to forget its fetches in the fetch memo of the request.
+	 *
+	 * @see COEditingContextTracker
+	 * @see COFetchMemo
+	 */
+	@Override
+	public void dispose()
+	{
+		COEditingContextTracker.unregister(this);
+		forgetMemoizedFetches();
+		super.dispose();
+		_registeredObjectCount = 0;
+		_referenceDelta = null;
+	}
+
+	/**
+	 * Overridden to count the registered objects (see registeredObjectCount).
+	 *
+	 */
+	@Override
+	public void recordObject(final EOEnterpriseObject eo, final EOGlobalID gid)
+	{
+		super.recordObject(eo, gid);
+		_registeredObjectCount++;
+	}
+
+	/**
+	 * Overridden to count the registered objects (see registeredObjectCount).
+	 *
+	 */
+	@Override
+	public void forgetObject(final EOEnterpriseObject eo)
+	{
+		super.forgetObject(eo);
+		if (_registeredObjectCount > 0)
+			_registeredObjectCount--;
+	}
+
+	/**
+	 * Returns the number of objects registered in the EC without reading registeredObjects(), it can be called from any
+	 * thread without locking the EC. It's only updated by the thread that owns the EC, another thread may read a value a
+	 * little late. When the EC doesn't retain its objects, the objects garbage collected are still counted until the
+	 * next reset.
+	 *
+	 * @return number of registered objects
+	 */
+	public int registeredObjectCount()
+	{
+		return _registeredObjectCount;
+	}
+
+	private void forgetMemoizedFetches()
+	{
+		COFetchMemo memo = COFetchMemo.currentMemo();
+		if (memo != null)
+			memo.remove(this);
+	}
+
+	/**
+	 * Returns the profile of the save in progress.
+	 *
+	 * @return the profile or <code>null</code> if there is no save in progress or if the profiling is disabled
+	 */
+	public COSaveProfile currentSaveProfile()
+	{
+		return _currentSaveProfile;
+	}
 }
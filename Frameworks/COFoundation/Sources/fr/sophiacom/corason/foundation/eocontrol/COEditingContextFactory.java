@@ -1,24 +1,56 @@
 package fr.sophiacom.corason.foundation.eocontrol;
 
+import java.util.IdentityHashMap;
+
 import org.apache.log4j.Logger;
 
+import com.webobjects.eoaccess.EOAdaptor;
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOModel;
+import com.webobjects.eoaccess.EOModelGroup;
 import com.webobjects.eocontrol.EOEditingContext;
 import com.webobjects.eocontrol.EOObjectStore;
+import com.webobjects.eocontrol.EOObjectStoreCoordinator;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableDictionary;
 
+import er.extensions.appserver.ERXSession;
 import er.extensions.eof.ERXEC;
 import er.extensions.foundation.ERXProperties;
 
 /**
  * EC factory subclass that inherits from Project Wonder class.<p>
  * The purpose is to create COEditingContext. It also provides a static method that returns
- * a non autolock editingContext (necessary when ec is used in a background thread).
+ * a non autolock editingContext (necessary when ec is used in a background thread).<p>
+ * Each EC is registered in COEditingContextTracker (does nothing if the tracker is disabled).<p>
+ * The factory also manages the read replica. When it's enabled, the read-only ECs (see newReadOnlyEditingContext) are
+ * created on a second EOObjectStoreCoordinator which database contexts use the replica connection dictionaries, so their
+ * fetches, faults and snapshots all come from the replica. The raw rows fetches with the replica hint of the other ECs
+ * are sent to it too (see COEditingContext). The properties are:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory.readReplica.enabled=true</code><br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory.readReplica.URL=jdbc:...</code><br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory.readReplica.username=...</code><br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory.readReplica.password=...</code><br>
+ * The URL, username and password can be set per model, for example <code>...readReplica.MyModel.URL</code>.
+ * After a save in the primary database by a session, the read-only ECs and the fetches of this session stay on the
+ * primary during the maximum staleness window (ms) so the session reads its own writes even if the replica is late. The
+ * saves of the other sessions and of the other instances don't change it, the replica lag is accepted for them:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory.readReplica.maxStaleness=5000</code>
  *
  * @see COEditingContext
+ * @see COEditingContextTracker
  *
  */
 public class COEditingContextFactory extends ERXEC.DefaultFactory {
 	private static Logger log = Logger.getLogger(COEditingContextFactory.class);
 
+	private static final String READ_REPLICA_PREFIX = "fr.sophiacom.corason.foundation.eocontrol.COEditingContextFactory.readReplica.";
+	private static final boolean readReplicaEnabled = ERXProperties.booleanForKeyWithDefault(READ_REPLICA_PREFIX + "enabled", false);
+	private static final long readReplicaMaxStaleness = ERXProperties.longForKeyWithDefault(READ_REPLICA_PREFIX + "maxStaleness", 5000L);
+	/** key of the time of the last save in the primary database in the session */
+	private static final String LAST_PRIMARY_SAVE_TIME_KEY = COEditingContextFactory.class.getName() + ".lastPrimarySaveTime";
+	private static volatile EOObjectStoreCoordinator readReplicaObjectStore = null;
+
 	/**
 	 * Constructor.
 	 *
@@ -45,7 +77,94 @@ public class COEditingContextFactory extends ERXEC.DefaultFactory {
         if (log.isDebugEnabled()) {
             log.debug("_createEditingContext: parent: " + parent);
         }
-		return new COEditingContext(parent == null ? EOEditingContext.defaultParentObjectStore() : parent);
+		EOEditingContext ec = new COEditingContext(parent == null ? EOEditingContext.defaultParentObjectStore() : parent);
+		COEditingContextTracker.register(ec);
+		return ec;
+	}
+
+	/**
+	 * @return <code>true</code> if the read replica is configured
+	 */
+	public static boolean isReadReplicaEnabled()
+	{
+		return readReplicaEnabled;
+	}
+
+	/**
+	 * Returns <code>true</code> if the current thread can read from the replica now. It returns <code>false</code> during
+	 * the maximum staleness window that follows a save in the primary database by the session of the thread.
+	 *
+	 * @return boolean
+	 */
+	public static boolean canReadFromReplica()
+	{
+		if (!readReplicaEnabled)
+			return false;
+		ERXSession session = ERXSession.session();
+		Object lastPrimarySaveTime = session == null ? null : session.objectForKey(LAST_PRIMARY_SAVE_TIME_KEY);
+		return !(lastPrimarySaveTime instanceof Long) || System.currentTimeMillis() - ((Long)lastPrimarySaveTime).longValue() > readReplicaMaxStaleness;
+	}
+
+	/**
+	 * Called by COEditingContext after a save in the primary database, the time is kept in the session of the thread.
+	 *
+	 */
+	public static void primaryDidSaveChanges()
+	{
+		ERXSession session = ERXSession.session();
+		if (session != null)
+			session.setObjectForKey(Long.valueOf(System.currentTimeMillis()), LAST_PRIMARY_SAVE_TIME_KEY);
+	}
+
+	/**
+	 * Returns the object store coordinator of the read replica. It's created the first time with a database context per
+	 * connection dictionary found in the default model group.
+	 *
+	 * @return the replica object store coordinator
+	 */
+	public static EOObjectStoreCoordinator readReplicaObjectStore()
+	{
+		if (readReplicaObjectStore == null)
+		{
+			synchronized (COEditingContextFactory.class)
+			{
+				if (readReplicaObjectStore == null)
+					readReplicaObjectStore = createReadReplicaObjectStore();
+			}
+		}
+		return readReplicaObjectStore;
+	}
+
+	private static EOObjectStoreCoordinator createReadReplicaObjectStore()
+	{
+		EOObjectStoreCoordinator osc = new EOObjectStoreCoordinator();
+		IdentityHashMap<EOAdaptor, Boolean> configuredAdaptors = new IdentityHashMap<EOAdaptor, Boolean>();
+		for (EOModel model : EOModelGroup.defaultGroup().models())
+		{
+			EODatabaseContext databaseContext = EODatabaseContext.registeredDatabaseContextForModel(model, osc);
+			EOAdaptor adaptor = databaseContext.database().adaptor();
+			if (configuredAdaptors.put(adaptor, Boolean.TRUE) == null)
+			{
+				adaptor.setConnectionDictionary(readReplicaConnectionDictionary(model));
+				if (log.isDebugEnabled())
+					log.debug("method: createReadReplicaObjectStore: model: " + model.name() + " URL: " + adaptor.connectionDictionary().objectForKey("URL"));
+			}
+		}
+		return osc;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static NSDictionary<String, Object> readReplicaConnectionDictionary(final EOModel model)
+	{
+		NSMutableDictionary<String, Object> dictionary = model.connectionDictionary().mutableClone();
+		String[] keys = new String[] {"URL", "username", "password"};
+		for (String key : keys)
+		{
+			String value = ERXProperties.stringForKeyWithDefault(READ_REPLICA_PREFIX + model.name() + "." + key, ERXProperties.stringForKey(READ_REPLICA_PREFIX + key));
+			if (value != null)
+				dictionary.setObjectForKey(value, key);
+		}
+		return dictionary.immutableClone();
 	}
 
 	/**
@@ -56,7 +175,7 @@ public class COEditingContextFactory extends ERXEC.DefaultFactory {
 		@Override
 		protected EOEditingContext _createEditingContext(final EOObjectStore parent)
 		{
-			return new COEditingContext(parent == null ? EOEditingContext.defaultParentObjectStore() : parent)
+			EOEditingContext ec = new COEditingContext(parent == null ? EOEditingContext.defaultParentObjectStore() : parent)
 			{
 				private static final long serialVersionUID = -1933961454177083353L;
 
@@ -66,9 +185,52 @@ public class COEditingContextFactory extends ERXEC.DefaultFactory {
 				@Override
 				public boolean coalesceAutoLocks() {return false;}
 			};
+			COEditingContextTracker.register(ec);
+			return ec;
+		}
+	};
+
+	/**
+	 * Anonymous ERXEC factory that creates read-only ec's
+	 */
+	private static ERXEC.Factory readOnlyEditingContextFactory = new ERXEC.DefaultFactory() {
+
+		@Override
+		protected EOEditingContext _createEditingContext(final EOObjectStore parent)
+		{
+			EOEditingContext ec = new COReadOnlyEditingContext(parent == null ? EOEditingContext.defaultParentObjectStore() : parent);
+			COEditingContextTracker.register(ec);
+			return ec;
 		}
 	};
 
+	/**
+	 * Returns an EC for the code that only reads objects like the reports. When the read replica is enabled and the
+	 * session of the thread can read from it (see canReadFromReplica), the parent object store of the EC is the replica
+	 * coordinator: its objects can't be moved to an EC of the primary with localInstanceOfObject, use their global ids.
+	 *
+	 * @return a new COReadOnlyEditingContext
+	 * @see COReadOnlyEditingContext
+	 */
+	public static COReadOnlyEditingContext newReadOnlyEditingContext()
+	{
+		if (canReadFromReplica())
+			return (COReadOnlyEditingContext)readOnlyEditingContextFactory._newEditingContext(readReplicaObjectStore());
+		return (COReadOnlyEditingContext)readOnlyEditingContextFactory._newEditingContext();
+	}
+
+	/**
+	 * Returns an EC for the code that only reads objects like the reports.
+	 *
+	 * @param parent
+	 * @return a new COReadOnlyEditingContext
+	 * @see COReadOnlyEditingContext
+	 */
+	public static COReadOnlyEditingContext newReadOnlyEditingContext(final EOObjectStore parent)
+	{
+		return (COReadOnlyEditingContext)readOnlyEditingContextFactory._newEditingContext(parent);
+	}
+
 	/**
 	 * @return a regular ERXEC with no auto-locking features
 	 */
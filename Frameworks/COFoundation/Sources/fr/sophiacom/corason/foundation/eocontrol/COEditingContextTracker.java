@@ -0,0 +1,263 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.WeakHashMap;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableArray;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Opt-in tracker of the editing contexts created by COEditingContextFactory. It helps to find the editing contexts
+ * that are never disposed and keep thousands of objects and snapshots alive.<p>
+ * The tracker only keeps weak references so it doesn't prevent an editing context from being garbage collected. For each
+ * editing context, it records the creation date, the creating thread and the creation stack. A live view gives the number
+ * of registered objects and an estimation of the memory retained by each editing context.<p>
+ * The tracker is disabled by default and costs nothing more than a boolean test. It is turned on with:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContextTracker.enabled=true</code><br>
+ * When enabled, the editing contexts older than <code>ageThreshold</code> seconds are logged every
+ * <code>reportInterval</code> seconds (0 to disable the periodic report):<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContextTracker.ageThreshold=600</code><br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COEditingContextTracker.reportInterval=300</code><br>
+ * The report can also be read with the direct action <code>COCoreDirectAction/editingContextsReport</code>.
+ *
+ * @see fr.sophiacom.corason.foundation.appserver.COCoreDirectAction#editingContextsReportAction()
+ */
+public class COEditingContextTracker
+{
+	private static final Logger log = Logger.getLogger(COEditingContextTracker.class);
+	private static final boolean enabled = ERXProperties.booleanForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COEditingContextTracker.enabled", false);
+	private static final long ageThreshold = ERXProperties.longForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COEditingContextTracker.ageThreshold", 600L) * 1000L;
+	private static final long reportInterval = ERXProperties.longForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COEditingContextTracker.reportInterval", 300L) * 1000L;
+
+	// Rough memory cost of an enterprise object with an average number of attributes, and the same again for the snapshot.
+	private static final int OBJECT_OVERHEAD = 64;
+	private static final int VALUE_SIZE = 32;
+	private static final int AVERAGE_ATTRIBUTE_COUNT = 10;
+	private static final int OBJECT_SIZE = 2 * (OBJECT_OVERHEAD + VALUE_SIZE * AVERAGE_ATTRIBUTE_COUNT);
+
+	private static final Map<EOEditingContext, TrackingInfo> trackedEditingContexts = Collections.synchronizedMap(new WeakHashMap<EOEditingContext, TrackingInfo>());
+	private static Timer reportTimer;
+
+	/**
+	 * Information recorded when the editing context is created. It must never reference the editing context.
+	 */
+	private static class TrackingInfo
+	{
+		private final long _creationTime = System.currentTimeMillis();
+		private final String _threadName = Thread.currentThread().getName();
+		private final Throwable _creationStack = new Throwable("Editing context creation stack");
+	}
+
+	/**
+	 * Live information about a tracked editing context.
+	 */
+	public static class EditingContextInfo
+	{
+		private final String _description;
+		private final long _creationTime;
+		private final String _threadName;
+		private final Throwable _creationStack;
+		private final int _registeredObjectCount;
+		private final long _estimatedSize;
+
+		protected EditingContextInfo(final EOEditingContext ec, final TrackingInfo info)
+		{
+			_description = ec.toString();
+			_creationTime = info._creationTime;
+			_threadName = info._threadName;
+			_creationStack = info._creationStack;
+
+			// The editing context may be used by another thread, its registered objects are never read for a report.
+			int count = ec instanceof COEditingContext ? ((COEditingContext)ec).registeredObjectCount() : -1;
+			_registeredObjectCount = count;
+			_estimatedSize = count < 0 ? -1 : (long)count * OBJECT_SIZE;
+		}
+
+		public String description()
+		{
+			return _description;
+		}
+
+		public long creationTime()
+		{
+			return _creationTime;
+		}
+
+		public long age()
+		{
+			return System.currentTimeMillis() - _creationTime;
+		}
+
+		public String threadName()
+		{
+			return _threadName;
+		}
+
+		public Throwable creationStack()
+		{
+			return _creationStack;
+		}
+
+		/**
+		 * @return number of registered objects or -1 if the editing context is not a COEditingContext
+		 */
+		public int registeredObjectCount()
+		{
+			return _registeredObjectCount;
+		}
+
+		/**
+		 * @return estimation in bytes of the memory retained by the objects and their snapshots or -1 if the editing context
+		 * is not a COEditingContext
+		 */
+		public long estimatedSize()
+		{
+			return _estimatedSize;
+		}
+
+		@Override
+		public String toString()
+		{
+			return _description + " age: " + age() / 1000 + " s, thread: " + _threadName + ", objects: " + _registeredObjectCount + ", estimated size: " + _estimatedSize / 1024 + " KB";
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the editing contexts are tracked
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Starts tracking the editing context. Does nothing if the tracker is disabled.
+	 *
+	 * @param ec the new editing context
+	 */
+	public static void register(final EOEditingContext ec)
+	{
+		if (!enabled)
+			return;
+		trackedEditingContexts.put(ec, new TrackingInfo());
+		startReportTimerIfNeeded();
+	}
+
+	/**
+	 * Stops tracking the editing context, typically when it is disposed.
+	 *
+	 * @param ec the editing context
+	 */
+	public static void unregister(final EOEditingContext ec)
+	{
+		if (!enabled)
+			return;
+		trackedEditingContexts.remove(ec);
+	}
+
+	/**
+	 * Returns the tracked editing contexts still alive.
+	 *
+	 * @return the tracked editing contexts
+	 */
+	public static NSArray<EOEditingContext> trackedEditingContexts()
+	{
+		NSMutableArray<EOEditingContext> editingContexts = new NSMutableArray<EOEditingContext>();
+		synchronized (trackedEditingContexts)
+		{
+			for (EOEditingContext ec : trackedEditingContexts.keySet())
+			{
+				if (ec != null)
+					editingContexts.addObject(ec);
+			}
+		}
+		return editingContexts.immutableClone();
+	}
+
+	/**
+	 * Returns live information about the tracked editing contexts older than the age.
+	 *
+	 * @param minimumAge minimum age in ms
+	 * @return array of EditingContextInfo
+	 */
+	public static NSArray<EditingContextInfo> editingContextInfos(final long minimumAge)
+	{
+		NSMutableArray<EditingContextInfo> infos = new NSMutableArray<EditingContextInfo>();
+		long now = System.currentTimeMillis();
+		for (EOEditingContext ec : trackedEditingContexts())
+		{
+			TrackingInfo info = trackedEditingContexts.get(ec);
+			if (info != null && now - info._creationTime >= minimumAge)
+				infos.addObject(new EditingContextInfo(ec, info));
+		}
+		return infos.immutableClone();
+	}
+
+	/**
+	 * Returns a text report of the tracked editing contexts older than the age with their creation stack.
+	 *
+	 * @param minimumAge minimum age in ms
+	 * @return the report
+	 */
+	public static String report(final long minimumAge)
+	{
+		StringWriter stringWriter = new StringWriter();
+		PrintWriter writer = new PrintWriter(stringWriter);
+		if (!enabled)
+			writer.println("The editing context tracker is disabled.");
+		else
+		{
+			NSArray<EditingContextInfo> infos = editingContextInfos(minimumAge);
+			writer.println(infos.count() + " editing context(s) older than " + minimumAge / 1000 + " s (" + trackedEditingContexts.size() + " tracked)");
+			for (EditingContextInfo info : infos)
+			{
+				writer.println();
+				writer.println(info);
+				info.creationStack().printStackTrace(writer);
+			}
+		}
+		writer.flush();
+		return stringWriter.toString();
+	}
+
+	/**
+	 * @return a text report of the tracked editing contexts older than the threshold
+	 */
+	public static String report()
+	{
+		return report(ageThreshold);
+	}
+
+	private static synchronized void startReportTimerIfNeeded()
+	{
+		if (reportTimer != null || reportInterval <= 0)
+			return;
+		reportTimer = new Timer("COEditingContextTracker", true);
+		reportTimer.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					NSArray<EditingContextInfo> infos = editingContextInfos(ageThreshold);
+					for (EditingContextInfo info : infos)
+						log.warn("method: report: editing context older than " + ageThreshold / 1000 + " s: " + info, info.creationStack());
+				} catch (RuntimeException e)
+				{
+					log.error("method: report", e);
+				}
+			}
+		}, reportInterval, reportInterval);
+	}
+}
@@ -0,0 +1,358 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSRange;
+
+import er.extensions.eof.ERXEOAccessUtilities;
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.util.COCacheRegistry;
+import fr.sophiacom.corason.foundation.util.COJMXUtilities;
+
+/**
+ * Guardrails applied to the fetches of the COEditingContext, to protect the application against the unbounded fetches.
+ * The violations are counted per caller (the first method outside EOF, Wonder and this package) and exposed with JMX
+ * (<code>fr.sophiacom.corason:type=FetchGuardrail</code>).<p>
+ * The guardrails are disabled by default. They are turned on with:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COFetchGuardrail.enabled=true</code><p>
+ * <b>Maximum fetch limit</b>: the maximum number of rows of a fetch, for all the entities or per entity (0 means no limit):<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COFetchGuardrail.maxFetchLimit=0</code><br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COFetchGuardrail.maxFetchLimit.MyEntity=5000</code><p>
+ * <b>Unqualified fetches</b>: a fetch without qualifier and without fetch limit is a violation when the estimated row
+ * count of the entity reaches the threshold (0 disables the check):<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COFetchGuardrail.largeTableRowCount=100000</code><br>
+ * The estimate is a <code>SELECT COUNT(*)</code> kept during a time to live (s). It can be replaced by a property per entity:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COFetchGuardrail.rowCountEstimateTTL=3600</code><br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COFetchGuardrail.estimatedRowCount.MyEntity=3000000</code><p>
+ * <b>Action</b> on a violation (see FetchGuardrailAction):<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COFetchGuardrail.action=WARN</code>
+ *
+ * @see COEditingContext#objectsWithFetchSpecification(EOFetchSpecification, EOEditingContext)
+ */
+public class COFetchGuardrail implements COFetchGuardrailMBean
+{
+	/**
+	 * What the guardrail does when a fetch breaks a rule.
+	 */
+	public enum FetchGuardrailAction
+	{
+		/** the fetch is done and the violation is logged */
+		WARN,
+		/** the fetch limit is reduced to the maximum fetch limit, the fetch returns the first rows only */
+		TRUNCATE,
+		/** an IllegalStateException is raised */
+		THROW;
+	}
+
+	private static final Logger log = Logger.getLogger(COFetchGuardrail.class);
+	private static final String PREFIX = "fr.sophiacom.corason.foundation.eocontrol.COFetchGuardrail.";
+	private static final boolean enabled = ERXProperties.booleanForKeyWithDefault(PREFIX + "enabled", false);
+	private static final String[] FRAMEWORK_PACKAGES = new String[] {"java.", "javax.", "sun.", "com.webobjects.", "er.extensions.", COFetchGuardrail.class.getPackage().getName() + "."};
+	private static volatile COFetchGuardrail guardrail = null;
+
+	private final FetchGuardrailAction _action = actionFromProperties();
+	private final int _defaultMaxFetchLimit = ERXProperties.intForKeyWithDefault(PREFIX + "maxFetchLimit", 0);
+	private final long _largeTableRowCount = ERXProperties.longForKeyWithDefault(PREFIX + "largeTableRowCount", 100000L);
+	private final long _rowCountEstimateTTL = ERXProperties.longForKeyWithDefault(PREFIX + "rowCountEstimateTTL", 3600L) * 1000L;
+	private final int _topCallerCount = ERXProperties.intForKeyWithDefault(PREFIX + "topCallerCount", 10);
+	private final ConcurrentMap<String, Integer> _maxFetchLimits = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentMap<String, RowCountEstimate> _rowCountEstimates = new ConcurrentHashMap<String, RowCountEstimate>();
+	private final ConcurrentMap<String, AtomicLong> _violationsByCaller = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong _fetchLimitViolationCount = new AtomicLong();
+	private final AtomicLong _unqualifiedFetchViolationCount = new AtomicLong();
+	private final AtomicLong _truncatedFetchCount = new AtomicLong();
+	private final AtomicLong _rejectedFetchCount = new AtomicLong();
+
+	private static class RowCountEstimate
+	{
+		private final long _rowCount;
+		private final long _time;
+
+		private RowCountEstimate(final long rowCount)
+		{
+			_rowCount = rowCount;
+			_time = System.currentTimeMillis();
+		}
+	}
+
+	private static FetchGuardrailAction actionFromProperties()
+	{
+		String aString = ERXProperties.stringForKeyWithDefault(PREFIX + "action", FetchGuardrailAction.WARN.name());
+		try
+		{
+			return FetchGuardrailAction.valueOf(aString.trim().toUpperCase());
+		} catch (IllegalArgumentException e)
+		{
+			log.error("The guardrail action must be WARN, TRUNCATE or THROW: " + aString);
+			return FetchGuardrailAction.WARN;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the guardrails are enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Returns the unique instance. The MBean and the cache of the row count estimates (see COCacheRegistry) are registered
+	 * when the instance is created.
+	 *
+	 * @return the unique instance
+	 */
+	public static COFetchGuardrail getInstance()
+	{
+		if (guardrail == null)
+		{
+			synchronized (COFetchGuardrail.class)
+			{
+				if (guardrail == null)
+				{
+					COFetchGuardrail aGuardrail = new COFetchGuardrail();
+					COJMXUtilities.registerMBean(aGuardrail, "FetchGuardrail");
+					COCacheRegistry.registerCache("fetchGuardrailRowCountEstimates", new COCacheRegistry.Cache()
+					{
+						public void clearCache()
+						{
+							getInstance().clearRowCountEstimates();
+						}
+					});
+					guardrail = aGuardrail;
+				}
+			}
+		}
+		return guardrail;
+	}
+
+	/**
+	 * Checks a fetch before it's done. Returns the fetch specification to use: the same one or, when the limit must be
+	 * enforced (TRUNCATE and THROW), a copy with a fetch limit.
+	 *
+	 * @param ec editing context that fetches
+	 * @param fetchSpecification
+	 * @return fetch specification to use
+	 * @exception IllegalStateException if the fetch is rejected
+	 */
+	public EOFetchSpecification fetchSpecificationToUse(final EOEditingContext ec, final EOFetchSpecification fetchSpecification)
+	{
+		String entityName = fetchSpecification.entityName();
+		int fetchLimit = fetchSpecification.fetchLimit();
+		if (fetchSpecification.qualifier() == null && fetchLimit == 0 && _largeTableRowCount > 0)
+		{
+			long rowCount = estimatedRowCount(ec, entityName);
+			if (rowCount >= _largeTableRowCount)
+			{
+				_unqualifiedFetchViolationCount.incrementAndGet();
+				String caller = recordViolation();
+				String message = "Unqualified fetch of " + entityName + " (about " + rowCount + " rows) by " + caller;
+				if (_action == FetchGuardrailAction.THROW)
+				{
+					_rejectedFetchCount.incrementAndGet();
+					log.error("method: fetchSpecificationToUse: " + message);
+					throw new IllegalStateException(message);
+				}
+				log.warn("method: fetchSpecificationToUse: " + message);
+			}
+		}
+
+		int maxFetchLimit = maxFetchLimit(entityName);
+		if (maxFetchLimit <= 0 || _action == FetchGuardrailAction.WARN || (fetchLimit > 0 && fetchLimit <= maxFetchLimit))
+			return fetchSpecification;
+		EOFetchSpecification limitedFetchSpecification = (EOFetchSpecification)fetchSpecification.clone();
+		// One more row is fetched to know if the maximum is exceeded, TRUNCATE removes it (see objectsDidFetch).
+		limitedFetchSpecification.setFetchLimit(maxFetchLimit + 1);
+		limitedFetchSpecification.setPromptsAfterFetchLimit(false);
+		return limitedFetchSpecification;
+	}
+
+	/**
+	 * Checks the result of a fetch.
+	 *
+	 * @param fetchSpecification fetch specification of the caller
+	 * @param usedFetchSpecification fetch specification returned by fetchSpecificationToUse
+	 * @param objects objects fetched
+	 * @return the objects to return to the caller, the first <code>maxFetchLimit</code> ones with TRUNCATE
+	 * @exception IllegalStateException if the maximum fetch limit is exceeded and the action is THROW
+	 */
+	@SuppressWarnings("rawtypes")
+	public NSArray objectsDidFetch(final EOFetchSpecification fetchSpecification, final EOFetchSpecification usedFetchSpecification, final NSArray objects)
+	{
+		String entityName = fetchSpecification.entityName();
+		int maxFetchLimit = maxFetchLimit(entityName);
+		int count = objects.count();
+		if (maxFetchLimit <= 0 || count <= maxFetchLimit)
+			return objects;
+		// The limit of the caller is under the maximum.
+		if (_action != FetchGuardrailAction.WARN && usedFetchSpecification == fetchSpecification)
+			return objects;
+		_fetchLimitViolationCount.incrementAndGet();
+		String caller = recordViolation();
+		switch (_action)
+		{
+			case TRUNCATE:
+				_truncatedFetchCount.incrementAndGet();
+				log.warn("method: objectsDidFetch: fetch of " + entityName + " truncated to " + maxFetchLimit + " rows for " + caller);
+				return objects.subarrayWithRange(new NSRange(0, maxFetchLimit));
+			case THROW:
+				_rejectedFetchCount.incrementAndGet();
+				String message = "Fetch of " + entityName + " by " + caller + " exceeds the maximum of " + maxFetchLimit + " rows";
+				log.error("method: objectsDidFetch: " + message);
+				throw new IllegalStateException(message);
+			default:
+				log.warn("method: objectsDidFetch: fetch of " + count + " " + entityName + " (maximum: " + maxFetchLimit + ") by " + caller);
+		}
+		return objects;
+	}
+
+	/**
+	 * @param entityName
+	 * @return maximum fetch limit of the entity, 0 if there is no maximum
+	 */
+	public int maxFetchLimit(final String entityName)
+	{
+		Integer maxFetchLimit = _maxFetchLimits.get(entityName);
+		if (maxFetchLimit == null)
+		{
+			maxFetchLimit = Integer.valueOf(ERXProperties.intForKeyWithDefault(PREFIX + "maxFetchLimit." + entityName, _defaultMaxFetchLimit));
+			_maxFetchLimits.put(entityName, maxFetchLimit);
+		}
+		return maxFetchLimit.intValue();
+	}
+
+	/**
+	 * Returns the estimated row count of the entity: the property <code>estimatedRowCount.&lt;entity&gt;</code> if it's
+	 * set, or the result of a count that is kept during the time to live.
+	 *
+	 * @param ec editing context used to count
+	 * @param entityName
+	 * @return estimated row count or -1 if it can't be counted
+	 */
+	public long estimatedRowCount(final EOEditingContext ec, final String entityName)
+	{
+		long rowCount = ERXProperties.longForKeyWithDefault(PREFIX + "estimatedRowCount." + entityName, -1L);
+		if (rowCount >= 0)
+			return rowCount;
+		RowCountEstimate estimate = _rowCountEstimates.get(entityName);
+		if (estimate == null || System.currentTimeMillis() - estimate._time > _rowCountEstimateTTL)
+		{
+			try
+			{
+				rowCount = ERXEOAccessUtilities.rowCountForFetchSpecification(ec, new EOFetchSpecification(entityName, null, null));
+			} catch (RuntimeException e)
+			{
+				log.warn("method: estimatedRowCount: unable to count " + entityName, e);
+			}
+			estimate = new RowCountEstimate(rowCount);
+			_rowCountEstimates.put(entityName, estimate);
+			if (log.isDebugEnabled())
+				log.debug("method: estimatedRowCount: entityName: " + entityName + " rowCount: " + rowCount);
+		}
+		return estimate._rowCount;
+	}
+
+	private String recordViolation()
+	{
+		String caller = caller();
+		AtomicLong count = _violationsByCaller.get(caller);
+		if (count == null)
+		{
+			AtomicLong newCount = new AtomicLong();
+			count = _violationsByCaller.putIfAbsent(caller, newCount);
+			if (count == null)
+				count = newCount;
+		}
+		count.incrementAndGet();
+		return caller;
+	}
+
+	/**
+	 * @return the first method of the stack that is not in EOF, Wonder or this package
+	 */
+	private static String caller()
+	{
+		StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+		for (StackTraceElement element : stackTrace)
+		{
+			if (!isFrameworkClass(element.getClassName()))
+				return element.getClassName() + "." + element.getMethodName() + "(" + element.getFileName() + ":" + element.getLineNumber() + ")";
+		}
+		return "unknown";
+	}
+
+	private static boolean isFrameworkClass(final String className)
+	{
+		for (String frameworkPackage : FRAMEWORK_PACKAGES)
+		{
+			if (className.startsWith(frameworkPackage))
+				return true;
+		}
+		return false;
+	}
+
+	public long getFetchLimitViolationCount()
+	{
+		return _fetchLimitViolationCount.get();
+	}
+
+	public long getUnqualifiedFetchViolationCount()
+	{
+		return _unqualifiedFetchViolationCount.get();
+	}
+
+	public long getTruncatedFetchCount()
+	{
+		return _truncatedFetchCount.get();
+	}
+
+	public long getRejectedFetchCount()
+	{
+		return _rejectedFetchCount.get();
+	}
+
+	public String[] getTopViolatingCallers()
+	{
+		List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(_violationsByCaller.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>()
+		{
+			public int compare(final Map.Entry<String, AtomicLong> entry1, final Map.Entry<String, AtomicLong> entry2)
+			{
+				long count1 = entry1.getValue().get();
+				long count2 = entry2.getValue().get();
+				return count1 > count2 ? -1 : (count1 == count2 ? 0 : 1);
+			}
+		});
+		int count = Math.min(_topCallerCount, entries.size());
+		String[] topCallers = new String[count];
+		for (int i = 0; i < count; i++)
+			topCallers[i] = entries.get(i).getKey() + ": " + entries.get(i).getValue().get();
+		return topCallers;
+	}
+
+	public void clearRowCountEstimates()
+	{
+		_rowCountEstimates.clear();
+	}
+
+	public void reset()
+	{
+		_fetchLimitViolationCount.set(0);
+		_unqualifiedFetchViolationCount.set(0);
+		_truncatedFetchCount.set(0);
+		_rejectedFetchCount.set(0);
+		_violationsByCaller.clear();
+	}
+}
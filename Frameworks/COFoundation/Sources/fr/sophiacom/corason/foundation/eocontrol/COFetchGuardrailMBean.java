@@ -0,0 +1,23 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+/**
+ * JMX interface of COFetchGuardrail.
+ *
+ * @see COFetchGuardrail
+ */
+public interface COFetchGuardrailMBean
+{
+	public long getFetchLimitViolationCount();
+
+	public long getUnqualifiedFetchViolationCount();
+
+	public long getTruncatedFetchCount();
+
+	public long getRejectedFetchCount();
+
+	public String[] getTopViolatingCallers();
+
+	public void clearRowCountEstimates();
+
+	public void reset();
+}
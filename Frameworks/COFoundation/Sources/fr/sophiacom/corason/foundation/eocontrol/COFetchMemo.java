@@ -0,0 +1,210 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.eocontrol.EOQualifier;
+import com.webobjects.foundation.NSArray;
+
+import er.extensions.foundation.ERXProperties;
+
+/**
+ * Request-scoped memo of the fetch results. When several components of a page issue the same fetch specification
+ * in the same editing context during a request-response loop, only the first one goes to the database.<p>
+ * The memo is opt-in:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COFetchMemo.enabled=true</code><br>
+ * It is created by COCoreApplication at the beginning of a request and dropped at the end. It is also cleared by any
+ * saveChanges of a COEditingContext in the request thread, and for an editing context by its reset, revert,
+ * invalidateAllObjects and dispose. The fetch specifications that refresh or lock the objects
+ * are never memoized. Outside a request (background threads), there is no memo.
+ *
+ * @see COEditingContext#objectsWithFetchSpecification(EOFetchSpecification, EOEditingContext)
+ * @see fr.sophiacom.corason.foundation.appserver.COCoreApplication#dispatchRequest(com.webobjects.appserver.WORequest)
+ */
+public class COFetchMemo
+{
+	private static final Logger log = Logger.getLogger(COFetchMemo.class);
+	private static final boolean enabled = ERXProperties.booleanForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COFetchMemo.enabled", false);
+	private static final ThreadLocal<COFetchMemo> currentMemo = new ThreadLocal<COFetchMemo>();
+	private static final AtomicLong totalSavedRoundTrips = new AtomicLong();
+
+	@SuppressWarnings("rawtypes")
+	private final IdentityHashMap<EOEditingContext, HashMap<FetchKey, NSArray>> _resultsByEditingContext = new IdentityHashMap<EOEditingContext, HashMap<FetchKey, NSArray>>();
+	private int _savedRoundTrips;
+
+	/**
+	 * Identifies a fetch specification. The qualifier is compared with equals, the other properties with their description.
+	 */
+	protected static class FetchKey
+	{
+		private final String _description;
+		private final EOQualifier _qualifier;
+		private final int _hashCode;
+
+		protected FetchKey(final EOFetchSpecification fetchSpecification)
+		{
+			StringBuilder sb = new StringBuilder(fetchSpecification.entityName());
+			sb.append('|').append(fetchSpecification.sortOrderings());
+			sb.append('|').append(fetchSpecification.fetchLimit());
+			sb.append('|').append(fetchSpecification.fetchesRawRows());
+			sb.append('|').append(fetchSpecification.rawRowKeyPaths());
+			sb.append('|').append(fetchSpecification.prefetchingRelationshipKeyPaths());
+			sb.append('|').append(fetchSpecification.usesDistinct());
+			sb.append('|').append(fetchSpecification.isDeep());
+			sb.append('|').append(fetchSpecification.hints());
+			_description = sb.toString();
+			_qualifier = fetchSpecification.qualifier();
+			_hashCode = 31 * _description.hashCode() + (_qualifier == null ? 0 : _qualifier.toString().hashCode());
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return _hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object object)
+		{
+			if (!(object instanceof FetchKey))
+				return false;
+			FetchKey key = (FetchKey)object;
+			if (_hashCode != key._hashCode || !_description.equals(key._description))
+				return false;
+			return _qualifier == null ? key._qualifier == null : _qualifier.equals(key._qualifier);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the memo is enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Creates the memo of the current thread. Does nothing if the memo is disabled.
+	 *
+	 */
+	public static void beginRequest()
+	{
+		if (enabled)
+			currentMemo.set(new COFetchMemo());
+	}
+
+	/**
+	 * Drops the memo of the current thread.
+	 *
+	 */
+	public static void endRequest()
+	{
+		if (!enabled)
+			return;
+		COFetchMemo memo = currentMemo.get();
+		if (memo != null && memo._savedRoundTrips > 0 && log.isDebugEnabled())
+			log.debug("method: endRequest: savedRoundTrips: " + memo._savedRoundTrips);
+		currentMemo.remove();
+	}
+
+	/**
+	 * @return the memo of the current thread or <code>null</code> if there is no request in progress or if the memo is disabled.
+	 */
+	public static COFetchMemo currentMemo()
+	{
+		return enabled ? currentMemo.get() : null;
+	}
+
+	/**
+	 * @return number of database round trips saved by the memo since the application started
+	 */
+	public static long totalSavedRoundTrips()
+	{
+		return totalSavedRoundTrips.get();
+	}
+
+	/**
+	 * Returns the key of the fetch specification.
+	 *
+	 * @param fetchSpecification
+	 * @return the key or <code>null</code> if the fetch specification can't be memoized
+	 */
+	public static Object keyForFetchSpecification(final EOFetchSpecification fetchSpecification)
+	{
+		if (fetchSpecification.refreshesRefetchedObjects() || fetchSpecification.locksObjects() || fetchSpecification.promptsAfterFetchLimit())
+			return null;
+		return new FetchKey(fetchSpecification);
+	}
+
+	/**
+	 * Returns the objects already fetched by the editing context for the key.
+	 *
+	 * @param ec editing context
+	 * @param key key of the fetch specification
+	 * @return the objects or <code>null</code> if the fetch has not been done yet
+	 */
+	@SuppressWarnings("rawtypes")
+	public NSArray objectsForKey(final EOEditingContext ec, final Object key)
+	{
+		HashMap<FetchKey, NSArray> results = _resultsByEditingContext.get(ec);
+		NSArray objects = results == null ? null : results.get(key);
+		if (objects != null)
+		{
+			_savedRoundTrips++;
+			totalSavedRoundTrips.incrementAndGet();
+		}
+		return objects;
+	}
+
+	/**
+	 * Records the objects fetched by the editing context for the key.
+	 *
+	 * @param ec editing context
+	 * @param key key of the fetch specification
+	 * @param objects objects fetched
+	 */
+	@SuppressWarnings("rawtypes")
+	public void recordObjects(final EOEditingContext ec, final Object key, final NSArray objects)
+	{
+		HashMap<FetchKey, NSArray> results = _resultsByEditingContext.get(ec);
+		if (results == null)
+		{
+			results = new HashMap<FetchKey, NSArray>();
+			_resultsByEditingContext.put(ec, results);
+		}
+		results.put((FetchKey)key, objects);
+	}
+
+	/**
+	 * @return number of database round trips saved by the memo during the request
+	 */
+	public int savedRoundTrips()
+	{
+		return _savedRoundTrips;
+	}
+
+	/**
+	 * Forgets the results of the editing context, its objects are no longer the ones of the memo after a reset, a revert,
+	 * an invalidation or a dispose.
+	 *
+	 * @param ec editing context
+	 */
+	public void remove(final EOEditingContext ec)
+	{
+		_resultsByEditingContext.remove(ec);
+	}
+
+	/**
+	 * Forgets all the results.
+	 *
+	 */
+	public void clear()
+	{
+		_resultsByEditingContext.clear();
+	}
+}
@@ -0,0 +1,248 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.util.COJMXUtilities;
+
+/**
+ * Lock contention statistics of the COEditingContext, exposed with JMX (<code>fr.sophiacom.corason:type=LockStatistics</code>).<p>
+ * For each lock of an EC (the outermost one when the lock is reentered), the time spent waiting for the lock and the
+ * time the lock is held are recorded in histograms and cumulated per thread name, so the threads that wait or hold the
+ * locks the most can be found.<br>
+ * The instrumentation is disabled by default. It is turned on with:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COLockStatistics.enabled=true</code><br>
+ * The number of threads returned by getTopWaitingThreads and getTopHoldingThreads is set with:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COLockStatistics.topThreadCount=10</code>
+ *
+ * @see COEditingContext#lock()
+ */
+public class COLockStatistics implements COLockStatisticsMBean
+{
+	private static final boolean enabled = ERXProperties.booleanForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COLockStatistics.enabled", false);
+	private static final long[] BUCKET_LIMITS = new long[] {1L, 10L, 100L, 1000L, 10000L};
+	private static volatile COLockStatistics statistics = null;
+
+	private final int _topThreadCount = ERXProperties.intForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COLockStatistics.topThreadCount", 10);
+	private final AtomicLong _lockCount = new AtomicLong();
+	private final AtomicLong _timeoutCount = new AtomicLong();
+	private final AtomicLong _totalWaitTime = new AtomicLong();
+	private final AtomicLong _maxWaitTime = new AtomicLong();
+	private final AtomicLong _totalHoldTime = new AtomicLong();
+	private final AtomicLong _maxHoldTime = new AtomicLong();
+	private final AtomicLongArray _waitTimeHistogram = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+	private final AtomicLongArray _holdTimeHistogram = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+	private final ConcurrentMap<String, AtomicLong> _waitTimeByThread = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, AtomicLong> _holdTimeByThread = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * @return <code>true</code> if the EC locks must be measured
+	 */
+	public static boolean isInstrumentationEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Returns the unique instance. The MBean is registered when the instance is created.
+	 *
+	 * @return the unique instance
+	 */
+	public static COLockStatistics getInstance()
+	{
+		if (statistics == null)
+		{
+			synchronized (COLockStatistics.class)
+			{
+				if (statistics == null)
+				{
+					COLockStatistics aStatistics = new COLockStatistics();
+					COJMXUtilities.registerMBean(aStatistics, "LockStatistics");
+					statistics = aStatistics;
+				}
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Records the time spent by the thread to acquire a lock.
+	 *
+	 * @param thread thread that acquired the lock
+	 * @param nanos wait time in nanoseconds
+	 */
+	public void recordWaitTime(final Thread thread, final long nanos)
+	{
+		long millis = nanos / 1000000L;
+		_lockCount.incrementAndGet();
+		_totalWaitTime.addAndGet(millis);
+		updateMax(_maxWaitTime, millis);
+		_waitTimeHistogram.incrementAndGet(bucket(millis));
+		if (millis > 0)
+			addTimeForThread(_waitTimeByThread, thread, millis);
+	}
+
+	/**
+	 * Records the time a lock was held by the thread.
+	 *
+	 * @param thread thread that released the lock
+	 * @param nanos hold time in nanoseconds
+	 */
+	public void recordHoldTime(final Thread thread, final long nanos)
+	{
+		long millis = nanos / 1000000L;
+		_totalHoldTime.addAndGet(millis);
+		updateMax(_maxHoldTime, millis);
+		_holdTimeHistogram.incrementAndGet(bucket(millis));
+		if (millis > 0)
+			addTimeForThread(_holdTimeByThread, thread, millis);
+	}
+
+	/**
+	 * Records a lock timeout.
+	 *
+	 */
+	public void recordTimeout()
+	{
+		_timeoutCount.incrementAndGet();
+	}
+
+	private static int bucket(final long millis)
+	{
+		int i = 0;
+		while (i < BUCKET_LIMITS.length && millis >= BUCKET_LIMITS[i])
+			i++;
+		return i;
+	}
+
+	private static void updateMax(final AtomicLong max, final long value)
+	{
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	private static void addTimeForThread(final ConcurrentMap<String, AtomicLong> timeByThread, final Thread thread, final long millis)
+	{
+		AtomicLong time = timeByThread.get(thread.getName());
+		if (time == null)
+		{
+			AtomicLong newTime = new AtomicLong();
+			time = timeByThread.putIfAbsent(thread.getName(), newTime);
+			if (time == null)
+				time = newTime;
+		}
+		time.addAndGet(millis);
+	}
+
+	private String[] topThreads(final ConcurrentMap<String, AtomicLong> timeByThread)
+	{
+		List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>(timeByThread.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>()
+		{
+			public int compare(final Map.Entry<String, AtomicLong> entry1, final Map.Entry<String, AtomicLong> entry2)
+			{
+				long time1 = entry1.getValue().get();
+				long time2 = entry2.getValue().get();
+				return time1 > time2 ? -1 : (time1 == time2 ? 0 : 1);
+			}
+		});
+		int count = Math.min(_topThreadCount, entries.size());
+		String[] topThreads = new String[count];
+		for (int i = 0; i < count; i++)
+			topThreads[i] = entries.get(i).getKey() + ": " + entries.get(i).getValue().get() + " ms";
+		return topThreads;
+	}
+
+	public long getLockCount()
+	{
+		return _lockCount.get();
+	}
+
+	public long getTimeoutCount()
+	{
+		return _timeoutCount.get();
+	}
+
+	public long getTotalWaitTimeMillis()
+	{
+		return _totalWaitTime.get();
+	}
+
+	public long getMaxWaitTimeMillis()
+	{
+		return _maxWaitTime.get();
+	}
+
+	public long getTotalHoldTimeMillis()
+	{
+		return _totalHoldTime.get();
+	}
+
+	public long getMaxHoldTimeMillis()
+	{
+		return _maxHoldTime.get();
+	}
+
+	public String[] getHistogramBuckets()
+	{
+		String[] buckets = new String[BUCKET_LIMITS.length + 1];
+		for (int i = 0; i < BUCKET_LIMITS.length; i++)
+			buckets[i] = "< " + BUCKET_LIMITS[i] + " ms";
+		buckets[BUCKET_LIMITS.length] = ">= " + BUCKET_LIMITS[BUCKET_LIMITS.length - 1] + " ms";
+		return buckets;
+	}
+
+	public long[] getWaitTimeHistogram()
+	{
+		return histogram(_waitTimeHistogram);
+	}
+
+	public long[] getHoldTimeHistogram()
+	{
+		return histogram(_holdTimeHistogram);
+	}
+
+	private static long[] histogram(final AtomicLongArray atomicHistogram)
+	{
+		long[] histogram = new long[atomicHistogram.length()];
+		for (int i = 0; i < histogram.length; i++)
+			histogram[i] = atomicHistogram.get(i);
+		return histogram;
+	}
+
+	public String[] getTopWaitingThreads()
+	{
+		return topThreads(_waitTimeByThread);
+	}
+
+	public String[] getTopHoldingThreads()
+	{
+		return topThreads(_holdTimeByThread);
+	}
+
+	public void reset()
+	{
+		_lockCount.set(0);
+		_timeoutCount.set(0);
+		_totalWaitTime.set(0);
+		_maxWaitTime.set(0);
+		_totalHoldTime.set(0);
+		_maxHoldTime.set(0);
+		for (int i = 0; i < _waitTimeHistogram.length(); i++)
+		{
+			_waitTimeHistogram.set(i, 0);
+			_holdTimeHistogram.set(i, 0);
+		}
+		_waitTimeByThread.clear();
+		_holdTimeByThread.clear();
+	}
+}
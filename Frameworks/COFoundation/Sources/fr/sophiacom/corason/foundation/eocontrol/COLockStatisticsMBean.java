@@ -0,0 +1,33 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+/**
+ * JMX interface of COLockStatistics.
+ *
+ * @see COLockStatistics
+ */
+public interface COLockStatisticsMBean
+{
+	public long getLockCount();
+
+	public long getTimeoutCount();
+
+	public long getTotalWaitTimeMillis();
+
+	public long getMaxWaitTimeMillis();
+
+	public long getTotalHoldTimeMillis();
+
+	public long getMaxHoldTimeMillis();
+
+	public String[] getHistogramBuckets();
+
+	public long[] getWaitTimeHistogram();
+
+	public long[] getHoldTimeHistogram();
+
+	public String[] getTopWaitingThreads();
+
+	public String[] getTopHoldingThreads();
+
+	public void reset();
+}
@@ -0,0 +1,358 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eoaccess.EODatabaseContext;
+import com.webobjects.eoaccess.EOEntity;
+import com.webobjects.eoaccess.EOModelGroup;
+import com.webobjects.eoaccess.EORelationship;
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOFetchSpecification;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSDictionary;
+import com.webobjects.foundation.NSMutableArray;
+import com.webobjects.foundation.NSMutableSet;
+import com.webobjects.foundation.NSNotification;
+import com.webobjects.foundation.NSNotificationCenter;
+import com.webobjects.foundation.NSSelector;
+
+import er.extensions.eof.ERXDatabaseContextMulticastingDelegate;
+import er.extensions.foundation.ERXConfigurationManager;
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.util.COJMXUtilities;
+
+/**
+ * Prefetching key paths added by COEditingContext to the object fetches, from the properties instead of
+ * <code>setPrefetchingRelationshipKeyPaths</code> calls in the code. The hints are set per entity and, optionally, per
+ * purpose of the fetch (hint <code>COEditingContext.PURPOSE_HINT</code> of the fetch specification):<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COPrefetchHints.MyEntity=owner,lines.product</code><br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COPrefetchHints.MyEntity.report=lines</code><br>
+ * The purpose hint replaces the entity hint. The key paths already set in the fetch specification are kept.<p>
+ * The hints are disabled by default. They are turned on with:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COPrefetchHints.enabled=true</code><br>
+ * The hints are read again when the configuration changes (ERXConfigurationManager) or with the JMX operation reload
+ * (<code>fr.sophiacom.corason:type=PrefetchHints</code>).<p>
+ * The SELECT statements are counted by a database context delegate (see FetchCounter, added to the default delegates of
+ * Wonder when the hints are started by COCoreApplication). The report gives for each hint the fetches, the objects, the
+ * queries made by these fetches (the fetch and its prefetches) and the fault queries of the destination entities of
+ * the hinted relationships (the queries of these entities made outside a fetch of a COEditingContext). To know whether a
+ * hint reduces the queries, compare the report with the hints active and inactive (JMX attribute Active, changing it
+ * clears the statistics) for the same workload.
+ *
+ * @see COEditingContext#objectsWithFetchSpecification(EOFetchSpecification, com.webobjects.eocontrol.EOEditingContext)
+ */
+public class COPrefetchHints implements COPrefetchHintsMBean
+{
+	private static final Logger log = Logger.getLogger(COPrefetchHints.class);
+	private static final String PREFIX = "fr.sophiacom.corason.foundation.eocontrol.COPrefetchHints.";
+	private static final boolean enabled = ERXProperties.booleanForKeyWithDefault(PREFIX + "enabled", false);
+	private static volatile COPrefetchHints prefetchHints = null;
+	/** hint of the fetch in progress in the thread, NO_HINT for a fetch without hint */
+	private static final ThreadLocal<String> currentFetchHint = new ThreadLocal<String>();
+	private static final String NO_HINT = "";
+
+	private final ConcurrentMap<String, NSArray<String>> _keyPathsByHint = new ConcurrentHashMap<String, NSArray<String>>();
+	private final ConcurrentMap<String, HintStatistics> _statisticsByHint = new ConcurrentHashMap<String, HintStatistics>();
+	private final ConcurrentMap<String, AtomicLong> _faultQueryCountByEntity = new ConcurrentHashMap<String, AtomicLong>();
+	private volatile boolean _active = true;
+
+	private static class HintStatistics
+	{
+		private final AtomicLong _fetchCount = new AtomicLong();
+		private final AtomicLong _objectCount = new AtomicLong();
+		private final AtomicLong _queryCount = new AtomicLong();
+	}
+
+	/**
+	 * Database context delegate that counts the SELECT statements.
+	 */
+	public static class FetchCounter
+	{
+		@SuppressWarnings("rawtypes")
+		public void databaseContextDidFetchObjects(final EODatabaseContext databaseContext, final NSArray objects, final EOFetchSpecification fetchSpecification,
+				final EOEditingContext ec)
+		{
+			COPrefetchHints aPrefetchHints = prefetchHints;
+			if (aPrefetchHints != null)
+				aPrefetchHints.queryDidEnd(fetchSpecification.entityName());
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the prefetch hints are enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Creates the instance and adds the delegate that counts the queries if the hints are enabled. Must be called
+	 * before the database contexts are created, the queries of the older ones are not counted.
+	 *
+	 */
+	public static void startIfEnabled()
+	{
+		if (enabled)
+			getInstance();
+	}
+
+	/**
+	 * Returns the unique instance. The MBean is registered and the configuration changes are observed when the instance
+	 * is created.
+	 *
+	 * @return the unique instance
+	 */
+	public static COPrefetchHints getInstance()
+	{
+		if (prefetchHints == null)
+		{
+			synchronized (COPrefetchHints.class)
+			{
+				if (prefetchHints == null)
+				{
+					COPrefetchHints aPrefetchHints = new COPrefetchHints();
+					NSNotificationCenter.defaultCenter().addObserver(aPrefetchHints, new NSSelector<Void>("configurationDidChange", new Class[] {NSNotification.class}),
+							ERXConfigurationManager.ConfigurationDidChangeNotification, null);
+					COJMXUtilities.registerMBean(aPrefetchHints, "PrefetchHints");
+					ERXDatabaseContextMulticastingDelegate.addDefaultDelegate(new FetchCounter());
+					prefetchHints = aPrefetchHints;
+				}
+			}
+		}
+		return prefetchHints;
+	}
+
+	/**
+	 * Returns the name of the hint that applies to the fetch specification.
+	 *
+	 * @param fetchSpecification
+	 * @return <code>Entity.purpose</code> if the fetch has a purpose with key paths, <code>Entity</code> if the entity has
+	 * key paths, <code>null</code> otherwise
+	 */
+	public String hintForFetchSpecification(final EOFetchSpecification fetchSpecification)
+	{
+		if (fetchSpecification.fetchesRawRows())
+			return null;
+		String entityName = fetchSpecification.entityName();
+		NSDictionary<?, ?> hints = fetchSpecification.hints();
+		Object purpose = hints == null ? null : hints.objectForKey(COEditingContext.PURPOSE_HINT);
+		if (purpose != null)
+		{
+			String hint = entityName + "." + purpose;
+			if (keyPathsForHint(hint).count() > 0)
+				return hint;
+		}
+		return keyPathsForHint(entityName).count() > 0 ? entityName : null;
+	}
+
+	/**
+	 * Returns a copy of the fetch specification with the key paths of the hint added to its prefetching key paths.
+	 *
+	 * @param fetchSpecification
+	 * @param hint name of the hint (see hintForFetchSpecification)
+	 * @return the fetch specification to use, unchanged if the hints are inactive
+	 */
+	public EOFetchSpecification fetchSpecificationWithHint(final EOFetchSpecification fetchSpecification, final String hint)
+	{
+		if (!_active)
+			return fetchSpecification;
+		NSArray<String> existingKeyPaths = fetchSpecification.prefetchingRelationshipKeyPaths();
+		NSMutableArray<String> keyPaths = existingKeyPaths == null ? new NSMutableArray<String>() : existingKeyPaths.mutableClone();
+		for (String keyPath : keyPathsForHint(hint))
+		{
+			if (!keyPaths.containsObject(keyPath))
+				keyPaths.addObject(keyPath);
+		}
+		if (existingKeyPaths != null && keyPaths.count() == existingKeyPaths.count())
+			return fetchSpecification;
+		EOFetchSpecification hintedFetchSpecification = (EOFetchSpecification)fetchSpecification.clone();
+		hintedFetchSpecification.setPrefetchingRelationshipKeyPaths(keyPaths.immutableClone());
+		return hintedFetchSpecification;
+	}
+
+	/**
+	 * Marks the beginning of a fetch of a COEditingContext in the current thread, its queries are counted for the hint.
+	 *
+	 * @param hint name of the hint or <code>null</code>
+	 * @return the hint of the enclosing fetch, to give to fetchDidEnd
+	 */
+	public String fetchWillBegin(final String hint)
+	{
+		String previousHint = currentFetchHint.get();
+		currentFetchHint.set(hint == null ? NO_HINT : hint);
+		return previousHint;
+	}
+
+	/**
+	 * Marks the end of a fetch started with fetchWillBegin.
+	 *
+	 * @param previousHint value returned by fetchWillBegin
+	 */
+	public void fetchDidEnd(final String previousHint)
+	{
+		if (previousHint == null)
+			currentFetchHint.remove();
+		else
+			currentFetchHint.set(previousHint);
+	}
+
+	/**
+	 * Records a query: a query of the hinted fetch in progress, or a fault query of the entity if no fetch of a
+	 * COEditingContext is in progress in the thread.
+	 *
+	 * @param entityName entity of the query
+	 */
+	protected void queryDidEnd(final String entityName)
+	{
+		String hint = currentFetchHint.get();
+		if (hint == null)
+		{
+			AtomicLong count = _faultQueryCountByEntity.get(entityName);
+			if (count == null)
+			{
+				AtomicLong newCount = new AtomicLong();
+				count = _faultQueryCountByEntity.putIfAbsent(entityName, newCount);
+				if (count == null)
+					count = newCount;
+			}
+			count.incrementAndGet();
+		}
+		else if (hint != NO_HINT)
+			statistics(hint)._queryCount.incrementAndGet();
+	}
+
+	/**
+	 * Records the result of a fetch made with the hint.
+	 *
+	 * @param hint name of the hint
+	 * @param objectCount number of objects fetched
+	 */
+	public void objectsDidFetch(final String hint, final int objectCount)
+	{
+		HintStatistics statistics = statistics(hint);
+		statistics._fetchCount.incrementAndGet();
+		statistics._objectCount.addAndGet(objectCount);
+	}
+
+	private HintStatistics statistics(final String hint)
+	{
+		HintStatistics statistics = _statisticsByHint.get(hint);
+		if (statistics == null)
+		{
+			HintStatistics newStatistics = new HintStatistics();
+			statistics = _statisticsByHint.putIfAbsent(hint, newStatistics);
+			if (statistics == null)
+				statistics = newStatistics;
+		}
+		return statistics;
+	}
+
+	/**
+	 * Returns the destination entities of the first relationship of the key paths of the hint.
+	 *
+	 * @param hint name of the hint
+	 * @return names of the entities
+	 */
+	private NSArray<String> destinationEntityNames(final String hint)
+	{
+		int index = hint.indexOf('.');
+		EOEntity entity = EOModelGroup.defaultGroup().entityNamed(index < 0 ? hint : hint.substring(0, index));
+		NSMutableSet<String> entityNames = new NSMutableSet<String>();
+		for (String keyPath : keyPathsForHint(hint))
+		{
+			int keyIndex = keyPath.indexOf('.');
+			EORelationship relationship = entity == null ? null : entity.relationshipNamed(keyIndex < 0 ? keyPath : keyPath.substring(0, keyIndex));
+			if (relationship != null)
+				entityNames.addObject(relationship.destinationEntity().name());
+		}
+		return entityNames.allObjects();
+	}
+
+	/**
+	 * @param hint name of the hint
+	 * @return key paths of the hint (empty array if it's not set)
+	 */
+	@SuppressWarnings("unchecked")
+	public NSArray<String> keyPathsForHint(final String hint)
+	{
+		NSArray<String> keyPaths = _keyPathsByHint.get(hint);
+		if (keyPaths == null)
+		{
+			keyPaths = ERXProperties.componentsSeparatedByStringWithDefault(PREFIX + hint, ",", NSArray.EmptyArray);
+			NSMutableArray<String> trimmedKeyPaths = new NSMutableArray<String>(keyPaths.count());
+			for (String keyPath : keyPaths)
+			{
+				if (keyPath.trim().length() > 0)
+					trimmedKeyPaths.addObject(keyPath.trim());
+			}
+			keyPaths = trimmedKeyPaths.immutableClone();
+			_keyPathsByHint.put(hint, keyPaths);
+		}
+		return keyPaths;
+	}
+
+	/**
+	 * Called when the configuration changes.
+	 *
+	 * @param notification
+	 */
+	public void configurationDidChange(final NSNotification notification)
+	{
+		reload();
+	}
+
+	public void reload()
+	{
+		log.info("method: reload: the prefetch hints will be read again");
+		_keyPathsByHint.clear();
+	}
+
+	public boolean getActive()
+	{
+		return _active;
+	}
+
+	public void setActive(final boolean active)
+	{
+		log.info("method: setActive: active: " + active + ", the statistics are cleared");
+		_active = active;
+		reset();
+	}
+
+	public String[] getReport()
+	{
+		List<String> hints = new ArrayList<String>(_statisticsByHint.keySet());
+		Collections.sort(hints);
+		String[] report = new String[hints.size()];
+		for (int i = 0; i < report.length; i++)
+		{
+			String hint = hints.get(i);
+			HintStatistics statistics = _statisticsByHint.get(hint);
+			StringBuilder line = new StringBuilder(hint).append(' ').append(keyPathsForHint(hint)).append(_active ? "" : " (inactive)");
+			line.append(": fetches: ").append(statistics._fetchCount.get()).append(" objects: ").append(statistics._objectCount.get());
+			line.append(" queries: ").append(statistics._queryCount.get()).append(" fault queries:");
+			for (String entityName : destinationEntityNames(hint))
+			{
+				AtomicLong faultQueryCount = _faultQueryCountByEntity.get(entityName);
+				line.append(' ').append(entityName).append(": ").append(faultQueryCount == null ? 0 : faultQueryCount.get());
+			}
+			report[i] = line.toString();
+		}
+		return report;
+	}
+
+	public void reset()
+	{
+		_statisticsByHint.clear();
+		_faultQueryCountByEntity.clear();
+	}
+
+}
@@ -0,0 +1,28 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+/**
+ * JMX interface of COPrefetchHints.
+ *
+ * @see COPrefetchHints
+ */
+public interface COPrefetchHintsMBean
+{
+	public boolean getActive();
+
+	/**
+	 * Turns the hints on or off and clears the statistics, to compare the queries of the same workload.
+	 *
+	 * @param active
+	 */
+	public void setActive(boolean active);
+
+	/**
+	 * @return for each hint the fetches, the objects, the queries of these fetches and the fault queries of the
+	 * destination entities of the hinted relationships, all counted by the database contexts
+	 */
+	public String[] getReport();
+
+	public void reload();
+
+	public void reset();
+}
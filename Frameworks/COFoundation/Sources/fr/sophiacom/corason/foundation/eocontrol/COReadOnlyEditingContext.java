@@ -0,0 +1,88 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import org.apache.log4j.Logger;
+
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.eocontrol.EOObjectStore;
+
+/**
+ * EC subclass dedicated to the reporting workloads that fetch a lot of objects just to read them.<p>
+ * Compared to a regular COEditingContext:
+ * <ul>
+ * <li>inserts and deletes are rejected immediately, updates are rejected (and reverted) by saveChanges. The changes are
+ * not rejected in objectWillChange, EOF calls it to merge the changes saved by the other editing contexts</li>
+ * <li>there is no undo manager so nothing is registered for undo</li>
+ * <li>the EC keeps its own copy of the snapshots like any EC, EOF has no public API to share the snapshots of the
+ * database</li>
+ * <li>the registered objects are weakly referenced so the fetched objects are discarded as soon as the code doesn't use them
+ * anymore. <code>reset()</code> can also be called between two batches.</li>
+ * </ul>
+ * Use COEditingContextFactory.newReadOnlyEditingContext() to create it.
+ *
+ * @see COEditingContextFactory#newReadOnlyEditingContext()
+ */
+@SuppressWarnings("serial")
+public class COReadOnlyEditingContext extends COEditingContext
+{
+	public static final String READ_ONLY_ERROR = "This editing context is read-only.";
+
+	private static final Logger log = Logger.getLogger(COReadOnlyEditingContext.class);
+
+	/**
+	 * Constructor.
+	 *
+	 */
+	public COReadOnlyEditingContext(final EOObjectStore objectStore)
+	{
+		super(objectStore);
+		setUndoManager(null);
+		setRetainsRegisteredObjects(false);
+	}
+
+	/**
+	 * @return <code>true</code>
+	 */
+	@Override
+	public boolean isReadOnly()
+	{
+		return true;
+	}
+
+	/**
+	 * Inserts are not allowed.
+	 *
+	 * @exception IllegalStateException
+	 */
+	@Override
+	public void insertObject(final EOEnterpriseObject eo)
+	{
+		throw new IllegalStateException(READ_ONLY_ERROR + " Unable to insert: " + eo.entityName());
+	}
+
+	/**
+	 * Deletes are not allowed.
+	 *
+	 * @exception IllegalStateException
+	 */
+	@Override
+	public void deleteObject(final EOEnterpriseObject eo)
+	{
+		throw new IllegalStateException(READ_ONLY_ERROR + " Unable to delete: " + eo);
+	}
+
+	/**
+	 * Nothing can be saved. If some objects have been modified, the changes are reverted and an exception is raised.
+	 *
+	 * @exception IllegalStateException
+	 */
+	@Override
+	public void saveChanges()
+	{
+		if (hasChanges())
+		{
+			log.error("method: saveChanges: updatedObjects: " + updatedObjects());
+			revert();
+			throw new IllegalStateException(READ_ONLY_ERROR + " The changes have been reverted.");
+		}
+	}
+}
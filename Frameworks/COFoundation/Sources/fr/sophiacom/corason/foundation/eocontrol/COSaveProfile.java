@@ -0,0 +1,192 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import com.webobjects.eocontrol.EOEditingContext;
+import com.webobjects.eocontrol.EOEnterpriseObject;
+import com.webobjects.foundation.NSArray;
+import com.webobjects.foundation.NSMutableDictionary;
+
+/**
+ * Breakdown of a single <code>saveChanges</code> made by a COEditingContext.<p>
+ * The profile counts the inserted, updated and deleted objects per entity and measures the time spent:
+ * <ul>
+ * <li>in the validation (<code>validateForSave</code>, <code>validateForDelete</code> and so <code>COCheckDelete</code>)</li>
+ * <li>in the hooks called by the delegate (<code>willInsert</code>, <code>willUpdate</code>, <code>willDelete</code>)</li>
+ * <li>in the database commit. EOF doesn't offer a hook around the object store call so this is the remaining time
+ * of the save, mainly the SQL execution and the commit.</li>
+ * </ul>
+ * A profile is created only when the profiling is enabled (see COSaveStatistics). The validation and hook times are
+ * reported by COStampedEnterpriseObject, objects which don't inherit from this class are counted in the commit time.
+ *
+ * @see COSaveStatistics
+ */
+public class COSaveProfile
+{
+	private static final int INSERTED = 0;
+	private static final int UPDATED = 1;
+	private static final int DELETED = 2;
+
+	private final NSMutableDictionary<String, int[]> _countsByEntity = new NSMutableDictionary<String, int[]>();
+	private final long _startTime;
+	private long _totalTime;
+	private long _validationTime;
+	private long _hookTime;
+	private int _objectCount;
+	private boolean _succeeded;
+
+	/**
+	 * Constructor. The save starts now.
+	 *
+	 * @param insertedObjects objects to insert
+	 * @param updatedObjects objects to update
+	 * @param deletedObjects objects to delete
+	 */
+	public COSaveProfile(final NSArray<EOEnterpriseObject> insertedObjects, final NSArray<EOEnterpriseObject> updatedObjects, final NSArray<EOEnterpriseObject> deletedObjects)
+	{
+		countObjects(insertedObjects, INSERTED);
+		countObjects(updatedObjects, UPDATED);
+		countObjects(deletedObjects, DELETED);
+		_startTime = System.nanoTime();
+	}
+
+	/**
+	 * Returns the profile of the save in progress in the editing context of the eo.
+	 *
+	 * @param eo enterprise object being saved
+	 * @return the profile or <code>null</code> if the save is not profiled
+	 */
+	public static COSaveProfile currentProfile(final EOEnterpriseObject eo)
+	{
+		EOEditingContext ec = eo.editingContext();
+		if (ec instanceof COEditingContext)
+			return ((COEditingContext)ec).currentSaveProfile();
+		return null;
+	}
+
+	private void countObjects(final NSArray<EOEnterpriseObject> objects, final int index)
+	{
+		for (EOEnterpriseObject eo : objects)
+		{
+			int[] counts = _countsByEntity.objectForKey(eo.entityName());
+			if (counts == null)
+			{
+				counts = new int[3];
+				_countsByEntity.setObjectForKey(counts, eo.entityName());
+			}
+			counts[index]++;
+			_objectCount++;
+		}
+	}
+
+	/**
+	 * Adds some time spent in the validation.
+	 *
+	 * @param nanos time in nanoseconds
+	 */
+	public void addValidationTime(final long nanos)
+	{
+		_validationTime += nanos;
+	}
+
+	/**
+	 * Adds some time spent in the willInsert, willUpdate and willDelete hooks.
+	 *
+	 * @param nanos time in nanoseconds
+	 */
+	public void addHookTime(final long nanos)
+	{
+		_hookTime += nanos;
+	}
+
+	/**
+	 * Called when the save is finished.
+	 *
+	 * @param succeeded <code>false</code> if an exception has been raised
+	 */
+	public void saveDidEnd(final boolean succeeded)
+	{
+		_totalTime = System.nanoTime() - _startTime;
+		_succeeded = succeeded;
+	}
+
+	public boolean succeeded()
+	{
+		return _succeeded;
+	}
+
+	public int objectCount()
+	{
+		return _objectCount;
+	}
+
+	public int insertedCount(final String entityName)
+	{
+		return countForEntity(entityName, INSERTED);
+	}
+
+	public int updatedCount(final String entityName)
+	{
+		return countForEntity(entityName, UPDATED);
+	}
+
+	public int deletedCount(final String entityName)
+	{
+		return countForEntity(entityName, DELETED);
+	}
+
+	private int countForEntity(final String entityName, final int index)
+	{
+		int[] counts = _countsByEntity.objectForKey(entityName);
+		return counts == null ? 0 : counts[index];
+	}
+
+	/**
+	 * @return names of the entities involved by the save
+	 */
+	public NSArray<String> entityNames()
+	{
+		return _countsByEntity.allKeys();
+	}
+
+	public long totalTimeMillis()
+	{
+		return _totalTime / 1000000L;
+	}
+
+	public long validationTimeMillis()
+	{
+		return _validationTime / 1000000L;
+	}
+
+	public long hookTimeMillis()
+	{
+		return _hookTime / 1000000L;
+	}
+
+	/**
+	 * @return the time of the save that is neither spent in the validation nor in the hooks
+	 */
+	public long commitTimeMillis()
+	{
+		return Math.max(0L, _totalTime - _validationTime - _hookTime) / 1000000L;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("total: ").append(totalTimeMillis()).append(" ms");
+		sb.append(", validation: ").append(validationTimeMillis()).append(" ms");
+		sb.append(", hooks: ").append(hookTimeMillis()).append(" ms");
+		sb.append(", commit: ").append(commitTimeMillis()).append(" ms");
+		sb.append(", objects:");
+		for (String entityName : _countsByEntity.allKeys())
+		{
+			int[] counts = _countsByEntity.objectForKey(entityName);
+			sb.append(' ').append(entityName).append("(+").append(counts[INSERTED]);
+			sb.append(" ~").append(counts[UPDATED]).append(" -").append(counts[DELETED]).append(')');
+		}
+		if (!_succeeded)
+			sb.append(", FAILED");
+		return sb.toString();
+	}
+}
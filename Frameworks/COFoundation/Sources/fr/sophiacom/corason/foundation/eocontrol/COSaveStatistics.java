@@ -0,0 +1,184 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import er.extensions.foundation.ERXProperties;
+import fr.sophiacom.corason.foundation.util.COJMXUtilities;
+
+/**
+ * Aggregates the save profiles of all the COEditingContext and exposes them with JMX
+ * (<code>fr.sophiacom.corason:type=SaveStatistics</code>).<p>
+ * The profiling is disabled by default. It is turned on with the property:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COSaveStatistics.enabled=true</code><br>
+ * Each save longer than the threshold is logged with its breakdown (WARN level). The default threshold is 1000 ms:<br>
+ * <code>fr.sophiacom.corason.foundation.eocontrol.COSaveStatistics.slowSaveThreshold=1000</code>
+ *
+ * @see COSaveProfile
+ */
+public class COSaveStatistics implements COSaveStatisticsMBean
+{
+	private static final Logger log = Logger.getLogger(COSaveStatistics.class);
+	private static final boolean enabled = ERXProperties.booleanForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COSaveStatistics.enabled", false);
+	private static volatile COSaveStatistics statistics = null;
+
+	private final long _slowSaveThreshold = ERXProperties.longForKeyWithDefault("fr.sophiacom.corason.foundation.eocontrol.COSaveStatistics.slowSaveThreshold", 1000L);
+	private final AtomicLong _saveCount = new AtomicLong();
+	private final AtomicLong _failedSaveCount = new AtomicLong();
+	private final AtomicLong _slowSaveCount = new AtomicLong();
+	private final AtomicLong _totalSaveTime = new AtomicLong();
+	private final AtomicLong _maxSaveTime = new AtomicLong();
+	private final AtomicLong _totalValidationTime = new AtomicLong();
+	private final AtomicLong _totalHookTime = new AtomicLong();
+	private final AtomicLong _totalCommitTime = new AtomicLong();
+	private final AtomicLong _insertedObjectCount = new AtomicLong();
+	private final AtomicLong _updatedObjectCount = new AtomicLong();
+	private final AtomicLong _deletedObjectCount = new AtomicLong();
+
+	/**
+	 * @return <code>true</code> if the saves must be profiled
+	 */
+	public static boolean isProfilingEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Returns the unique instance. The MBean is registered when the instance is created.
+	 *
+	 * @return the unique instance
+	 */
+	public static COSaveStatistics getInstance()
+	{
+		if (statistics == null)
+		{
+			synchronized (COSaveStatistics.class)
+			{
+				if (statistics == null)
+				{
+					COSaveStatistics aStatistics = new COSaveStatistics();
+					COJMXUtilities.registerMBean(aStatistics, "SaveStatistics");
+					statistics = aStatistics;
+				}
+			}
+		}
+		return statistics;
+	}
+
+	/**
+	 * Adds the profile to the aggregates and logs it if the save is too long.
+	 *
+	 * @param ec editing context that saved its changes
+	 * @param profile profile of the save
+	 */
+	public void recordProfile(final COEditingContext ec, final COSaveProfile profile)
+	{
+		long totalTime = profile.totalTimeMillis();
+		_saveCount.incrementAndGet();
+		if (!profile.succeeded())
+			_failedSaveCount.incrementAndGet();
+		_totalSaveTime.addAndGet(totalTime);
+		_totalValidationTime.addAndGet(profile.validationTimeMillis());
+		_totalHookTime.addAndGet(profile.hookTimeMillis());
+		_totalCommitTime.addAndGet(profile.commitTimeMillis());
+		for (String entityName : profile.entityNames())
+		{
+			_insertedObjectCount.addAndGet(profile.insertedCount(entityName));
+			_updatedObjectCount.addAndGet(profile.updatedCount(entityName));
+			_deletedObjectCount.addAndGet(profile.deletedCount(entityName));
+		}
+		long max = _maxSaveTime.get();
+		while (totalTime > max && !_maxSaveTime.compareAndSet(max, totalTime))
+			max = _maxSaveTime.get();
+
+		if (totalTime >= _slowSaveThreshold)
+		{
+			_slowSaveCount.incrementAndGet();
+			log.warn("method: recordProfile: slow save: " + ec + ": " + profile);
+		}
+		else if (log.isDebugEnabled())
+			log.debug("method: recordProfile: " + ec + ": " + profile);
+	}
+
+	public long getSaveCount()
+	{
+		return _saveCount.get();
+	}
+
+	public long getFailedSaveCount()
+	{
+		return _failedSaveCount.get();
+	}
+
+	public long getSlowSaveCount()
+	{
+		return _slowSaveCount.get();
+	}
+
+	public long getSlowSaveThresholdMillis()
+	{
+		return _slowSaveThreshold;
+	}
+
+	public long getTotalSaveTimeMillis()
+	{
+		return _totalSaveTime.get();
+	}
+
+	public long getAverageSaveTimeMillis()
+	{
+		long count = _saveCount.get();
+		return count == 0 ? 0 : _totalSaveTime.get() / count;
+	}
+
+	public long getMaxSaveTimeMillis()
+	{
+		return _maxSaveTime.get();
+	}
+
+	public long getTotalValidationTimeMillis()
+	{
+		return _totalValidationTime.get();
+	}
+
+	public long getTotalHookTimeMillis()
+	{
+		return _totalHookTime.get();
+	}
+
+	public long getTotalCommitTimeMillis()
+	{
+		return _totalCommitTime.get();
+	}
+
+	public long getInsertedObjectCount()
+	{
+		return _insertedObjectCount.get();
+	}
+
+	public long getUpdatedObjectCount()
+	{
+		return _updatedObjectCount.get();
+	}
+
+	public long getDeletedObjectCount()
+	{
+		return _deletedObjectCount.get();
+	}
+
+	public void reset()
+	{
+		_saveCount.set(0);
+		_failedSaveCount.set(0);
+		_slowSaveCount.set(0);
+		_totalSaveTime.set(0);
+		_maxSaveTime.set(0);
+		_totalValidationTime.set(0);
+		_totalHookTime.set(0);
+		_totalCommitTime.set(0);
+		_insertedObjectCount.set(0);
+		_updatedObjectCount.set(0);
+		_deletedObjectCount.set(0);
+	}
+}
@@ -0,0 +1,37 @@
+package fr.sophiacom.corason.foundation.eocontrol;
+
+/**
+ * JMX interface of COSaveStatistics.
+ *
+ * @see COSaveStatistics
+ */
+public interface COSaveStatisticsMBean
+{
+	public long getSaveCount();
+
+	public long getFailedSaveCount();
+
+	public long getSlowSaveCount();
+
+	public long getSlowSaveThresholdMillis();
+
+	public long getTotalSaveTimeMillis();
+
+	public long getAverageSaveTimeMillis();
+
+	public long getMaxSaveTimeMillis();
+
+	public long getTotalValidationTimeMillis();
+
+	public long getTotalHookTimeMillis();
+
+	public long getTotalCommitTimeMillis();
+
+	public long getInsertedObjectCount();
+
+	public long getUpdatedObjectCount();
+
+	public long getDeletedObjectCount();
+
+	public void reset();
+}
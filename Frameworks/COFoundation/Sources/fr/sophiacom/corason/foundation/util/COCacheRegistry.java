@@ -0,0 +1,85 @@
+package fr.sophiacom.corason.foundation.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Registry of the in-process caches that can be dropped without breaking the application (they are filled again when
+ * needed). It's used by the heap watchdog to free memory when the heap is nearly full.<p>
+ * A cache is registered once with a unique name:
+ * <pre>
+ * COCacheRegistry.registerCache("myCache", new COCacheRegistry.Cache()
+ * {
+ *     public void clearCache()
+ *     {
+ *         ...
+ *     }
+ * });
+ * </pre>
+ *
+ * @see fr.sophiacom.corason.foundation.appserver.COHeapWatchdog
+ */
+public class COCacheRegistry
+{
+	private static final Logger log = Logger.getLogger(COCacheRegistry.class);
+	private static final Map<String, Cache> caches = new ConcurrentHashMap<String, Cache>();
+
+	/**
+	 * A cache that can be cleared at any time from any thread.
+	 */
+	public interface Cache
+	{
+		/**
+		 * Drops the content of the cache.
+		 */
+		public void clearCache();
+	}
+
+	/**
+	 * Registers the cache. A cache already registered with the same name is replaced.
+	 *
+	 * @param name unique name of the cache
+	 * @param cache
+	 */
+	public static void registerCache(final String name, final Cache cache)
+	{
+		caches.put(name, cache);
+		if (log.isDebugEnabled())
+			log.debug("method: registerCache: name: " + name);
+	}
+
+	/**
+	 * Unregisters the cache.
+	 *
+	 * @param name unique name of the cache
+	 */
+	public static void unregisterCache(final String name)
+	{
+		caches.remove(name);
+	}
+
+	/**
+	 * Clears all the registered caches. An exception raised by a cache is logged and doesn't stop the others.
+	 *
+	 * @return number of caches cleared
+	 */
+	public static int clearAllCaches()
+	{
+		int count = 0;
+		for (Map.Entry<String, Cache> entry : caches.entrySet())
+		{
+			try
+			{
+				entry.getValue().clearCache();
+				count++;
+				log.info("method: clearAllCaches: cache cleared: " + entry.getKey());
+			} catch (RuntimeException e)
+			{
+				log.error("method: clearAllCaches: unable to clear the cache: " + entry.getKey(), e);
+			}
+		}
+		return count;
+	}
+}
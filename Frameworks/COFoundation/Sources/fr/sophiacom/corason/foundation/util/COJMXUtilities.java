@@ -0,0 +1,49 @@
+package fr.sophiacom.corason.foundation.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Utility class that registers the Corason MBeans in the platform MBean server.<p>
+ * All the MBeans are registered under the domain <code>fr.sophiacom.corason</code> so they are easy to find with
+ * jconsole or any JMX client.
+ *
+ */
+public class COJMXUtilities
+{
+	public static final String DOMAIN = "fr.sophiacom.corason";
+
+	private static final Logger log = Logger.getLogger(COJMXUtilities.class);
+
+	/**
+	 * Registers the MBean with the name <code>fr.sophiacom.corason:type=aType</code>.<p>
+	 * Nothing is done if an MBean is already registered with this name. A registration error is logged but never raised
+	 * because metrics must not prevent the application from running.
+	 *
+	 * @param mbean object to register (must follow the JMX standard MBean conventions)
+	 * @param aType type of the MBean
+	 * @return <code>true</code> if the MBean is registered
+	 */
+	public static boolean registerMBean(final Object mbean, final String aType)
+	{
+		try
+		{
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=" + aType);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(objectName))
+				server.registerMBean(mbean, objectName);
+			if (log.isDebugEnabled())
+				log.debug("method: registerMBean: objectName: " + objectName);
+			return true;
+		} catch (JMException e)
+		{
+			log.error("method: registerMBean: unable to register the MBean: " + aType, e);
+			return false;
+		}
+	}
+}